@@ -23,21 +23,122 @@ import android.media.AudioRecord;
 
 import androidx.annotation.RequiresPermission;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 
+import ee.ioc.phon.android.speechutils.dsp.AudioFilter;
+import ee.ioc.phon.android.speechutils.dsp.ChannelMixer;
+import ee.ioc.phon.android.speechutils.dsp.PolyphaseResampler;
+import ee.ioc.phon.android.speechutils.dsp.VoiceActivityDetector;
 import ee.ioc.phon.android.speechutils.utils.AudioUtils;
 
 public abstract class AbstractAudioRecorder implements AudioRecorder {
 
     private static final int RESOLUTION = AudioFormat.ENCODING_PCM_16BIT;
     private static final int BUFFER_SIZE_MULTIPLIER = 4; // was: 2
-    private static final int DEFAULT_BUFFER_LENGTH_IN_MILLIS = 35000;
-
-    private AudioRecord mRecorder = null;
+    // Default maximum length of a recording (a different cap can be given to the constructors),
+    // the memory is allocated as the recording grows
+    protected static final int DEFAULT_BUFFER_LENGTH_IN_MILLIS = 35000;
+    // Size of the blocks of the (non-cyclic) recording, and the number of free blocks kept for reuse
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_FREE_BLOCKS = 16;
+    // How long to wait for the recorder thread of the previous recording to finish
+    private static final long JOIN_TIMEOUT_MILLIS = 1000;
+    // Number of the most recent chunks whose capture times are kept
+    private static final int CAPTURE_TIMELINE_LENGTH = 1024;
+    // Status of a read that does not fit into the (non-overwriting) recording buffer
+    private static final int STATUS_OVERFLOW = -300;
+    // In the always-listen mode, the capture is restarted if it has not delivered audio for this long,
+    // the restarts are retried with an exponential backoff, which is reset once the capture has run
+    // without restarts for a while
+    private static final long STALL_TIMEOUT_MILLIS = 2000;
+    private static final long RECOVERY_MIN_BACKOFF_MILLIS = 50;
+    private static final long RECOVERY_MAX_BACKOFF_MILLIS = 5000;
+    private static final long RECOVERY_BACKOFF_RESET_MILLIS = 30000;
+    // Capture time reported by the source is not trusted if it is further than this from the read time
+    private static final long MAX_CAPTURE_DELAY_NANOS = 2000000000L;
+
+    // The blocks are shared by all the recorders, i.e. the next recording (also of a new recorder)
+    // reuses the blocks of the previous one.
+    private static final AudioBlockPool BLOCK_POOL = new AudioBlockPool(BLOCK_SIZE, MAX_FREE_BLOCKS);
+    private static final int DEFAULT_SPEECH_ONSET_MILLIS = 60;
+    private static final int DEFAULT_SPEECH_HANGOVER_MILLIS = 600;
+
+    // Replaced by the recorder thread if the AudioRecord has to be restarted
+    private volatile AudioSource mRecorder = null;
+    // Source given by the client (e.g. a replayed file), which is used instead of an AudioRecord
+    private final AudioSource mGivenSource;
+    // Thread that runs the recorder loop, reused by the following recordings
+    private final AudioEngine mEngine = new AudioEngine("AudioRecorder");
+    private final Runnable mRecorderLoop = new Runnable() {
+        @RequiresPermission(RECORD_AUDIO)
+        @Override
+        public void run() {
+            recorderLoop(mRecorder);
+        }
+    };
+    // Size of the AudioRecord buffer, queried from the hardware once
+    private int mBufferSize = 0;
+    // Duration of the frames that are read (and delivered), or 0 if derived from the buffer size
+    private int mFrameDurationMillis = 0;
+
+    // In the warm-start mode, the released AudioRecord is kept (stopped, i.e. not recording),
+    // and reused by the next recording (see reset)
+    private boolean mWarmStart = false;
+    private boolean mParked = false;
+
+    // Time it took to create the AudioRecord (0 if a parked one was reused), and the time from
+    // the start of the recording to the first read
+    private volatile long mInitTimeNanos = -1;
+    private volatile long mFirstReadLatencyNanos = -1;
+    private long mStartTimeNanos;
+
+    // Capture times of the recorded chunks, and the number of frames read from the AudioRecord
+    // since it was started (owned by the recorder thread)
+    private final CaptureTimeline mCaptureTimeline;
+    private long mCaptureFramePosition = 0;
+    private int mNumOfCaptureFramesRead = 0;
+    private final LatencyHistogram mConsumeLatency = new LatencyHistogram("capture-to-consume");
+    private final LatencyHistogram mSendLatency = new LatencyHistogram("capture-to-send");
+    private final RecorderMetrics mMetrics = new RecorderMetrics();
+
+    // Supervision of the capture in the always-listen mode (null otherwise): the watchdog requests
+    // a recovery if the capture stalls, and the recorder thread restarts the capture
+    private final CaptureWatchdog mWatchdog;
+    private volatile boolean mRecoveryRequested = false;
+    private volatile boolean mStopRequested = false;
+    private final Object mRecoveryLock = new Object();
+    private long mRecoveryBackoffMillis = RECOVERY_MIN_BACKOFF_MILLIS;
+    private long mRecoveryTimeNanos;
 
     private double mAvgEnergy = 0;
 
+    // Energy of the last read buffer and of the last second of the recording
+    private final EnergyTracker mEnergyTracker;
+
+    // Finds the beginning and the end of speech, if a voice activity detector has been set
+    private volatile SpeechEndpointer mSpeechEndpointer;
+
+    // Processes the samples in place before they are recorded
+    private volatile AudioFilter mAudioFilter;
+
+    private final int mAudioSource;
     private final int mSampleRate;
+    // Rate at which the AudioRecord captures, resampled to mSampleRate if it is different
+    private int mCaptureSampleRate;
+    private PolyphaseResampler mResampler;
+    // Mixes the captured channels down to mono, null if the capture is mono
+    private ChannelMixer mChannelMixer;
+    // Samples at the capture rate, interleaved if there are several channels
+    private short[] mCaptureSamples;
     private final int mSamplesInOneSec;
     private final int mSamplesInOneMilliSec;
     private final boolean mAlwaysListen;
@@ -46,47 +147,280 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
     private State mState;
 
     // The complete space into which the recording in written.
-    // Its maximum length is about:
-    // 2 (bytes) * 1 (channels) * 30 (max rec time in seconds) * 44100 (times per second) = 2 646 000 bytes
-    // but typically is:
-    // 2 (bytes) * 1 (channels) * 20 (max rec time in seconds) * 16000 (times per second) = 640 000 bytes
-    final byte[] mRecording;
-
-    // TODO: use: mRecording.length instead
-    private int mRecordedLength = 0;
+    // 1 second of recording takes:
+    // 2 (bytes) * 1 (channels) * 44100 (times per second) = 88 200 bytes
+    // but typically:
+    // 2 (bytes) * 1 (channels) * 16000 (times per second) = 32 000 bytes
+    // The recorder thread is its only producer, the client (calling the consume-methods) its only consumer.
+    // The number of bytes the client has already consumed is tracked by its read position.
+    final AudioBuffer mRecording;
+
     private AtomicLong mRecordedSessionId = new AtomicLong(0L);
-    boolean mRecordingBufferIsFullWithData = false;
-    private final int mRecordingBufferLengthMillis;
 
-    // The number of bytes the client has already consumed
-    private int mConsumedLength = 0;
     private AtomicLong mConsumedSessionId = new AtomicLong(0L);
 
     // Buffer for output
     private byte[] mBuffer;
+    // Little-endian 16-bit view of mBuffer
+    private ShortBuffer mBufferAsShorts;
 
-    protected AbstractAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis, boolean alwaysListen) {
+    // Samples of the last read, on which the signal processing is done
+    private short[] mSamples;
+    private ShortBuffer mSampleView;
+
+    private final List<ChunkListenerRegistration> mChunkListeners = new CopyOnWriteArrayList<>();
+    private final List<AudioSampleListener> mSampleListeners = new CopyOnWriteArrayList<>();
+    // Read-only view of the buffer that is passed to the chunk listeners
+    private ByteBuffer mChunkView;
+    private byte[] mChunkViewArray;
+
+    /**
+     * @param recording buffer into which the recording is written, or null to create one
+     *                  according to the length and the always-listen mode
+     */
+    protected AbstractAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis, boolean alwaysListen, AudioBuffer recording) {
+        this(audioSource, null, sampleRate, recordingBufferLengthMillis, alwaysListen, recording);
+    }
+
+    /**
+     * Records from the given source (e.g. a replayed file) instead of the microphone. The audio of
+     * the source is resampled (and mixed) to the given sample rate, as with {@link #setCaptureSampleRate}.
+     * Releasing the recorder also releases the source.
+     */
+    protected AbstractAudioRecorder(AudioSource source, int sampleRate, int recordingBufferLengthMillis, boolean alwaysListen, AudioBuffer recording) {
+        this(DEFAULT_AUDIO_SOURCE, source, sampleRate, recordingBufferLengthMillis, alwaysListen, recording);
+    }
+
+    private AbstractAudioRecorder(int audioSource, AudioSource source, int sampleRate, int recordingBufferLengthMillis, boolean alwaysListen, AudioBuffer recording) {
+        mAudioSource = audioSource;
+        mGivenSource = source;
         mSampleRate = sampleRate;
+        mCaptureSampleRate = source == null ? sampleRate : source.getSampleRate();
+        if (mCaptureSampleRate < sampleRate) {
+            throw new IllegalArgumentException("Capture rate is lower than the sample rate: " + mCaptureSampleRate);
+        }
+        mResampler = mCaptureSampleRate == sampleRate ? null : new PolyphaseResampler(mCaptureSampleRate, sampleRate);
         // E.g. 1 second of 16kHz 16-bit mono audio takes 32000 bytes.
         mSamplesInOneSec = RESOLUTION_IN_BYTES * CHANNELS * mSampleRate;
         mSamplesInOneMilliSec = (int) ((double) mSamplesInOneSec / 1000.0);
-        mRecordingBufferLengthMillis = recordingBufferLengthMillis;
-        mRecording = new byte[mSamplesInOneMilliSec * mRecordingBufferLengthMillis];
         mAlwaysListen = alwaysListen;
+        mWatchdog = alwaysListen ? new CaptureWatchdog(STALL_TIMEOUT_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+                onStall();
+            }
+        }) : null;
+        mEnergyTracker = new EnergyTracker(mSampleRate * CHANNELS);
+        mCaptureTimeline = new CaptureTimeline(mSampleRate, CAPTURE_TIMELINE_LENGTH);
+        // If we need to keep on listening, then the buffer is cyclic, i.e. once the end of the
+        // recording buffer is reached, it continues to be written from the beginning.
+        // Otherwise the buffer grows with the recording, up to the given length.
+        int maxNumOfBytes = getNumOfBytesIn(sampleRate, recordingBufferLengthMillis);
+        if (recording != null) {
+            mRecording = recording;
+        } else if (mAlwaysListen) {
+            mRecording = new AudioRingBuffer(maxNumOfBytes, true);
+        } else {
+            mRecording = new SegmentedAudioBuffer(BLOCK_POOL, maxNumOfBytes);
+        }
+    }
+
+    protected AbstractAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis, boolean alwaysListen) {
+        this(audioSource, sampleRate, recordingBufferLengthMillis, alwaysListen, null);
     }
 
     protected AbstractAudioRecorder(int audioSource, int sampleRate) {
         this(audioSource, sampleRate, DEFAULT_BUFFER_LENGTH_IN_MILLIS, false);
     }
 
+    protected AbstractAudioRecorder(int audioSource, int sampleRate, int maxRecordingLengthMillis) {
+        this(audioSource, sampleRate, maxRecordingLengthMillis, false);
+    }
+
+    /**
+     * @return number of bytes in the given number of milliseconds of audio
+     */
+    protected static int getNumOfBytesIn(int sampleRate, int millis) {
+        int numOfBytesInOneMilliSec = (int) (RESOLUTION_IN_BYTES * CHANNELS * sampleRate / 1000.0);
+        return (int) Math.min(Integer.MAX_VALUE / 2, (long) numOfBytesInOneMilliSec * millis);
+    }
+
+    protected AudioBlockPool getBlockPool() {
+        return BLOCK_POOL;
+    }
+
+    /**
+     * Sets whether the consumed audio is dropped right away, so that a long recording, which is
+     * consumed while recording, does not run out of space (or memory). By default the consumed audio
+     * is kept, as part of the complete recording. Has no effect in the always-listen mode.
+     * Should be called before the recording is started.
+     */
+    public void setReleaseConsumed(boolean releaseConsumed) {
+        if (mRecording instanceof SegmentedAudioBuffer) {
+            ((SegmentedAudioBuffer) mRecording).setReleaseConsumed(releaseConsumed);
+        }
+    }
+
+    protected boolean isReleaseConsumed() {
+        return mRecording instanceof SegmentedAudioBuffer && ((SegmentedAudioBuffer) mRecording).isReleaseConsumed();
+    }
+
+    /**
+     * <p>Sets the rate at which the audio is captured, e.g. the native rate of the device
+     * (typically 48000), which is then resampled to the sample rate of the recorder on the recorder
+     * thread. Capturing at the native rate avoids the resampler of the platform, whose quality
+     * varies from device to device, and on some devices the native rate is the only one with a
+     * low-latency input path.</p>
+     * <p>Must be called in the READY state, i.e. before the recording is started. Recreates the
+     * AudioRecord. In case of errors, no exception is thrown, but the state is set to ERROR.</p>
+     *
+     * @param captureSampleRate capture rate in Hz, at least the sample rate of the recorder
+     */
+    @RequiresPermission(RECORD_AUDIO)
+    public void setCaptureSampleRate(int captureSampleRate) {
+        if (captureSampleRate < mSampleRate) {
+            throw new IllegalArgumentException("Capture rate is lower than the sample rate: " + captureSampleRate);
+        }
+        if (mState != State.READY) {
+            handleError("setCaptureSampleRate() called in illegal state");
+            return;
+        }
+        if (captureSampleRate == mCaptureSampleRate) {
+            return;
+        }
+        mCaptureSampleRate = captureSampleRate;
+        mResampler = captureSampleRate == mSampleRate ? null : new PolyphaseResampler(captureSampleRate, mSampleRate);
+        recreateRecorder();
+    }
+
+    public int getCaptureSampleRate() {
+        return mCaptureSampleRate;
+    }
+
+    /**
+     * <p>Sets the mixer that mixes the channels of a multi-microphone capture down to mono on the
+     * recorder thread, e.g. by averaging them, by selecting the channel with the best SNR, or by
+     * delay-and-sum beamforming. The recording is still mono, but in far-field use it has a better
+     * SNR than the audio of a single microphone. The AudioRecord captures as many channels as the
+     * mixer expects, i.e. 1 (no mixing) or 2 (stereo).</p>
+     * <p>Must be called in the READY state, i.e. before the recording is started. Recreates the
+     * AudioRecord. In case of errors, no exception is thrown, but the state is set to ERROR.</p>
+     *
+     * @param channelMixer channel mixer, or null to capture mono
+     */
+    @RequiresPermission(RECORD_AUDIO)
+    public void setChannelMixer(ChannelMixer channelMixer) {
+        int numOfChannels = channelMixer == null ? 1 : channelMixer.getNumOfChannels();
+        if (numOfChannels != 1 && numOfChannels != 2) {
+            throw new IllegalArgumentException("Capturing " + numOfChannels + " channels is not supported");
+        }
+        if (mState != State.READY) {
+            handleError("setChannelMixer() called in illegal state");
+            return;
+        }
+        int previousNumOfChannels = getNumOfCaptureChannels();
+        mChannelMixer = numOfChannels == 1 ? null : channelMixer;
+        if (numOfChannels != previousNumOfChannels) {
+            recreateRecorder();
+        }
+    }
+
+    /**
+     * <p>Sets the duration of the frames that are read from the microphone and delivered to the
+     * listeners (and to the recording), e.g. 10 or 20 ms for streaming with a fine granularity,
+     * or 100 ms for fewer wake-ups of the recorder thread. Every read returns exactly one frame
+     * (except at the end of a file source). By default the frame is half of the AudioRecord buffer,
+     * which on some devices is more than 100 ms. The AudioRecord buffer is kept independent of the
+     * frame, it is only enlarged to hold at least two frames.</p>
+     * <p>{@link EncodedAudioRecorder} reads the microphone in chunks of the size of the codec input
+     * buffer, i.e. there the frame duration only affects the size of the AudioRecord buffer.</p>
+     * <p>Must be called in the READY state, i.e. before the recording is started. Might recreate the
+     * AudioRecord. In case of errors, no exception is thrown, but the state is set to ERROR.</p>
+     *
+     * @param frameDurationMillis frame duration in milliseconds (e.g. 10, 20, 40, or 100)
+     */
     @RequiresPermission(RECORD_AUDIO)
-    protected AudioRecord createRecorder(int audioSource, int sampleRate, int bufferSize) {
-        if (mRecorder != null)
-            release();
+    public void setFrameDurationMillis(int frameDurationMillis) {
+        if (frameDurationMillis <= 0 || frameDurationMillis > 1000) {
+            throw new IllegalArgumentException("Frame duration is not in (0, 1000] ms: " + frameDurationMillis);
+        }
+        if (mState != State.READY) {
+            handleError("setFrameDurationMillis() called in illegal state");
+            return;
+        }
+        mFrameDurationMillis = frameDurationMillis;
+        createBuffer(mSampleRate * frameDurationMillis / 1000);
+        if (mGivenSource == null && mBufferSize < getMinBufferSizeForFrames()) {
+            recreateRecorder();
+        }
+    }
 
-        mRecorder = SpeechAudioRecord.create(audioSource, sampleRate, AudioFormat.CHANNEL_IN_MONO, RESOLUTION, bufferSize, false, false, false);
+    /**
+     * @return number of samples (at the sample rate of the recorder) in a frame
+     */
+    public int getFrameLength() {
+        return mSamples == null ? 0 : mSamples.length / CHANNELS;
+    }
 
-        if (getSpeechRecordState() != AudioRecord.STATE_INITIALIZED) {
+    /**
+     * @return number of bytes that the AudioRecord buffer needs to hold two frames at the capture rate
+     */
+    private int getMinBufferSizeForFrames() {
+        return 2 * getNumOfBytesIn(mCaptureSampleRate, mFrameDurationMillis) * getNumOfCaptureChannels();
+    }
+
+    /**
+     * @return number of channels that the AudioRecord captures
+     */
+    public int getNumOfCaptureChannels() {
+        return mChannelMixer == null ? CHANNELS : mChannelMixer.getNumOfChannels();
+    }
+
+    private int getChannelMask() {
+        return getNumOfCaptureChannels() == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    }
+
+    /**
+     * Recreates the AudioRecord after the capture format has changed.
+     */
+    @RequiresPermission(RECORD_AUDIO)
+    private void recreateRecorder() {
+        // The buffer size depends on the format
+        mBufferSize = 0;
+        try {
+            createRecorder(mAudioSource, mCaptureSampleRate, getBufferSize());
+        } catch (Exception e) {
+            if (e.getMessage() == null) {
+                handleError("Unknown error occurred while changing the capture format");
+            } else {
+                handleError(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates the AudioRecord (wrapped into a source), or takes the source that was given to the
+     * constructor, whose format cannot be changed.
+     */
+    @RequiresPermission(RECORD_AUDIO)
+    protected AudioSource createRecorder(int audioSource, int sampleRate, int bufferSize) {
+        if (mGivenSource != null) {
+            if (mGivenSource.getSampleRate() != sampleRate) {
+                throw new IllegalStateException("Audio source does not record at " + sampleRate);
+            }
+            mRecorder = mGivenSource;
+            mInitTimeNanos = 0;
+        } else {
+            if (mRecorder != null)
+                releaseRecorder();
+
+            long timeNanos = System.nanoTime();
+            AudioRecord record = SpeechAudioRecord.create(audioSource, sampleRate, getChannelMask(), RESOLUTION, bufferSize, false, false, false);
+            mRecorder = new AudioRecordSource(record, bufferSize);
+            mInitTimeNanos = System.nanoTime() - timeNanos;
+        }
+
+        if (!isRecorderInitialized()) {
             throw new IllegalStateException("SpeechRecord initialization failed");
         }
 
@@ -96,31 +430,50 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
     // TODO: remove
     protected void createBuffer(int framePeriod) {
         mBuffer = new byte[framePeriod * RESOLUTION_IN_BYTES * CHANNELS];
+        mBufferAsShorts = ByteBuffer.wrap(mBuffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        createSampleBuffer(framePeriod * CHANNELS);
+    }
+
+    private void createSampleBuffer(int numOfSamples) {
+        mSamples = new short[numOfSamples];
+        mSampleView = ShortBuffer.wrap(mSamples).asReadOnlyBuffer();
     }
 
     protected int getBufferSize() {
-        int minBufferSizeInBytes = AudioRecord.getMinBufferSize(mSampleRate, AudioFormat.CHANNEL_IN_MONO, RESOLUTION);
+        if (mBufferSize > 0) {
+            return mBufferSize;
+        }
+        if (mGivenSource != null) {
+            mBufferSize = mGivenSource.getBufferSize();
+            return mBufferSize;
+        }
+        int minBufferSizeInBytes = AudioCapabilities.getMinBufferSize(mCaptureSampleRate, getChannelMask(), RESOLUTION);
         if (minBufferSizeInBytes == AudioRecord.ERROR_BAD_VALUE) {
             throw new IllegalArgumentException("SpeechRecord.getMinBufferSize: parameters not supported by hardware");
         } else if (minBufferSizeInBytes == AudioRecord.ERROR) {
             Log.e("SpeechRecord.getMinBufferSize: unable to query hardware for output properties");
-            minBufferSizeInBytes = mSampleRate * (120 / 1000) * RESOLUTION_IN_BYTES * CHANNELS;
+            minBufferSizeInBytes = mCaptureSampleRate * (120 / 1000) * RESOLUTION_IN_BYTES * getNumOfCaptureChannels();
         }
-        int bufferSize = BUFFER_SIZE_MULTIPLIER * minBufferSizeInBytes;
+        int bufferSize = Math.max(BUFFER_SIZE_MULTIPLIER * minBufferSizeInBytes, getMinBufferSizeForFrames());
         Log.i("SpeechRecord buffer size: " + bufferSize + ", min size = " + minBufferSizeInBytes);
+        mBufferSize = bufferSize;
         return bufferSize;
     }
 
     /**
      * Returns the recorded bytes since the last call, and resets the recording.
+     * Must not be called concurrently with the other consume-methods.
      *
      * @return bytes that have been recorded since this method was last called
      */
-    public synchronized byte[] consumeRecordingAndTruncate() {
-        int len = getConsumedLength();
-        byte[] bytes = getCurrentRecording(len);
-        setRecordedLength(0);
-        setConsumedLength(0);
+    public byte[] consumeRecordingAndTruncate() {
+        long end = mRecording.getWritePosition();
+        long start = getConsumeStartPosition(end);
+        byte[] bytes = start < 0 ? null : getCurrentRecording(start, end);
+        mRecording.truncate(end);
+        if (bytes != null) {
+            recordConsumeLatency(end, bytes.length);
+        }
         return bytes;
     }
 
@@ -128,7 +481,10 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
         return mSampleRate;
     }
 
-    protected int getNumOfSamplesIn(int millis) {
+    /**
+     * @return number of bytes in the given number of milliseconds (or minus milliseconds) of the recording
+     */
+    protected int getNumOfBytesIn(int millis) {
         return Math.abs(millis) * mSamplesInOneMilliSec;
     }
 
@@ -138,8 +494,10 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
 
     /**
      * Checking of the read status.
-     * The total recording array has been pre-allocated (e.g. for 35 seconds of audio).
-     * If it gets full (status == -5) then the recording is stopped.
+     * The recording is kept in blocks that are allocated as it grows, up to the maximum length of
+     * the recording (e.g. 35 seconds of audio). If the read does not fit into it (status ==
+     * STATUS_OVERFLOW) then the recording is stopped. An overwriting (always-listen) recording does
+     * not overflow.
      */
     protected int getStatus(int numOfBytes, int len) {
         Log.i("Read bytes: request/actual: " + len + "/" + numOfBytes);
@@ -153,9 +511,9 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
         } else if (numOfBytes == 0) {
             Log.e("Read zero bytes");
             return -200;
-        } else if (mRecording.length < mRecordedLength + numOfBytes) {
-            Log.e("Recorder buffer overflow: " + mRecordedLength);
-            return -300;
+        } else if (!mRecording.isOverwrite() && mRecording.remaining() < numOfBytes) {
+            Log.e("Recorder buffer overflow: " + getLength());
+            return STATUS_OVERFLOW;
         }
         return 0;
     }
@@ -164,83 +522,366 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
      * Check if the consume pointer was crossed by the recorded pointer. As long as the consume
      * pointer was not crossed, the consumption of the buffer may continue as usual and no sound gap
      * will occur. Once the consume pointer was crossed (e.g. it was on sample 1000 and prior to this
-     * read the recorder was on sample 750 and now that it read the new sample it's on 1500), there's
-     * an audio gap between the consumer and the recorder that can not be filled (data is lost with
-     * no ability to get it back). Whenever this kind of cross occurs, the calling code changed the
-     * session id of the recorder so that if consume is called (from ContinuousRawAudioRecorder),
-     * it will not assume that the data is complete and could be fetched but it will act according to
-     * the SessionStartPointer configured (e.g. read the buffer from the beginning, from now, or from
-     * now - X millis)
+     * read the recorder was on sample 750 and now that it read the new sample it's on 1500 in a buffer
+     * of 400 samples), there's an audio gap between the consumer and the recorder that can not be
+     * filled (data is lost with no ability to get it back). Whenever this kind of cross occurs, the
+     * calling code changed the session id of the recorder so that if consume is called (from
+     * ContinuousRawAudioRecorder), it will not assume that the data is complete and could be fetched
+     * but it will act according to the SessionStartPointer configured (e.g. read the buffer from the
+     * beginning, from now, or from now - X millis)
      *
-     * @param reachedTheEndOfRecordingBuffer - in case that in the read before the call to this method the recorder
-     *                                       passed the end of the buffer and returned to the beginning
-     * @param numOfBytesRead                 - in the reading process
      * @return true/false according to the above logic
      */
-    private boolean isConsumePointerCrossed(boolean reachedTheEndOfRecordingBuffer, int numOfBytesRead) {
-        return numOfBytesRead > 0 &&
-                mRecordingBufferIsFullWithData &&
+    private boolean isConsumePointerCrossed() {
+        return mRecording.isOverwrite() &&
                 isRecordedSessionSameAsConsumedSession() &&
-                ((mRecordedLength - numOfBytesRead < mConsumedLength && mRecordedLength >= mConsumedLength) ||
-                        (reachedTheEndOfRecordingBuffer && mConsumedLength < mRecordedLength));
+                mRecording.getWritePosition() - mRecording.capacity() > mRecording.getReadPosition();
+    }
+
+    /**
+     * Registers a listener that is called on the recorder thread with every chunk of audio
+     * right after it has been read.
+     */
+    public void addAudioChunkListener(AudioChunkListener listener) {
+        addAudioChunkListener(listener, null);
+    }
+
+    /**
+     * Registers a listener that is called with every chunk of audio right after it has been read.
+     * If an executor is given, then the chunk is copied and the listener is called via the executor,
+     * so that a slow listener does not hold up the recorder thread.
+     */
+    public void addAudioChunkListener(AudioChunkListener listener, Executor executor) {
+        mChunkListeners.add(new ChunkListenerRegistration(listener, executor));
+    }
+
+    public void removeAudioChunkListener(AudioChunkListener listener) {
+        for (ChunkListenerRegistration registration : mChunkListeners) {
+            if (registration.mListener == listener) {
+                mChunkListeners.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Registers a listener that is called on the recorder thread with the samples of every read.
+     */
+    public void addAudioSampleListener(AudioSampleListener listener) {
+        mSampleListeners.add(listener);
+    }
+
+    public void removeAudioSampleListener(AudioSampleListener listener) {
+        mSampleListeners.remove(listener);
+    }
+
+    /**
+     * Removes all the chunk and sample listeners, e.g. those of the previous session when a released
+     * recorder is reused.
+     */
+    public void removeAudioListeners() {
+        mChunkListeners.clear();
+        mSampleListeners.clear();
+    }
+
+    /**
+     * Opens a named consumer that reads the recording independently of the consume-methods and of
+     * the other cursors. The cursor starts at the oldest available audio, i.e. at the beginning of
+     * the complete recording, call {@link AudioCursor#skipToLatest()} to read only the new audio.
+     * The cursors survive {@link #reset()} (and start again from the beginning of the new recording).
+     */
+    public AudioCursor openCursor(String name) {
+        return mRecording.openCursor(name, mRecording.getOldestPosition());
+    }
+
+    public AudioCursor getCursor(String name) {
+        return mRecording.getCursor(name);
     }
 
     public long markNewRecordingSession() {
         return mRecordedSessionId.incrementAndGet();
     }
 
+    protected long getRecordedSessionId() {
+        return mRecordedSessionId.get();
+    }
+
     /**
-     * Copy data from the given recorder into the given buffer, and append to the complete recording.
-     * public int read (byte[] audioData, int offsetInBytes, int sizeInBytes)
+     * Copy samples from the given recorder into the given buffer, and append to the complete recording.
+     * public int read (short[] audioData, int offsetInShorts, int sizeInShorts)
+     * The signal processing works directly on the samples, and the samples are stored as
+     * little-endian bytes in the recording (which is what is uploaded).
      */
     @RequiresPermission(RECORD_AUDIO)
-    protected int read(AudioRecord recorder, byte[] buffer) {
-        int len = buffer.length;
-        int numOfBytes = recorder.read(buffer, 0, len);
-        // handling mediaserver crashes here
-        // it doesn't happen a lot but it happens and the way to handle it is to fully restart
-        // the audio recorder
-        if (numOfBytes == 0 && mAlwaysListen) {
-            consumeRecordingAndTruncate();
-            mBuffer = new byte[mBuffer.length];
-            createRecorder(recorder.getAudioSource(), recorder.getSampleRate(), getBufferSize());
-            start();
-        }
-
-        int status = getStatus(numOfBytes, len);
-        boolean reachedTheEndOfRecordingBuffer = false;
-        // if we need to keep on listening, when reaching the end of the recorded buffer,
-        // continue to write from the beginning. thus, we have a cyclic buffer
-        if (mAlwaysListen && status == -300) {
-            reachedTheEndOfRecordingBuffer = true;
-            status = 0;
-            // for use when consuming the recorded buffer, the buffer is now in it's cyclic phase
-            if (!mRecordingBufferIsFullWithData)
-                mRecordingBufferIsFullWithData = true;
-        }
-
-        if (status == 0 && numOfBytes >= 0) {
-            if (!reachedTheEndOfRecordingBuffer) {
-                // arraycopy(Object src, int srcPos, Object dest, int destPos, int length)
-                // numOfBytes <= len, typically == len, but at the end of the recording can be < len.
-                System.arraycopy(buffer, 0, mRecording, mRecordedLength, numOfBytes);
-                mRecordedLength += numOfBytes;
-            } else {
-                int numOfBytesBeforeCyclic = mRecording.length - mRecordedLength;
-                System.arraycopy(buffer, 0, mRecording, mRecordedLength, numOfBytesBeforeCyclic);
-                System.arraycopy(buffer, numOfBytesBeforeCyclic, mRecording, 0, numOfBytes - numOfBytesBeforeCyclic);
+    protected int read(AudioSource recorder, short[] samples) {
+        int len = samples.length;
+        int numOfSamples;
+        long readStartNanos = System.nanoTime();
+        if (isCaptureConverted()) {
+            numOfSamples = readConverted(recorder, samples, len);
+        } else {
+            numOfSamples = readFrame(recorder, samples, len);
+            mNumOfCaptureFramesRead = Math.max(0, numOfSamples);
+        }
+        long captureTimeNanos = getCaptureTimeNanos(recorder);
+        // Errors are negative codes, not lengths
+        int numOfBytes = numOfSamples > 0 ? numOfSamples * RESOLUTION_IN_BYTES : numOfSamples;
+        mMetrics.onRead(numOfBytes, len * RESOLUTION_IN_BYTES, System.nanoTime() - readStartNanos);
+        handleZeroRead(recorder, numOfSamples);
+
+        int status = getStatus(numOfBytes, len * RESOLUTION_IN_BYTES);
+        if (status == STATUS_OVERFLOW) {
+            mMetrics.onOverflow();
+        }
+
+        if (status == 0) {
+            addToRecording(samples, numOfSamples, captureTimeNanos);
+        }
+
+        return mAlwaysListen ? 0 : status;
+    }
 
-                mRecordedLength = numOfBytes - numOfBytesBeforeCyclic;
+    /**
+     * Reads (in blocking mode) until the given number of samples has been read, so that the frames
+     * stay aligned even if the source returns less than requested.
+     *
+     * @return number of samples read, or the (non-positive) result of the read
+     */
+    private int readFrame(AudioSource recorder, short[] samples, int len) {
+        int numOfRead = 0;
+        while (numOfRead < len) {
+            int n = recorder.read(samples, numOfRead, len - numOfRead);
+            if (n <= 0) {
+                return numOfRead == 0 ? n : numOfRead;
             }
+            numOfRead += n;
+        }
+        return numOfRead;
+    }
+
+    /**
+     * @return true iff the captured audio is resampled or mixed before it is recorded
+     */
+    private boolean isCaptureConverted() {
+        return mResampler != null || mChannelMixer != null;
+    }
 
-            // increment the recorded session id in case that the consume pointer was crossed
-            if (isConsumePointerCrossed(reachedTheEndOfRecordingBuffer, numOfBytes)) {
-                Log.i("recorder session changed. mRecordedLength was: " + (mRecordedLength - numOfBytes) + " and now it is: " + mRecordedLength + " while the mConsumedLength is: " + mConsumedLength);
-                markNewRecordingSession();
+    /**
+     * Reads (in blocking mode) as many frames at the capture rate as are needed for the given
+     * number of samples at the sample rate, mixes them down to mono, and resamples them.
+     * The mixing is done in place.
+     *
+     * @return number of samples at the sample rate, or the (non-positive) result of the read
+     */
+    private int readConverted(AudioSource recorder, short[] samples, int len) {
+        int numOfChannels = getNumOfCaptureChannels();
+        int numOfFrames = mResampler == null ? len : mResampler.getNumOfInputSamples(len);
+        int numOfCaptureSamples = numOfFrames * numOfChannels;
+        if (mCaptureSamples == null || mCaptureSamples.length < numOfCaptureSamples) {
+            // Depending on the phase of the resampler, one more frame may be needed next time
+            mCaptureSamples = new short[numOfCaptureSamples + numOfChannels];
+        }
+        int numOfRead = 0;
+        mNumOfCaptureFramesRead = 0;
+        while (numOfRead < numOfCaptureSamples) {
+            int n = recorder.read(mCaptureSamples, numOfRead, numOfCaptureSamples - numOfRead);
+            if (n <= 0) {
+                if (numOfRead == 0) {
+                    return n;
+                }
+                break;
             }
+            numOfRead += n;
+        }
+        numOfFrames = numOfRead / numOfChannels;
+        mNumOfCaptureFramesRead = numOfFrames;
+        if (mResampler == null) {
+            // Only the mixer
+            mChannelMixer.mix(mCaptureSamples, 0, numOfFrames, samples, 0);
+            return numOfFrames;
         }
+        if (mChannelMixer != null) {
+            mChannelMixer.mix(mCaptureSamples, 0, numOfFrames, mCaptureSamples, 0);
+        }
+        return mResampler.process(mCaptureSamples, 0, numOfFrames, samples, 0);
+    }
 
-        return mAlwaysListen ? 0 : status;
+    /**
+     * Returns the capture time of the first frame of the last read, and advances the frame position.
+     * The time is taken from the source (e.g. from the AudioTimestamp, the time at which a given frame
+     * was captured) if it reports it, and is otherwise estimated as the time of the end of the read minus
+     * the duration of the read frames. The audio that is resampled is additionally delayed by the resampler.
+     *
+     * @return capture time (System.nanoTime)
+     */
+    private long getCaptureTimeNanos(AudioSource recorder) {
+        long readTimeNanos = System.nanoTime();
+        int numOfFrames = mNumOfCaptureFramesRead;
+        long framePosition = mCaptureFramePosition;
+        mCaptureFramePosition += numOfFrames;
+        long captureTimeNanos = readTimeNanos - numOfFrames * 1000000000L / mCaptureSampleRate;
+        long timestampNanos = recorder.getCaptureTimeNanos(framePosition);
+        // E.g. the frame position of a restarted AudioRecord might not be counted from zero
+        if (timestampNanos >= 0 && timestampNanos <= readTimeNanos && readTimeNanos - timestampNanos < MAX_CAPTURE_DELAY_NANOS) {
+            captureTimeNanos = timestampNanos;
+        }
+        if (mResampler != null) {
+            captureTimeNanos -= (long) mResampler.getDelay() * 1000000000L / mCaptureSampleRate;
+        }
+        return captureTimeNanos;
+    }
+
+    /**
+     * handling mediaserver crashes here
+     * it doesn't happen a lot but it happens and the way to handle it is to fully restart
+     * the audio recorder. In the always-listen mode, a failed read (or a stall detected by the
+     * watchdog) restarts the capture, keeping the recording.
+     */
+    @RequiresPermission(RECORD_AUDIO)
+    private void handleZeroRead(AudioSource recorder, int numOfBytes) {
+        if (!mAlwaysListen || mStopRequested) {
+            return;
+        }
+        if (numOfBytes > 0) {
+            mWatchdog.progress();
+            if (!mRecoveryRequested) {
+                return;
+            }
+        }
+        recover(mRecoveryRequested ? "capture stalled" : "read returned " + numOfBytes);
+    }
+
+    /**
+     * Called on the watchdog thread if the capture has stalled. Stopping the source unblocks
+     * the read, after which the recorder thread restarts the capture.
+     */
+    private void onStall() {
+        Log.e("Capture stalled");
+        mMetrics.onStall();
+        mRecoveryRequested = true;
+        AudioSource recorder = mRecorder;
+        if (recorder != null) {
+            try {
+                recorder.stop();
+            } catch (IllegalStateException e) {
+                Log.e("Stopping the stalled capture failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Restarts the capture on the recorder thread (which then continues with the new AudioRecord),
+     * retrying until it succeeds or the recording is stopped. Every attempt waits for the backoff
+     * first, which is doubled by every attempt, so that a microphone that is kept by another app
+     * is not hammered. The AudioRecord is replaced (the previous one released), and the recording
+     * is kept, i.e. the consumer just sees a gap in the audio.
+     */
+    @RequiresPermission(RECORD_AUDIO)
+    private void recover(String reason) {
+        Log.e("Recovering the capture: " + reason);
+        mRecoveryRequested = false;
+        long timeNanos = System.nanoTime();
+        if (timeNanos - mRecoveryTimeNanos > RECOVERY_BACKOFF_RESET_MILLIS * 1000000L) {
+            mRecoveryBackoffMillis = RECOVERY_MIN_BACKOFF_MILLIS;
+        }
+        mRecoveryTimeNanos = timeNanos;
+        while (!mStopRequested) {
+            synchronized (mRecoveryLock) {
+                try {
+                    if (!mStopRequested) {
+                        mRecoveryLock.wait(mRecoveryBackoffMillis);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            mRecoveryBackoffMillis = Math.min(RECOVERY_MAX_BACKOFF_MILLIS, 2 * mRecoveryBackoffMillis);
+            // Stopping (or releasing) the recorder and restarting the capture exclude each other
+            synchronized (this) {
+                if (mStopRequested) {
+                    return;
+                }
+                try {
+                    createRecorder(mAudioSource, mCaptureSampleRate, getBufferSize());
+                    mCaptureFramePosition = 0;
+                    mRecorder.start();
+                    if (mRecorder.isRecording()) {
+                        mMetrics.onRecovery();
+                        mWatchdog.progress();
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    Log.e("Restarting the capture failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends the supervision of the capture, and interrupts a recovery that is waiting for its backoff.
+     */
+    private void requestStop() {
+        mStopRequested = true;
+        if (mWatchdog != null) {
+            mWatchdog.stop();
+        }
+        synchronized (mRecoveryLock) {
+            mRecoveryLock.notifyAll();
+        }
+    }
+
+    /**
+     * Appends the read audio to the recording, and passes it on to the signal processing
+     * and to the listeners.
+     *
+     * @param samples          the audio as samples
+     * @param numOfSamples     number of samples that were read
+     * @param captureTimeNanos capture time of the first sample
+     */
+    private void addToRecording(short[] samples, int numOfSamples, long captureTimeNanos) {
+        if (mFirstReadLatencyNanos < 0) {
+            mFirstReadLatencyNanos = System.nanoTime() - mStartTimeNanos;
+        }
+        AudioFilter audioFilter = mAudioFilter;
+        if (audioFilter != null) {
+            audioFilter.process(samples, 0, numOfSamples);
+        }
+        long position = mRecording.getWritePosition();
+        long samplePosition = position / (RESOLUTION_IN_BYTES * CHANNELS);
+        // Added before the samples, so that the consumers find the time of every sample they can read
+        mCaptureTimeline.add(samplePosition, captureTimeNanos);
+        mRecording.write(samples, 0, numOfSamples);
+        mEnergyTracker.add(samples, 0, numOfSamples);
+        SpeechEndpointer speechEndpointer = mSpeechEndpointer;
+        if (speechEndpointer != null) {
+            speechEndpointer.add(samples, 0, numOfSamples, samplePosition);
+        }
+        if (!mSampleListeners.isEmpty()) {
+            ShortBuffer sampleView = samples == mSamples ? mSampleView : ShortBuffer.wrap(samples).asReadOnlyBuffer();
+            for (AudioSampleListener listener : mSampleListeners) {
+                sampleView.clear();
+                sampleView.limit(numOfSamples);
+                listener.onAudioSamples(sampleView, samplePosition, captureTimeNanos);
+            }
+        }
+        if (!mChunkListeners.isEmpty()) {
+            // The bytes are only needed for the listeners
+            if (mBuffer.length < numOfSamples * RESOLUTION_IN_BYTES) {
+                mBuffer = new byte[numOfSamples * RESOLUTION_IN_BYTES];
+                mBufferAsShorts = ByteBuffer.wrap(mBuffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            }
+            mBufferAsShorts.clear();
+            mBufferAsShorts.put(samples, 0, numOfSamples);
+            dispatchChunk(mBuffer, numOfSamples * RESOLUTION_IN_BYTES, samplePosition, captureTimeNanos);
+        }
+
+        updateMetrics(numOfSamples * RESOLUTION_IN_BYTES);
+
+        // increment the recorded session id in case that the consume pointer was crossed
+        if (isConsumePointerCrossed()) {
+            Log.i("recorder session changed. Recorded position is: " + mRecording.getWritePosition() + " while the consumed position is: " + getConsumedPosition());
+            markNewRecordingSession();
+        }
     }
 
 
@@ -260,7 +901,7 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
      * @return bytes that have been recorded since the beginning
      */
     public byte[] getCompleteRecording() {
-        return getCurrentRecording(0);
+        return getCurrentRecording(mRecording.getOldestPosition(), mRecording.getWritePosition());
     }
 
 
@@ -277,60 +918,302 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
     }
 
     /**
+     * Does not block the recorder thread. Must be called from a single (consumer) thread at a time.
+     *
      * @return bytes that have been recorded since this method was last called
      */
-    public synchronized byte[] consumeRecording() {
-        byte[] bytes = getCurrentRecording(mConsumedLength);
+    public byte[] consumeRecording() {
+        // The session id must be read before the recording, so that a session change
+        // that happens during the copying would be noticed by the next call.
+        long recordedSessionId = mRecordedSessionId.get();
+        // The end of the returned bytes is fixed here, so that no bytes are skipped if the
+        // recorder moves on while the bytes are being copied.
+        long end = mRecording.getWritePosition();
+        long start = getConsumeStartPosition(end);
+        if (start < 0)
+            return null;
+        byte[] bytes = getCurrentRecording(start, end);
         if (bytes == null)
             return null;
 
-        // this is to avoid race (set the consumed length to be the recorded length though
-        // the last recording was empty while recorded length moved on - thus we always miss
-        // a part of the recording)
-        mConsumedLength = mRecordedLength;
-        mConsumedSessionId.set(mRecordedSessionId.get());
+        mRecording.setReadPosition(end);
+        mConsumedSessionId.set(recordedSessionId);
+        recordConsumeLatency(end, bytes.length);
         return bytes;
     }
 
-    protected byte[] getCurrentRecording(int startPos) {
-        int len = getLength() - startPos;
-        byte[] bytes = new byte[len];
-        System.arraycopy(mRecording, startPos, bytes, 0, len);
+    public int consumeRecording(byte[] dst, int off, int len) {
+        long recordedSessionId = mRecordedSessionId.get();
+        long end = mRecording.getWritePosition();
+        long start = getConsumeStartPosition(end);
+        if (start < 0)
+            return 0;
+        start = Math.max(start, mRecording.getOldestPosition());
+        int numOfBytes = (int) Math.min(len, end - start);
+        if (mRecording.read(start, dst, off, numOfBytes) < 0)
+            return -1;
+
+        mRecording.setReadPosition(start + numOfBytes);
+        mConsumedSessionId.set(recordedSessionId);
+        recordConsumeLatency(start + numOfBytes, numOfBytes);
+        return numOfBytes;
+    }
+
+    public int consumeRecording(ByteBuffer dst) {
+        if (dst.hasArray()) {
+            int numOfBytes = consumeRecording(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (numOfBytes > 0)
+                dst.position(dst.position() + numOfBytes);
+            return numOfBytes;
+        }
+        long recordedSessionId = mRecordedSessionId.get();
+        long end = mRecording.getWritePosition();
+        long start = getConsumeStartPosition(end);
+        if (start < 0)
+            return 0;
+        start = Math.max(start, mRecording.getOldestPosition());
+        int numOfBytes = (int) Math.min(dst.remaining(), end - start);
+        if (mRecording.read(start, dst, numOfBytes) < 0)
+            return -1;
+
+        mRecording.setReadPosition(start + numOfBytes);
+        mConsumedSessionId.set(recordedSessionId);
+        recordConsumeLatency(start + numOfBytes, numOfBytes);
+        return numOfBytes;
+    }
+
+    /**
+     * Writes the recording into the given channel (e.g. a file) straight from the recording buffer.
+     * Must be called from a single (consumer) thread at a time.
+     *
+     * @return number of bytes written since the last consumption, or -1 if the recording was
+     * overwritten while writing
+     */
+    public int consumeRecording(WritableByteChannel dst) throws IOException {
+        long recordedSessionId = mRecordedSessionId.get();
+        long end = mRecording.getWritePosition();
+        long start = getConsumeStartPosition(end);
+        if (start < 0)
+            return 0;
+        start = Math.max(start, mRecording.getOldestPosition());
+        int numOfBytes = (int) (end - start);
+        if (mRecording.read(start, dst, numOfBytes) < 0)
+            return -1;
+
+        mRecording.setReadPosition(end);
+        mConsumedSessionId.set(recordedSessionId);
+        recordConsumeLatency(end, numOfBytes);
+        return numOfBytes;
+    }
+
+    public int available() {
+        long end = mRecording.getWritePosition();
+        long start = getConsumeStartPosition(end);
+        if (start < 0)
+            return 0;
+        return (int) (end - Math.max(start, mRecording.getOldestPosition()));
+    }
+
+    /**
+     * Subclasses can override this to decide where the consumption continues from,
+     * e.g. after the recorder has overtaken the consumer.
+     *
+     * @param endPos absolute position (in bytes) up to which the recording is going to be consumed
+     * @return absolute position (in bytes) from which the consumption continues,
+     * or -1 if there is nothing to consume
+     */
+    protected long getConsumeStartPosition(long endPos) {
+        return getConsumedPosition();
+    }
+
+    /**
+     * @param startPos absolute position (in bytes) of the first byte to copy
+     * @param endPos   absolute position (in bytes) after the last byte to copy
+     * @return bytes in the given range, or null if the bytes were overwritten by the recorder
+     */
+    protected byte[] getCurrentRecording(long startPos, long endPos) {
+        startPos = Math.max(startPos, mRecording.getOldestPosition());
+        byte[] bytes = new byte[(int) Math.max(0, endPos - startPos)];
+        if (mRecording.read(startPos, bytes, 0, bytes.length) < 0) {
+            Log.e("Recording was overwritten while copying from pos: " + startPos);
+            return null;
+        }
         Log.i("Copied (raw) from pos: " + startPos + ", bytes: " + bytes.length);
         return bytes;
     }
 
-    protected int getConsumedLength() {
-        return mConsumedLength;
+    protected long getConsumedPosition() {
+        return mRecording.getReadPosition();
+    }
+
+    /**
+     * @return position of the next sample to consume, i.e. the number of samples consumed so far
+     */
+    public long getConsumedSamplePosition() {
+        return getConsumedPosition() / (RESOLUTION_IN_BYTES * CHANNELS);
+    }
+
+    /**
+     * @param samplePosition position of a recently recorded sample
+     * @return time (System.nanoTime) when the sample was captured, or -1 if nothing has been recorded
+     */
+    public long getCaptureTimeNanos(long samplePosition) {
+        return mCaptureTimeline.getCaptureTimeNanos(samplePosition);
+    }
+
+    /**
+     * Should be called by the consumer once it has sent (e.g. uploaded) the audio, to track the
+     * latency from the capture to the sending.
+     *
+     * @param samplePosition position after the last sent sample
+     */
+    public void markSent(long samplePosition) {
+        recordLatency(mSendLatency, samplePosition - 1);
+    }
+
+    /**
+     * @return histogram of the latencies from the capture of the last sample of a consumed chunk
+     * to its consumption
+     */
+    public LatencyHistogram getConsumeLatency() {
+        return mConsumeLatency;
+    }
+
+    /**
+     * @return histogram of the latencies from the capture of the last sample of a sent chunk
+     * to its sending, see {@link #markSent}
+     */
+    public LatencyHistogram getSendLatency() {
+        return mSendLatency;
     }
 
-    protected void setConsumedLength(int len) {
-        mConsumedLength = len;
+    /**
+     * @return health metrics of the recorder, e.g. to take a snapshot of them
+     */
+    public RecorderMetrics getMetrics() {
+        return mMetrics;
     }
 
-    protected void setRecordedLength(int len) {
-        mRecordedLength = len;
+    /**
+     * Updates the buffer gauges after the given number of bytes has been added to the recording.
+     */
+    private void updateMetrics(int numOfBytes) {
+        long writePos = mRecording.getWritePosition();
+        long readPos = mRecording.getReadPosition();
+        long oldestPos = mRecording.getOldestPosition();
+        int numOfOverwritten = mRecording.isOverwrite() ? (int) Math.min(numOfBytes, Math.max(0, oldestPos - readPos)) : 0;
+        mMetrics.onRecorded(mRecording.capacity(), (int) (writePos - Math.max(readPos, oldestPos)), writePos - readPos, numOfOverwritten);
     }
 
+    /**
+     * @param endPos     absolute position (in bytes) after the last consumed byte
+     * @param numOfBytes number of consumed bytes
+     */
+    protected void recordConsumeLatency(long endPos, int numOfBytes) {
+        if (numOfBytes > 0) {
+            recordLatency(mConsumeLatency, endPos / (RESOLUTION_IN_BYTES * CHANNELS) - 1);
+        }
+    }
+
+    protected void recordLatency(LatencyHistogram histogram, long samplePosition) {
+        long captureTimeNanos = mCaptureTimeline.getCaptureTimeNanos(samplePosition);
+        if (captureTimeNanos >= 0) {
+            histogram.record(System.nanoTime() - captureTimeNanos);
+        }
+    }
+
+    /**
+     * @return number of recorded bytes that are currently available
+     */
     public int getLength() {
-        return mRecordedLength;
+        return (int) (mRecording.getWritePosition() - mRecording.getOldestPosition());
+    }
+
+    /**
+     * Sets the voice activity detector, which is then evaluated on the recorder thread on every
+     * frame of the given length, and determines the speech start and end positions, and the pausing.
+     * Should be called before the recording is started.
+     *
+     * @param vad               voice activity detector
+     * @param frameLengthMillis length of the frames in milliseconds (10, 20 or 30)
+     */
+    public void setVoiceActivityDetector(VoiceActivityDetector vad, int frameLengthMillis) {
+        setVoiceActivityDetector(vad, frameLengthMillis, DEFAULT_SPEECH_ONSET_MILLIS, DEFAULT_SPEECH_HANGOVER_MILLIS);
     }
 
     /**
+     * @param onsetMillis    minimum length of speech that starts the speech
+     * @param hangoverMillis minimum length of non-speech that ends the speech
+     */
+    public void setVoiceActivityDetector(VoiceActivityDetector vad, int frameLengthMillis, int onsetMillis, int hangoverMillis) {
+        if (frameLengthMillis != 10 && frameLengthMillis != 20 && frameLengthMillis != 30) {
+            throw new IllegalArgumentException("VAD frame length must be 10, 20 or 30 ms: " + frameLengthMillis);
+        }
+        int frameLength = mSampleRate * CHANNELS * frameLengthMillis / 1000;
+        mSpeechEndpointer = new SpeechEndpointer(vad, frameLength, onsetMillis / frameLengthMillis, hangoverMillis / frameLengthMillis);
+    }
+
+    /**
+     * @return true iff a voice activity detector has been set, which is then kept (and reset by
+     * {@link #reset}) for the following recordings
+     */
+    public boolean hasVoiceActivityDetector() {
+        return mSpeechEndpointer != null;
+    }
+
+    /**
+     * Sets the filter (e.g. an AudioFilterChain of a high-pass filter, a noise gate, an AGC and a
+     * limiter) that processes the samples in place on the recorder thread, right after every read,
+     * i.e. before they are recorded, analyzed (VAD, energy) and passed to the listeners.
+     * The processing is then done once for all the consumers.
+     *
+     * @param audioFilter filter, or null to record the audio as it was read
+     */
+    public void setAudioFilter(AudioFilter audioFilter) {
+        mAudioFilter = audioFilter;
+    }
+
+    /**
+     * @return sample position where the (last) speech started, or -1 if no speech has been detected
+     * (or there is no voice activity detector)
+     */
+    public long getSpeechStartPosition() {
+        SpeechEndpointer speechEndpointer = mSpeechEndpointer;
+        return speechEndpointer == null ? -1 : speechEndpointer.getSpeechStartPosition();
+    }
+
+    /**
+     * @return sample position where the (last) speech ended, or -1 if the speech has not ended
+     * (or there is no voice activity detector)
+     */
+    public long getSpeechEndPosition() {
+        SpeechEndpointer speechEndpointer = mSpeechEndpointer;
+        return speechEndpointer == null ? -1 : speechEndpointer.getSpeechEndPosition();
+    }
+
+    /**
+     * If a voice activity detector has been set, then the pause is the end of speech that it detected.
+     * Otherwise the energy of the last second is compared to the energy of the earlier seconds.
+     *
      * @return <code>true</code> iff a speech-ending pause has occurred at the end of the recorded data
      */
     public boolean isPausing() {
+        SpeechEndpointer speechEndpointer = mSpeechEndpointer;
+        if (speechEndpointer != null) {
+            return speechEndpointer.getSpeechEndPosition() >= 0;
+        }
         double pauseScore = getPauseScore();
         Log.i("Pause score: " + pauseScore);
         return pauseScore > 7;
     }
 
     /**
+     * Constant-time, can be called from any thread.
+     *
      * @return volume indicator that shows the average volume of the last read buffer
      */
     public float getRmsdb() {
-        long sumOfSquares = getRms(mRecordedLength, mBuffer.length);
-        double rootMeanSquare = Math.sqrt(sumOfSquares / (mBuffer.length / 2));
+        double rootMeanSquare = Math.sqrt(mEnergyTracker.getChunkMeanSquare());
         if (rootMeanSquare > 1) {
             // TODO: why 10?
             return (float) (10 * Math.log10(rootMeanSquare));
@@ -350,7 +1233,7 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
      * @return positive value which the caller can use to determine if there is a pause
      */
     private double getPauseScore() {
-        long t2 = getRms(mRecordedLength, mSamplesInOneSec);
+        long t2 = mEnergyTracker.getWindowSumOfSquares();
         if (t2 == 0) {
             return 0;
         }
@@ -361,33 +1244,181 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
 
     /**
      * <p>Stops the recording (if needed) and releases the resources.
-     * The object can no longer be used and the reference should be
+     * The object can no longer be used (unless it is reset) and the reference should be
      * set to null after a call to release().</p>
+     * <p>In the warm-start mode, the AudioRecord is only stopped, and kept for the next recording.</p>
      */
     public synchronized void release() {
+        requestStop();
         if (mRecorder != null) {
-            if (mRecorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+            if (mRecorder.isRecording()) {
                 stop();
             }
+            if (mWarmStart && isRecorderInitialized()) {
+                mParked = true;
+            } else {
+                releaseRecorder();
+            }
+        } else if (!mEngine.isEngineThread()) {
+            // The recorder was already released on the recorder thread (after an error)
+            mEngine.quit();
+        }
+    }
+
+    private synchronized void releaseRecorder() {
+        if (mRecorder != null) {
             mRecorder.release();
             mRecorder = null;
         }
+        mParked = false;
+        // Unless it runs a recording (which then finishes), the thread is not needed anymore
+        if (!mEngine.isEngineThread()) {
+            mEngine.quit();
+        }
+    }
+
+    /**
+     * <p>Sets the warm-start mode, in which {@link #release} keeps the initialized AudioRecord
+     * (and its audio session, e.g. the effects that have been attached to it), and {@link #reset}
+     * reuses it, i.e. the next recording starts without creating the AudioRecord.
+     * The kept AudioRecord is stopped, i.e. the microphone is not used between the recordings.</p>
+     * <p>Switching the mode off releases the kept AudioRecord.</p>
+     */
+    public synchronized void setWarmStart(boolean warmStart) {
+        mWarmStart = warmStart;
+        if (!warmStart && mParked) {
+            releaseRecorder();
+        }
+    }
+
+    public boolean isWarmStart() {
+        return mWarmStart;
+    }
+
+    /**
+     * @return time in nanoseconds that it took to create the AudioRecord of the current recording,
+     * 0 if a kept AudioRecord was reused
+     */
+    public long getInitTimeNanos() {
+        return mInitTimeNanos;
+    }
+
+    /**
+     * @return time in nanoseconds from the start of the recording to the first read from the
+     * AudioRecord, or -1 if nothing has been read yet
+     */
+    public long getFirstReadLatencyNanos() {
+        return mFirstReadLatencyNanos;
+    }
+
+    /**
+     * <p>Prepares a stopped (or released) recorder for a new recording, and sets the state to READY.
+     * The recording buffers, the read buffers and the voice activity detector are reused, i.e. a
+     * back-to-back recording does not allocate them again. The previous recording is dropped,
+     * and the positions start from zero again.
+     * In case of errors, no exception is thrown, but the state is set to ERROR.</p>
+     */
+    @RequiresPermission(RECORD_AUDIO)
+    public void reset() {
+        if (mRecorder != null && mRecorder.isRecording()) {
+            stop();
+        }
+        // The buffers can be reset only once the previous recording has stopped writing into them
+        if (!mEngine.join(JOIN_TIMEOUT_MILLIS)) {
+            handleError("recorder thread did not finish");
+            return;
+        }
+        clearRecording();
+        mCaptureTimeline.reset();
+        mRecordedSessionId.set(0);
+        mConsumedSessionId.set(0);
+        mEnergyTracker.reset();
+        mAvgEnergy = 0;
+        if (mResampler != null) {
+            mResampler.reset();
+        }
+        if (mChannelMixer != null) {
+            mChannelMixer.reset();
+        }
+        AudioFilter audioFilter = mAudioFilter;
+        if (audioFilter != null) {
+            audioFilter.reset();
+        }
+        SpeechEndpointer speechEndpointer = mSpeechEndpointer;
+        if (speechEndpointer != null) {
+            speechEndpointer.reset();
+        }
+        try {
+            // The AudioRecord is kept e.g. in the warm-start mode
+            if (isRecorderInitialized()) {
+                mParked = false;
+                mInitTimeNanos = 0;
+            } else {
+                createRecorder(mAudioSource, mCaptureSampleRate, getBufferSize());
+            }
+            setState(State.READY);
+        } catch (Exception e) {
+            if (e.getMessage() == null) {
+                handleError("Unknown error occurred while resetting recorder");
+            } else {
+                handleError(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drops the recording of a released recorder, e.g. one that is kept for reuse, so that it does not
+     * hold the recorded audio (the blocks are returned to the pool) until it is reset.
+     * Does not wait for the recorder thread: if it is still finishing the recording, then the
+     * recording is dropped on that thread once it has finished.
+     */
+    public void discardRecording() {
+        mEngine.runAfterSession(new Runnable() {
+            @Override
+            public void run() {
+                clearRecording();
+            }
+        });
+    }
+
+    /**
+     * @return true iff the recorder thread is not running a recording, i.e. {@link #reset} does not
+     * need to wait for it
+     */
+    public boolean isIdle() {
+        return !mEngine.isRunning();
+    }
+
+    /**
+     * Empties the recording buffers, called by {@link #reset} once the recorder thread has finished.
+     */
+    protected void clearRecording() {
+        mRecording.clear();
     }
 
     /**
      * <p>Starts the recording, and sets the state to RECORDING.</p>
      */
     public void start() {
-        if (getSpeechRecordState() == AudioRecord.STATE_INITIALIZED) {
-            mRecorder.startRecording();
-            if (mRecorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+        if (isRecorderInitialized()) {
+            if (mRecorder.getChannelCount() != getNumOfCaptureChannels()) {
+                handleError("audio source has " + mRecorder.getChannelCount() + " channels, expected " + getNumOfCaptureChannels());
+                return;
+            }
+            mStartTimeNanos = System.nanoTime();
+            mFirstReadLatencyNanos = -1;
+            mCaptureFramePosition = 0;
+            mStopRequested = false;
+            mRecoveryRequested = false;
+            mRecorder.start();
+            if (mRecorder.isRecording()) {
                 setState(State.RECORDING);
-                new Thread() {
-                    @RequiresPermission(RECORD_AUDIO)
-                    public void run() {
-                        recorderLoop(mRecorder);
-                    }
-                }.start();
+                if (mWatchdog != null) {
+                    mWatchdog.start();
+                }
+                if (!mEngine.start(mRecorderLoop)) {
+                    handleError("previous recording has not finished");
+                }
             } else {
                 handleError("startRecording() failed");
             }
@@ -401,11 +1432,15 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
      * <p>Stops the recording, and sets the state to STOPPED.
      * If stopping fails then sets the state to ERROR.</p>
      */
-    public void stop() {
+    public synchronized void stop() {
+        requestStop();
         // We check the underlying SpeechRecord state trying to avoid IllegalStateException.
         // If it still occurs then we catch it.
-        if (getSpeechRecordState() == AudioRecord.STATE_INITIALIZED &&
-                mRecorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+        // A source that is not a microphone (e.g. a replayed file) can stop by itself while recording,
+        // and the capture might be between the restarts of a recovery.
+        if (getState() == State.RECORDING && mAlwaysListen && !isRecorderInitialized()) {
+            setState(State.STOPPED);
+        } else if (isRecorderInitialized() && (mRecorder.isRecording() || getState() == State.RECORDING)) {
             try {
                 mRecorder.stop();
                 setState(State.STOPPED);
@@ -418,59 +1453,69 @@ public abstract class AbstractAudioRecorder implements AudioRecorder {
     }
 
     @RequiresPermission(RECORD_AUDIO)
-    protected void recorderLoop(AudioRecord recorder) {
-        while (recorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
-            int status = read(recorder, mBuffer);
+    protected void recorderLoop(AudioSource recorder) {
+        // The watchdog might have stopped the AudioRecord between the reads, then the next read restarts it
+        while (recorder != null && (recorder.isRecording() || mRecoveryRequested)) {
+            int status = read(recorder, mSamples);
             if (status < 0) {
                 handleError("status = " + status);
                 break;
             }
+            // The AudioRecord is replaced if it had to be restarted
+            recorder = mRecorder;
         }
     }
 
 
-    private long getRms(int end, int span) {
-        int begin = end - span;
-        if (begin < 0) {
-            begin = 0;
-        }
-        // make sure begin is even
-        if (0 != (begin % 2)) {
-            begin++;
-        }
-
-        long sum = 0;
-        for (int i = begin; i < end; i += 2) {
-            short curSample = getShort(mRecording[i], mRecording[i + 1]);
-            sum += curSample * curSample;
+    private void dispatchChunk(byte[] buffer, int numOfBytes, long samplePosition, long timeNanos) {
+        ByteBuffer copy = null;
+        for (final ChunkListenerRegistration registration : mChunkListeners) {
+            if (registration.mExecutor == null) {
+                registration.mListener.onAudioChunk(getChunkView(buffer, numOfBytes), samplePosition, timeNanos);
+            } else {
+                // The buffer is overwritten by the next read, so the executor gets a copy,
+                // which is shared by all the listeners with an executor.
+                if (copy == null) {
+                    copy = ByteBuffer.wrap(Arrays.copyOf(buffer, numOfBytes)).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+                }
+                final ByteBuffer chunk = copy.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                registration.mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.mListener.onAudioChunk(chunk, samplePosition, timeNanos);
+                    }
+                });
+            }
         }
-        return sum;
     }
 
-
-    /*
-     * Converts two bytes to a short (assuming little endian).
-     * TODO: We don't need the whole short, just take the 2nd byte (the more significant one)
-     * TODO: Most Android devices are little endian?
-     */
-    private static short getShort(byte argB1, byte argB2) {
-        //if (ByteOrder.nativeOrder().equals(ByteOrder.BIG_ENDIAN)) {
-        //    return (short) ((argB1 << 8) | argB2);
-        //}
-        return (short) (argB1 | (argB2 << 8));
+    private ByteBuffer getChunkView(byte[] buffer, int numOfBytes) {
+        if (mChunkViewArray != buffer) {
+            mChunkView = ByteBuffer.wrap(buffer).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+            mChunkViewArray = buffer;
+        }
+        mChunkView.clear();
+        mChunkView.limit(numOfBytes);
+        return mChunkView;
     }
 
-
     protected void handleError(String msg) {
         release();
         setState(State.ERROR);
         Log.e(msg);
     }
 
-    private int getSpeechRecordState() {
-        if (mRecorder == null) {
-            return AudioRecord.STATE_UNINITIALIZED;
+    private static class ChunkListenerRegistration {
+        private final AudioChunkListener mListener;
+        private final Executor mExecutor;
+
+        private ChunkListenerRegistration(AudioChunkListener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
         }
-        return mRecorder.getState();
+    }
+
+    private boolean isRecorderInitialized() {
+        return mRecorder != null && mRecorder.isInitialized();
     }
 }
\ No newline at end of file
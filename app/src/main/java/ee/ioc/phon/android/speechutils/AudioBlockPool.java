@@ -0,0 +1,64 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.util.ArrayDeque;
+
+/**
+ * <p>Pool of fixed-size byte blocks, from which the segmented audio buffers take their memory
+ * and to which they return it once the audio in a block is no longer needed.</p>
+ * <p>
+ * Blocks are allocated only if the pool is empty, and at most the given number of free blocks are
+ * kept, the rest is left to the garbage collector. Thread-safe.
+ * </p>
+ */
+public class AudioBlockPool {
+
+    private final int mBlockSize;
+    private final int mMaxFreeBlocks;
+    private final ArrayDeque<byte[]> mFreeBlocks = new ArrayDeque<>();
+
+    /**
+     * @param blockSize     size of a block in bytes, a power of two
+     * @param maxFreeBlocks maximum number of free blocks that are kept for reuse
+     */
+    public AudioBlockPool(int blockSize, int maxFreeBlocks) {
+        if (blockSize < 2 || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Block size must be a power of two: " + blockSize);
+        }
+        mBlockSize = blockSize;
+        mMaxFreeBlocks = maxFreeBlocks;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * @return a free block, whose content is undefined
+     */
+    public byte[] acquire() {
+        synchronized (mFreeBlocks) {
+            byte[] block = mFreeBlocks.pollLast();
+            if (block != null) {
+                return block;
+            }
+        }
+        return new byte[mBlockSize];
+    }
+
+    public void release(byte[] block) {
+        synchronized (mFreeBlocks) {
+            if (mFreeBlocks.size() < mMaxFreeBlocks) {
+                mFreeBlocks.addLast(block);
+            }
+        }
+    }
+
+    /**
+     * @return number of free blocks in the pool
+     */
+    public int getNumOfFreeBlocks() {
+        synchronized (mFreeBlocks) {
+            return mFreeBlocks.size();
+        }
+    }
+}
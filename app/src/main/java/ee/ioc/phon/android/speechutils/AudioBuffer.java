@@ -0,0 +1,250 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * <p>Single-producer/single-consumer store of audio bytes, written by the recorder thread and
+ * consumed by the client.</p>
+ * <p>
+ * All positions are absolute byte offsets since the creation of the buffer and grow monotonically.
+ * The producer owns the write position, the consumer owns the read and start positions.
+ * Each position is published with an ordered store, so that the bytes written before the position
+ * was advanced are visible to the other side once it observes the new position.
+ * </p>
+ * <p>
+ * Besides the consumer, any number of {@link AudioCursor}s can read the buffer, each at its own
+ * position. A buffer that releases the consumed audio keeps the audio until the slowest of them
+ * (and the consumer) has passed it. The consumer and the cursors can read concurrently, each on
+ * its own thread.
+ * </p>
+ */
+public abstract class AudioBuffer {
+
+    // Total number of bytes written, updated by the producer
+    final Sequence mWritePosition = new Sequence();
+    // Position up to which the consumer has consumed the data
+    final Sequence mReadPosition = new Sequence();
+    // Beginning of the current recording, moved by the consumer when the recording is truncated
+    final Sequence mStartPosition = new Sequence();
+
+    private final List<AudioCursor> mCursors = new CopyOnWriteArrayList<>();
+
+    // Length of the longest write so far, updated by the producer of an overwriting buffer
+    private volatile int mMaxWriteLength = 0;
+
+    /**
+     * @return maximum number of bytes that the buffer can hold
+     */
+    public abstract int capacity();
+
+    /**
+     * @return true iff the producer overwrites the oldest data if the buffer is full
+     */
+    public abstract boolean isOverwrite();
+
+    /**
+     * @return position of the oldest byte that is still available in the buffer
+     */
+    public abstract long getOldestPosition();
+
+    /**
+     * @return number of bytes that the producer can still write without overwriting the recording
+     */
+    public abstract int remaining();
+
+    /**
+     * Appends the given bytes. Called only by the producer.
+     *
+     * @return false if the buffer did not have enough room for the bytes (and nothing was written),
+     * can happen only in the non-overwrite mode
+     */
+    public abstract boolean write(byte[] src, int off, int len);
+
+    /**
+     * Appends the given 16-bit samples as little-endian bytes. Called only by the producer.
+     *
+     * @param len number of samples
+     * @return false if the buffer did not have enough room for the samples (and nothing was written),
+     * can happen only in the non-overwrite mode
+     */
+    public abstract boolean write(short[] src, int off, int len);
+
+    /**
+     * Copies the bytes starting at the given absolute position into the given array.
+     * Called by the consumer and by the cursors. Does not change the read position.
+     *
+     * @return number of bytes copied, or -1 if the bytes were not available or were overwritten
+     * (or released) by the producer while they were being copied
+     */
+    public abstract int read(long position, byte[] dst, int off, int len);
+
+    /**
+     * Copies the bytes starting at the given absolute position into the given buffer (starting at
+     * its current position, which is advanced). Called by the consumer and by the cursors.
+     *
+     * @return number of bytes copied, or -1 if the bytes were not available or were overwritten
+     * (or released) by the producer while they were being copied (in which case the content of the buffer is undefined)
+     */
+    public abstract int read(long position, ByteBuffer dst, int len);
+
+    /**
+     * Writes the bytes starting at the given absolute position into the given channel (e.g. a file),
+     * without copying them into an intermediate array. Called by the consumer and by the cursors.
+     *
+     * @return number of bytes written, or -1 if the bytes were not available or were overwritten
+     * (or released) by the producer while they were being written (in which case the written content is undefined)
+     */
+    public abstract int read(long position, WritableByteChannel dst, int len) throws IOException;
+
+    /**
+     * Copies the 16-bit samples starting at the given absolute (even) byte position into the given
+     * array. Called by the consumer and by the cursors.
+     *
+     * @param len number of samples
+     * @return number of samples copied, or -1 if the samples were not available or were overwritten
+     * (or released) by the producer while they were being copied
+     */
+    public abstract int read(long position, short[] dst, int off, int len);
+
+    public long getWritePosition() {
+        return mWritePosition.get();
+    }
+
+    public long getReadPosition() {
+        return mReadPosition.get();
+    }
+
+    public long getStartPosition() {
+        return mStartPosition.get();
+    }
+
+    public void setReadPosition(long position) {
+        mReadPosition.setOrdered(position);
+    }
+
+    /**
+     * Drops the recording up to the given position, i.e. the recording and its consumption
+     * continue from this position.
+     */
+    public void truncate(long position) {
+        mStartPosition.setOrdered(position);
+        mReadPosition.setOrdered(position);
+    }
+
+    /**
+     * Empties the buffer for reuse, i.e. all the positions (also of the cursors) start from zero again.
+     * Must not be called while the producer or the consumers are using the buffer.
+     */
+    public void clear() {
+        mWritePosition.setOrdered(0);
+        mReadPosition.setOrdered(0);
+        mStartPosition.setOrdered(0);
+        for (AudioCursor cursor : mCursors) {
+            cursor.rewind();
+        }
+    }
+
+    /**
+     * Opens a cursor that reads the buffer from the given position.
+     *
+     * @throws IllegalArgumentException if a cursor with the given name is already open
+     */
+    public AudioCursor openCursor(String name, long position) {
+        if (getCursor(name) != null) {
+            throw new IllegalArgumentException("Cursor is already open: " + name);
+        }
+        AudioCursor cursor = new AudioCursor(name, this, position);
+        mCursors.add(cursor);
+        return cursor;
+    }
+
+    /**
+     * @return open cursor with the given name, or null if there is none
+     */
+    public AudioCursor getCursor(String name) {
+        for (AudioCursor cursor : mCursors) {
+            if (cursor.getName().equals(name)) {
+                return cursor;
+            }
+        }
+        return null;
+    }
+
+    void removeCursor(AudioCursor cursor) {
+        mCursors.remove(cursor);
+    }
+
+    /**
+     * @return position from which an overrun reader continues, i.e. the oldest position, or in the
+     * overwrite mode the position past it by the longest write, as the next write overwrites the oldest audio
+     */
+    long getResumePosition() {
+        long position = getOldestPosition();
+        if (isOverwrite()) {
+            position = Math.min(getWritePosition(), position + ((mMaxWriteLength + 1) & ~1));
+        }
+        return position;
+    }
+
+    /**
+     * Called by the producer of an overwriting buffer before every write.
+     */
+    void updateMaxWriteLength(int len) {
+        if (len > mMaxWriteLength) {
+            mMaxWriteLength = len;
+        }
+    }
+
+    /**
+     * @return position up to which the consumer and all the cursors have read the buffer
+     */
+    long getSlowestReadPosition() {
+        long position = mReadPosition.get();
+        for (AudioCursor cursor : mCursors) {
+            position = Math.min(position, cursor.getPosition());
+        }
+        return position;
+    }
+
+    // The padding keeps each position on its own cache line, so that the producer and the consumer
+    // do not invalidate each other's cache lines when updating their positions (false sharing).
+    // Fields of a superclass are laid out before the fields of its subclass.
+
+    static class LeftPadding {
+        protected long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    static class Value extends LeftPadding {
+        volatile long mValue;
+    }
+
+    static class Sequence extends Value {
+        private static final AtomicLongFieldUpdater<Value> VALUE =
+                AtomicLongFieldUpdater.newUpdater(Value.class, "mValue");
+
+        protected long p9, p10, p11, p12, p13, p14, p15;
+
+        long get() {
+            return mValue;
+        }
+
+        /**
+         * Volatile store, i.e. also the stores that follow it cannot become visible before it.
+         */
+        void set(long value) {
+            mValue = value;
+        }
+
+        /**
+         * Store with release semantics, cheaper than a volatile store as no full fence is needed.
+         */
+        void setOrdered(long value) {
+            VALUE.lazySet(this, value);
+        }
+    }
+}
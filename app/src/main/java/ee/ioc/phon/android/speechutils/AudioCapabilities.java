@@ -0,0 +1,86 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Capture capabilities of the device, i.e. the minimum AudioRecord buffer sizes and the supported
+ * sample rates. They depend only on the audio input devices, so they are probed at first use and
+ * cached, instead of querying the audio server whenever a recorder is created.</p>
+ * <p>
+ * The cache is not invalidated automatically: an app that captures from external devices should
+ * call {@link #clear} when the input devices change (e.g. from an AudioDeviceCallback registered
+ * with AudioManager.registerAudioDeviceCallback). A failed query (AudioRecord.ERROR, e.g. the audio
+ * server is not available) is not cached.
+ * </p>
+ */
+public class AudioCapabilities {
+
+    // Rates that are probed by getSupportedSampleRates, 44100 is the only one that is guaranteed to work
+    private static final int[] SAMPLE_RATES = {8000, 11025, 16000, 22050, 32000, 44100, 48000};
+
+    private static final Map<Long, Integer> MIN_BUFFER_SIZES = new ConcurrentHashMap<>();
+    private static final Map<Integer, List<Integer>> SAMPLE_RATES_BY_CHANNEL_MASK = new ConcurrentHashMap<>();
+
+    private AudioCapabilities() {
+    }
+
+    /**
+     * Cached AudioRecord.getMinBufferSize.
+     *
+     * @return minimum buffer size in bytes, or AudioRecord.ERROR_BAD_VALUE if the parameters are not
+     * supported, or AudioRecord.ERROR if the device could not be queried
+     */
+    public static int getMinBufferSize(int sampleRate, int channelMask, int encoding) {
+        long key = ((long) sampleRate << 32) | ((long) channelMask << 8) | encoding;
+        Integer minBufferSize = MIN_BUFFER_SIZES.get(key);
+        if (minBufferSize != null) {
+            return minBufferSize;
+        }
+        int size = AudioRecord.getMinBufferSize(sampleRate, channelMask, encoding);
+        if (size != AudioRecord.ERROR) {
+            MIN_BUFFER_SIZES.put(key, size);
+        }
+        return size;
+    }
+
+    /**
+     * @return sample rates (in increasing order) at which the device can capture 16-bit audio
+     * with the given channel mask
+     */
+    public static List<Integer> getSupportedSampleRates(int channelMask) {
+        List<Integer> sampleRates = SAMPLE_RATES_BY_CHANNEL_MASK.get(channelMask);
+        if (sampleRates != null) {
+            return sampleRates;
+        }
+        List<Integer> supported = new ArrayList<>();
+        boolean isComplete = true;
+        for (int sampleRate : SAMPLE_RATES) {
+            int size = getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+            if (size > 0) {
+                supported.add(sampleRate);
+            } else if (size == AudioRecord.ERROR) {
+                isComplete = false;
+            }
+        }
+        sampleRates = Collections.unmodifiableList(supported);
+        if (isComplete) {
+            SAMPLE_RATES_BY_CHANNEL_MASK.put(channelMask, sampleRates);
+        }
+        return sampleRates;
+    }
+
+    /**
+     * Forgets the probed capabilities, e.g. after an external microphone has been connected.
+     */
+    public static void clear() {
+        MIN_BUFFER_SIZES.clear();
+        SAMPLE_RATES_BY_CHANNEL_MASK.clear();
+    }
+}
@@ -0,0 +1,23 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the recorded audio as soon as the recorder has read it, i.e. without polling
+ * the consume-methods of the recorder.
+ */
+public interface AudioChunkListener {
+
+    /**
+     * <p>Called with every chunk of audio that the recorder has read. Unless the listener was
+     * registered with an executor, the call happens on the recorder thread, must return quickly
+     * and must not keep a reference to the given buffer, as it is reused for the next chunk.</p>
+     *
+     * @param chunk          read-only little-endian view of the recorded bytes (between its position and limit)
+     * @param samplePosition position of the first sample of the chunk, counted in samples
+     *                       since the start of the recorder
+     * @param timeNanos      time (System.nanoTime) when the first sample of the chunk was captured
+     *                       (from the AudioTimestamp if the device reports it, otherwise estimated)
+     */
+    void onAudioChunk(ByteBuffer chunk, long samplePosition, long timeNanos);
+}
@@ -0,0 +1,185 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>Named consumer of a recording with its own read position, so that several consumers (e.g. the
+ * uploader, a WAV archiver and an on-device keyword spotter) can read the same audio independently,
+ * without copying it between them.</p>
+ * <p>
+ * Every cursor must be read by a single thread at a time. A cursor that falls behind the recorder
+ * by more than the buffer holds is overrun: the read returns -1, the cursor continues from the oldest
+ * available audio (in an overwriting buffer from past the audio that the next write overwrites, so
+ * that the cursor is not overrun again right away), and the lost audio is counted. Overrunning one cursor does not affect the others
+ * (nor the consume-methods of the recorder). If the recorder releases the consumed audio, then it is
+ * released only once all the cursors have read it, i.e. a slow cursor holds the memory, and
+ * should be closed when it is not needed anymore.
+ * </p>
+ */
+public class AudioCursor {
+
+    private final String mName;
+    private final AudioBuffer mBuffer;
+    private final AudioBuffer.Sequence mPosition = new AudioBuffer.Sequence();
+
+    private volatile int mNumOfOverruns = 0;
+    private volatile long mNumOfLostBytes = 0;
+
+    AudioCursor(String name, AudioBuffer buffer, long position) {
+        mName = name;
+        mBuffer = buffer;
+        mPosition.setOrdered(position);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return absolute position (in bytes) of the next byte to read
+     */
+    public long getPosition() {
+        return mPosition.get();
+    }
+
+    /**
+     * @return number of bytes that can be read (or -1 if the cursor has been overrun)
+     */
+    public int available() {
+        long position = mPosition.get();
+        if (position < mBuffer.getOldestPosition()) {
+            return -1;
+        }
+        return (int) (mBuffer.getWritePosition() - position);
+    }
+
+    /**
+     * @return number of times the cursor has been overrun
+     */
+    public int getNumOfOverruns() {
+        return mNumOfOverruns;
+    }
+
+    /**
+     * @return number of bytes that the cursor has skipped because of the overruns
+     */
+    public long getNumOfLostBytes() {
+        return mNumOfLostBytes;
+    }
+
+    /**
+     * Moves the cursor to the latest recorded audio, i.e. skips the audio that has not been read.
+     */
+    public void skipToLatest() {
+        mPosition.setOrdered(mBuffer.getWritePosition());
+    }
+
+    /**
+     * @return number of bytes read (0 if there is nothing new), or -1 if the cursor has been overrun
+     */
+    public int read(byte[] dst, int off, int len) {
+        long position = mPosition.get();
+        int numOfBytes = getNumOfBytesToRead(position, len);
+        if (numOfBytes <= 0) {
+            return numOfBytes;
+        }
+        if (mBuffer.read(position, dst, off, numOfBytes) < 0) {
+            return overrun(position);
+        }
+        mPosition.setOrdered(position + numOfBytes);
+        return numOfBytes;
+    }
+
+    /**
+     * Reads into the given buffer (starting at its position, which is advanced).
+     *
+     * @return number of bytes read (0 if there is nothing new), or -1 if the cursor has been overrun
+     */
+    public int read(ByteBuffer dst) {
+        long position = mPosition.get();
+        int numOfBytes = getNumOfBytesToRead(position, dst.remaining());
+        if (numOfBytes <= 0) {
+            return numOfBytes;
+        }
+        if (mBuffer.read(position, dst, numOfBytes) < 0) {
+            return overrun(position);
+        }
+        mPosition.setOrdered(position + numOfBytes);
+        return numOfBytes;
+    }
+
+    /**
+     * Writes all the new audio into the given channel (e.g. a file) straight from the buffer.
+     *
+     * @return number of bytes written (0 if there is nothing new), or -1 if the cursor has been overrun
+     */
+    public int read(WritableByteChannel dst) throws IOException {
+        long position = mPosition.get();
+        int numOfBytes = getNumOfBytesToRead(position, Integer.MAX_VALUE);
+        if (numOfBytes <= 0) {
+            return numOfBytes;
+        }
+        if (mBuffer.read(position, dst, numOfBytes) < 0) {
+            return overrun(position);
+        }
+        mPosition.setOrdered(position + numOfBytes);
+        return numOfBytes;
+    }
+
+    /**
+     * Reads 16-bit samples, e.g. for a model that works on samples.
+     *
+     * @param len maximum number of samples
+     * @return number of samples read (0 if there is nothing new), or -1 if the cursor has been overrun
+     */
+    public int read(short[] dst, int off, int len) {
+        long position = mPosition.get();
+        int numOfSamples = getNumOfBytesToRead(position, 2 * len) / 2;
+        if (numOfSamples <= 0) {
+            return numOfSamples;
+        }
+        if (mBuffer.read(position, dst, off, numOfSamples) < 0) {
+            return overrun(position);
+        }
+        mPosition.setOrdered(position + 2L * numOfSamples);
+        return numOfSamples;
+    }
+
+    /**
+     * Stops reading, after which the cursor does not hold the audio anymore.
+     */
+    public void close() {
+        mBuffer.removeCursor(this);
+    }
+
+    /**
+     * Called by the buffer when it is cleared.
+     */
+    void rewind() {
+        mPosition.setOrdered(0);
+    }
+
+    /**
+     * @return number of bytes to read from the given position, or -1 if the position has been overrun
+     */
+    private int getNumOfBytesToRead(long position, int len) {
+        if (position < mBuffer.getOldestPosition()) {
+            return overrun(position);
+        }
+        return (int) Math.min(len, mBuffer.getWritePosition() - position);
+    }
+
+    /**
+     * Moves the cursor from the given (overwritten) position to the oldest audio that can be read.
+     */
+    private int overrun(long position) {
+        long resumePosition = mBuffer.getResumePosition();
+        Log.i("Cursor " + mName + " overrun at " + position + ", continues from " + resumePosition);
+        mNumOfOverruns++;
+        mNumOfLostBytes += Math.max(0, resumePosition - position);
+        mPosition.setOrdered(Math.max(position, resumePosition));
+        return -1;
+    }
+}
@@ -0,0 +1,169 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.os.Process;
+
+/**
+ * <p>Thread on which a recorder captures the audio, one recording session at a time.</p>
+ * <p>
+ * The thread is created once and reused by the following sessions (e.g. after a restart of the
+ * recorder), i.e. there is never more than one capture thread per recorder. It runs at the
+ * urgent audio priority, so that under CPU contention it is scheduled ahead of the other threads
+ * of the app, and the AudioRecord buffer does not overrun.
+ * </p>
+ */
+class AudioEngine {
+
+    private final String mName;
+
+    // Guarded by this
+    private Thread mThread;
+    private Runnable mSession;
+    private Runnable mAfterSession;
+    private boolean mRunning = false;
+    private boolean mQuit = false;
+
+    AudioEngine(String name) {
+        mName = name;
+    }
+
+    /**
+     * Runs the given session on the engine thread, starting the thread if needed.
+     *
+     * @return false if the previous session is still running (and the given one is not started)
+     */
+    synchronized boolean start(Runnable session) {
+        if (mRunning) {
+            return false;
+        }
+        mSession = session;
+        mRunning = true;
+        mQuit = false;
+        if (mThread == null || !mThread.isAlive()) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, mName);
+            mThread.start();
+        } else {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * @return true iff a session is running
+     */
+    synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return true iff the calling thread is the engine thread
+     */
+    synchronized boolean isEngineThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Waits until the current session (if any) has finished. The session itself must be stopped
+     * first, e.g. by stopping the AudioRecord.
+     *
+     * @return true if no session is running
+     */
+    synchronized boolean join(long timeoutMillis) {
+        if (isEngineThread()) {
+            return !mRunning;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (mRunning) {
+                long millisLeft = deadline - System.currentTimeMillis();
+                if (millisLeft <= 0) {
+                    break;
+                }
+                wait(millisLeft);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !mRunning;
+    }
+
+    /**
+     * Runs the given task once the current session has finished, on the engine thread, or right away
+     * on the calling thread if no session is running, i.e. without waiting for the session.
+     * The task is run before the session counts as finished (see {@link #join}).
+     */
+    void runAfterSession(Runnable task) {
+        synchronized (this) {
+            if (mRunning) {
+                mAfterSession = task;
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Lets the thread finish once the current session (if any) has finished.
+     * A later {@link #start} creates a new thread.
+     */
+    synchronized void quit() {
+        mQuit = true;
+        notifyAll();
+    }
+
+    private void loop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        while (true) {
+            Runnable session;
+            synchronized (this) {
+                while (mSession == null && !mQuit) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        mQuit = true;
+                    }
+                }
+                if (mSession == null) {
+                    mThread = null;
+                    return;
+                }
+                session = mSession;
+                mSession = null;
+            }
+            try {
+                session.run();
+            } finally {
+                finishSession();
+            }
+        }
+    }
+
+    /**
+     * Runs the task that was given while the session was running (if any), and then marks the session
+     * as finished. The session is marked finished under the same lock under which no task was found,
+     * i.e. a task is never left for the next session.
+     */
+    private void finishSession() {
+        while (true) {
+            Runnable afterSession;
+            synchronized (this) {
+                afterSession = mAfterSession;
+                mAfterSession = null;
+                if (afterSession == null) {
+                    mRunning = false;
+                    notifyAll();
+                    return;
+                }
+            }
+            try {
+                afterSession.run();
+            } catch (RuntimeException e) {
+                Log.e("Task after the session failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ee.ioc.phon.android.speechutils;
+
+/**
+ * <p>Maps the positions in a compacted recording (from which some spans of audio have been removed)
+ * back to the positions in the original recording, e.g. to report the word timestamps returned by
+ * the server in the time of the original audio.</p>
+ * <p>
+ * The compacted recording is a concatenation of spans of the original one. Span i starts at sample
+ * {@link #getCompactedStart(int)} in the compacted recording, and at sample {@link #getOriginalStart(int)}
+ * in the original one, and the spans are in the order of both recordings. The map is immutable.
+ * </p>
+ */
+public class AudioOffsetMap {
+
+    private final int mSampleRate;
+    private final long[] mCompactedStart;
+    private final long[] mOriginalStart;
+    private final long mCompactedLength;
+
+    /**
+     * @param sampleRate      sample rate of both recordings
+     * @param compactedStart  start of every span in the compacted recording (in samples, increasing)
+     * @param originalStart   start of every span in the original recording (in samples, increasing)
+     * @param compactedLength length of the compacted recording in samples
+     */
+    public AudioOffsetMap(int sampleRate, long[] compactedStart, long[] originalStart, long compactedLength) {
+        if (compactedStart.length != originalStart.length) {
+            throw new IllegalArgumentException("Number of spans differs: " + compactedStart.length + "/" + originalStart.length);
+        }
+        mSampleRate = sampleRate;
+        mCompactedStart = compactedStart.clone();
+        mOriginalStart = originalStart.clone();
+        mCompactedLength = compactedLength;
+    }
+
+    /**
+     * @return map of a recording of the given length that has not been compacted
+     */
+    public static AudioOffsetMap identity(int sampleRate, long length) {
+        return new AudioOffsetMap(sampleRate, new long[]{0}, new long[]{0}, length);
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getNumOfSpans() {
+        return mCompactedStart.length;
+    }
+
+    public long getCompactedStart(int span) {
+        return mCompactedStart[span];
+    }
+
+    public long getOriginalStart(int span) {
+        return mOriginalStart[span];
+    }
+
+    /**
+     * @return length of the compacted recording in samples
+     */
+    public long getCompactedLength() {
+        return mCompactedLength;
+    }
+
+    /**
+     * @param compactedPosition position in the compacted recording in samples
+     * @return corresponding position in the original recording in samples
+     */
+    public long toOriginalPosition(long compactedPosition) {
+        int span = findSpan(compactedPosition);
+        if (span < 0) {
+            return compactedPosition;
+        }
+        return mOriginalStart[span] + compactedPosition - mCompactedStart[span];
+    }
+
+    /**
+     * @param compactedMillis time in the compacted recording in milliseconds
+     * @return corresponding time in the original recording in milliseconds
+     */
+    public long toOriginalMillis(long compactedMillis) {
+        return toOriginalPosition(compactedMillis * mSampleRate / 1000) * 1000 / mSampleRate;
+    }
+
+    /**
+     * @return index of the last span that starts at or before the given compacted position,
+     * or -1 if there are no spans
+     */
+    private int findSpan(long compactedPosition) {
+        int low = 0;
+        int high = mCompactedStart.length - 1;
+        if (high < 0) {
+            return -1;
+        }
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mCompactedStart[mid] <= compactedPosition) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,90 @@
+package ee.ioc.phon.android.speechutils;
+
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.os.Build;
+
+/**
+ * Audio source that reads the microphone through an {@link AudioRecord}.
+ */
+public class AudioRecordSource implements AudioSource {
+
+    private final AudioRecord mRecord;
+    private final int mBufferSize;
+    private final AudioTimestamp mAudioTimestamp = new AudioTimestamp();
+
+    /**
+     * @param bufferSize size (in bytes) of the buffer with which the AudioRecord was created
+     */
+    public AudioRecordSource(AudioRecord record, int bufferSize) {
+        mRecord = record;
+        mBufferSize = bufferSize;
+    }
+
+    public AudioRecord getAudioRecord() {
+        return mRecord;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mRecord.getSampleRate();
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mRecord.getChannelCount();
+    }
+
+    @Override
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return mRecord.getState() == AudioRecord.STATE_INITIALIZED;
+    }
+
+    @Override
+    public boolean isRecording() {
+        return mRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING;
+    }
+
+    @Override
+    public void start() {
+        mRecord.startRecording();
+    }
+
+    @Override
+    public void stop() {
+        mRecord.stop();
+    }
+
+    @Override
+    public void release() {
+        mRecord.release();
+    }
+
+    @Override
+    public int read(short[] dst, int off, int len) {
+        return mRecord.read(dst, off, len);
+    }
+
+    @Override
+    public int read(byte[] dst, int off, int len) {
+        return mRecord.read(dst, off, len);
+    }
+
+    /**
+     * The time is extrapolated from the AudioTimestamp, if the device reports it (API 24+).
+     */
+    @Override
+    public long getCaptureTimeNanos(long framePosition) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && mRecord.getTimestamp(mAudioTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS) {
+            return mAudioTimestamp.nanoTime
+                    + (framePosition - mAudioTimestamp.framePosition) * 1000000000L / mRecord.getSampleRate();
+        }
+        return -1;
+    }
+}
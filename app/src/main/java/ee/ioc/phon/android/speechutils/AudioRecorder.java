@@ -2,6 +2,11 @@ package ee.ioc.phon.android.speechutils;
 
 import android.media.MediaRecorder;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+
 public interface AudioRecorder {
     int DEFAULT_AUDIO_SOURCE = MediaRecorder.AudioSource.VOICE_RECOGNITION;
     int DEFAULT_SAMPLE_RATE = 16000;
@@ -17,10 +22,73 @@ public interface AudioRecorder {
 
     byte[] consumeRecording();
 
+    /**
+     * Copies the bytes that have been recorded since the last consume-call into the given array,
+     * without allocating. Copies at most the given number of bytes, the rest remains available
+     * for the next call.
+     *
+     * @return number of bytes copied (0 if there was nothing to consume), or -1 if the bytes were
+     * overwritten by the recorder while they were being copied
+     */
+    int consumeRecording(byte[] dst, int off, int len);
+
+    /**
+     * Copies the bytes that have been recorded since the last consume-call into the given buffer,
+     * starting at its position, and at most as many as the buffer has remaining.
+     *
+     * @return number of bytes copied (0 if there was nothing to consume), or -1 if the bytes were
+     * overwritten by the recorder while they were being copied
+     */
+    int consumeRecording(ByteBuffer dst);
+
+    /**
+     * Writes the recorded bytes that have not been consumed yet into the given channel (e.g. a file).
+     *
+     * @return number of bytes written, or -1 if the recording was overwritten while writing
+     */
+    int consumeRecording(WritableByteChannel dst) throws IOException;
+
+    /**
+     * @return number of bytes that the next consume-call would return
+     */
+    int available();
+
     void start();
 
+    /**
+     * Prepares a stopped (or released) recorder for a new recording, reusing its buffers.
+     */
+    void reset();
+
+    void addAudioChunkListener(AudioChunkListener listener);
+
+    void addAudioChunkListener(AudioChunkListener listener, Executor executor);
+
+    void removeAudioChunkListener(AudioChunkListener listener);
+
+    void addAudioSampleListener(AudioSampleListener listener);
+
+    void removeAudioSampleListener(AudioSampleListener listener);
+
+    /**
+     * Opens a named consumer with its own read position, which starts at the oldest available audio.
+     *
+     * @throws IllegalArgumentException if a cursor with the given name is already open
+     */
+    AudioCursor openCursor(String name);
+
+    /**
+     * @return open cursor with the given name, or null if there is none
+     */
+    AudioCursor getCursor(String name);
+
     float getRmsdb();
 
+    /**
+     * @return counters and gauges of the health of the recorder (reads, lost audio, buffer fill)
+     */
+    RecorderMetrics getMetrics();
+
     void release();
 
     boolean isPausing();
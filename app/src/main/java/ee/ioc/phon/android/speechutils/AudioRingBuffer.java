@@ -0,0 +1,285 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>Lock-free single-producer/single-consumer ring buffer of audio bytes.</p>
+ * <p>
+ * The absolute positions are mapped to the underlying storage by masking with the (power-of-two)
+ * capacity, i.e. the whole capacity is allocated up front. The storage is an array on the heap,
+ * or any other byte buffer, e.g. a file mapped into memory.
+ * </p>
+ * <p>
+ * In the overwrite mode (used in always-listen recording) the producer never waits for the
+ * consumer: the oldest bytes are overwritten, and a consumer that was overtaken can detect this,
+ * because {@link #read} fails if the requested bytes were (partially) overwritten during the copy.
+ * For this the producer claims the region that it is about to overwrite before it writes, i.e. the
+ * bytes up to the claimed position minus the capacity are not available anymore.
+ * Otherwise the producer refuses to write once the buffer is full (i.e. the recording is
+ * never overwritten).
+ * </p>
+ */
+public class AudioRingBuffer extends AudioBuffer {
+
+    private final int mCapacity;
+    private final int mMask;
+    private final boolean mOverwrite;
+    // Write position after the write that is in progress, published before the bytes are overwritten
+    private final Sequence mClaimPosition = new Sequence();
+
+    // The producer and every reading thread (the consumer and the cursors) have their own views of
+    // the data, because the views have a position. The 16-bit little-endian views are used for writing
+    // and reading samples, i.e. the conversion between samples and bytes is done by bulk puts and gets.
+    private final ByteBuffer mWriteBuffer;
+    private final ShortBuffer mWriteView;
+    private final ThreadLocal<ReadViews> mReadViews = new ThreadLocal<ReadViews>() {
+        @Override
+        protected ReadViews initialValue() {
+            return new ReadViews(mWriteBuffer.duplicate(), mWriteView.duplicate());
+        }
+    };
+
+    /**
+     * @param minCapacity minimum capacity in bytes, rounded up to the next power of two
+     * @param overwrite   true iff the producer overwrites the oldest data if the buffer is full
+     */
+    public AudioRingBuffer(int minCapacity, boolean overwrite) {
+        this(ByteBuffer.allocate(roundUpToPowerOfTwo(minCapacity)), overwrite);
+    }
+
+    /**
+     * @param data      storage of the buffer (e.g. a file mapped into memory), whose capacity is a power of two
+     * @param overwrite true iff the producer overwrites the oldest data if the buffer is full
+     */
+    public AudioRingBuffer(ByteBuffer data, boolean overwrite) {
+        mCapacity = data.capacity();
+        if (Integer.bitCount(mCapacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + mCapacity);
+        }
+        mMask = mCapacity - 1;
+        mOverwrite = overwrite;
+        mWriteBuffer = data.duplicate();
+        mWriteBuffer.clear();
+        mWriteView = mWriteBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    }
+
+    /**
+     * Creates a buffer whose data is kept in the given file, which is mapped into memory, i.e. the
+     * size of the buffer is limited by the disk space rather than by the heap, and the operating
+     * system can page the data out under memory pressure.
+     * The file is created, or overwritten if it exists.
+     *
+     * @param file        file, e.g. in the cache dir of the app
+     * @param minCapacity minimum capacity in bytes, rounded up to the next power of two
+     * @param overwrite   true iff the producer overwrites the oldest data if the buffer is full
+     */
+    public static AudioRingBuffer map(File file, int minCapacity, boolean overwrite) throws IOException {
+        int capacity = roundUpToPowerOfTwo(minCapacity);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(capacity);
+            // The mapping remains valid after the file is closed
+            MappedByteBuffer data = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new AudioRingBuffer(data, overwrite);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return mCapacity;
+    }
+
+    @Override
+    public boolean isOverwrite() {
+        return mOverwrite;
+    }
+
+    @Override
+    public long getOldestPosition() {
+        return Math.max(mStartPosition.get(), mClaimPosition.get() - mCapacity);
+    }
+
+    @Override
+    public int remaining() {
+        return (int) (mCapacity - (mWritePosition.get() - mStartPosition.get()));
+    }
+
+    @Override
+    public boolean write(byte[] src, int off, int len) {
+        long writePosition = mWritePosition.get();
+        if (!mOverwrite && writePosition + len - mStartPosition.get() > mCapacity) {
+            return false;
+        }
+        if (len > mCapacity) {
+            // Only the last capacity-worth of bytes would survive
+            off += len - mCapacity;
+            writePosition += len - mCapacity;
+            len = mCapacity;
+        }
+        if (mOverwrite) {
+            updateMaxWriteLength(len);
+        }
+        mClaimPosition.set(writePosition + len);
+        int index = (int) (writePosition & mMask);
+        int numOfBytesBeforeEnd = Math.min(len, mCapacity - index);
+        mWriteBuffer.position(index);
+        mWriteBuffer.put(src, off, numOfBytesBeforeEnd);
+        mWriteBuffer.position(0);
+        mWriteBuffer.put(src, off + numOfBytesBeforeEnd, len - numOfBytesBeforeEnd);
+        mWritePosition.setOrdered(writePosition + len);
+        return true;
+    }
+
+    @Override
+    public boolean write(short[] src, int off, int len) {
+        long writePosition = mWritePosition.get();
+        int numOfBytes = 2 * len;
+        if (!mOverwrite && writePosition + numOfBytes - mStartPosition.get() > mCapacity) {
+            return false;
+        }
+        if (numOfBytes > mCapacity) {
+            off += len - mCapacity / 2;
+            writePosition += numOfBytes - mCapacity;
+            len = mCapacity / 2;
+        }
+        if (mOverwrite) {
+            updateMaxWriteLength(2 * len);
+        }
+        mClaimPosition.set(writePosition + 2L * len);
+        // The positions of the samples are always even, as the capacity is
+        int index = (int) ((writePosition & mMask) >> 1);
+        int numOfSamplesBeforeEnd = Math.min(len, mWriteView.capacity() - index);
+        mWriteView.position(index);
+        mWriteView.put(src, off, numOfSamplesBeforeEnd);
+        mWriteView.position(0);
+        mWriteView.put(src, off + numOfSamplesBeforeEnd, len - numOfSamplesBeforeEnd);
+        mWriteView.clear();
+        mWritePosition.setOrdered(writePosition + 2L * len);
+        return true;
+    }
+
+    @Override
+    public int read(long position, short[] dst, int off, int len) {
+        if (position < getOldestPosition() || position + 2L * len > mWritePosition.get()) {
+            return -1;
+        }
+        ReadViews readViews = mReadViews.get();
+        ShortBuffer readView = readViews.mShorts;
+        int index = (int) ((position & mMask) >> 1);
+        int numOfSamplesBeforeEnd = Math.min(len, readView.capacity() - index);
+        readView.position(index);
+        readView.get(dst, off, numOfSamplesBeforeEnd);
+        readView.position(0);
+        readView.get(dst, off + numOfSamplesBeforeEnd, len - numOfSamplesBeforeEnd);
+        readView.clear();
+        return isOverwritten(position, readViews) ? -1 : len;
+    }
+
+    @Override
+    public int read(long position, byte[] dst, int off, int len) {
+        if (position < getOldestPosition() || position + len > mWritePosition.get()) {
+            return -1;
+        }
+        ReadViews readViews = mReadViews.get();
+        ByteBuffer readBuffer = readViews.mBytes;
+        int index = (int) (position & mMask);
+        int numOfBytesBeforeEnd = Math.min(len, mCapacity - index);
+        readBuffer.position(index);
+        readBuffer.get(dst, off, numOfBytesBeforeEnd);
+        readBuffer.position(0);
+        readBuffer.get(dst, off + numOfBytesBeforeEnd, len - numOfBytesBeforeEnd);
+        return isOverwritten(position, readViews) ? -1 : len;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst, int len) {
+        if (position < getOldestPosition() || position + len > mWritePosition.get()) {
+            return -1;
+        }
+        ReadViews readViews = mReadViews.get();
+        ByteBuffer readBuffer = readViews.mBytes;
+        int index = (int) (position & mMask);
+        int numOfBytesBeforeEnd = Math.min(len, mCapacity - index);
+        readBuffer.limit(index + numOfBytesBeforeEnd).position(index);
+        dst.put(readBuffer);
+        readBuffer.limit(len - numOfBytesBeforeEnd).position(0);
+        dst.put(readBuffer);
+        readBuffer.clear();
+        return isOverwritten(position, readViews) ? -1 : len;
+    }
+
+    @Override
+    public int read(long position, WritableByteChannel dst, int len) throws IOException {
+        if (position < getOldestPosition() || position + len > mWritePosition.get()) {
+            return -1;
+        }
+        ReadViews readViews = mReadViews.get();
+        ByteBuffer readBuffer = readViews.mBytes;
+        int index = (int) (position & mMask);
+        int numOfBytesBeforeEnd = Math.min(len, mCapacity - index);
+        try {
+            readBuffer.limit(index + numOfBytesBeforeEnd).position(index);
+            while (readBuffer.hasRemaining()) {
+                dst.write(readBuffer);
+            }
+            readBuffer.limit(len - numOfBytesBeforeEnd).position(0);
+            while (readBuffer.hasRemaining()) {
+                dst.write(readBuffer);
+            }
+        } finally {
+            readBuffer.clear();
+        }
+        return isOverwritten(position, readViews) ? -1 : len;
+    }
+
+    /**
+     * A copy is consistent only if the producer did not claim the copied region while copying.
+     */
+    private boolean isOverwritten(long position, ReadViews readViews) {
+        if (!mOverwrite) {
+            return false;
+        }
+        // The volatile store keeps the loads of the copy before the load of the claim
+        // (a load-load fence is not available at all API levels)
+        readViews.mCopiedPosition = position;
+        return mClaimPosition.get() - mCapacity > position;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        mClaimPosition.set(0);
+    }
+
+    private static class ReadViews {
+        private final ByteBuffer mBytes;
+        private final ShortBuffer mShorts;
+        private volatile long mCopiedPosition;
+
+        private ReadViews(ByteBuffer bytes, ShortBuffer shorts) {
+            mBytes = bytes;
+            mShorts = shorts;
+        }
+    }
+
+    static int roundUpToPowerOfTwo(int value) {
+        if (value <= 1) {
+            return 1;
+        }
+        int highestOneBit = Integer.highestOneBit(value - 1) << 1;
+        if (highestOneBit <= 0) {
+            throw new IllegalArgumentException("Capacity too large: " + value);
+        }
+        return highestOneBit;
+    }
+}
@@ -0,0 +1,21 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Receives the recorded audio as 16-bit samples, e.g. for signal processing (features, keyword
+ * spotting) that works on samples and would otherwise have to decode the recorded bytes.
+ */
+public interface AudioSampleListener {
+
+    /**
+     * Called on the recorder thread with the samples of every read, must return quickly
+     * and must not keep a reference to the given buffer, as it is reused for the next read.
+     *
+     * @param samples        read-only view of the samples (between its position and limit)
+     * @param samplePosition position of the first sample, counted in samples since the start of the recorder
+     * @param timeNanos      time (System.nanoTime) when the first sample was captured
+     *                       (from the AudioTimestamp if the device reports it, otherwise estimated)
+     */
+    void onAudioSamples(ShortBuffer samples, long samplePosition, long timeNanos);
+}
@@ -0,0 +1,63 @@
+package ee.ioc.phon.android.speechutils;
+
+/**
+ * <p>Source of 16-bit PCM audio that the recorder reads on its recorder thread, e.g. the microphone
+ * (see {@link AudioRecordSource}) or a file that is replayed (see {@link FileAudioSource}).
+ * The recording pipeline (buffering, consumption, sessions) only depends on this interface, i.e.
+ * with a replayed file it can be tested and benchmarked without a device.</p>
+ * <p>
+ * The reads block until the requested audio is available (or the source has been stopped),
+ * and are done by a single thread. The other methods are called by the thread that controls the recorder.
+ * </p>
+ */
+public interface AudioSource {
+
+    int getSampleRate();
+
+    /**
+     * @return number of channels, the samples of the channels are interleaved
+     */
+    int getChannelCount();
+
+    /**
+     * @return size (in bytes) of the buffer in which the source keeps the captured audio until it is read
+     */
+    int getBufferSize();
+
+    /**
+     * @return true iff the source can be started (e.g. it has not been released)
+     */
+    boolean isInitialized();
+
+    /**
+     * @return true iff the source has been started and has not been stopped (or reached its end)
+     */
+    boolean isRecording();
+
+    void start();
+
+    /**
+     * Stops the capture, does nothing if the source is not recording.
+     */
+    void stop();
+
+    void release();
+
+    /**
+     * @param len maximum number of samples to read
+     * @return number of samples read, or a negative error code
+     */
+    int read(short[] dst, int off, int len);
+
+    /**
+     * @param len maximum number of bytes to read
+     * @return number of bytes read, or a negative error code
+     */
+    int read(byte[] dst, int off, int len);
+
+    /**
+     * @param framePosition position of a frame, counted in frames since the source was started
+     * @return time (System.nanoTime) when the frame was captured, or -1 if the source does not know it
+     */
+    long getCaptureTimeNanos(long framePosition);
+}
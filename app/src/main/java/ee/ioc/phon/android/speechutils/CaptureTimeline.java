@@ -0,0 +1,84 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Capture times of the recently recorded chunks, i.e. the map from the sample position to the
+ * time (System.nanoTime) when the sample was captured by the microphone.</p>
+ * <p>
+ * The recorder thread appends the position and the capture time of the first sample of every chunk,
+ * and the time of any other sample is computed from the chunk that contains it and the sample rate.
+ * The chunks are kept in a ring of preallocated arrays, published by an ordered store of their count,
+ * i.e. the times can be queried from any thread, and a query that races with the overwriting of its
+ * chunk is retried. The slots are volatile, so that a query that has read an overwritten slot also
+ * sees the count of the chunk that overwrote it.
+ * </p>
+ */
+class CaptureTimeline {
+
+    private final int mSampleRate;
+    private final int mMask;
+    private final AtomicLongArray mPositions;
+    private final AtomicLongArray mTimes;
+    private final AtomicLong mNumOfChunks = new AtomicLong();
+
+    /**
+     * @param capacity minimum number of chunks that are kept
+     */
+    CaptureTimeline(int sampleRate, int capacity) {
+        mSampleRate = sampleRate;
+        // A power of two, with one more slot than the kept chunks for the chunk that is being added
+        int size = Integer.highestOneBit(Math.max(1, capacity)) << 1;
+        mMask = size - 1;
+        mPositions = new AtomicLongArray(size);
+        mTimes = new AtomicLongArray(size);
+    }
+
+    /**
+     * Adds a chunk. Called only by the recorder thread.
+     *
+     * @param samplePosition   position of the first sample of the chunk
+     * @param captureTimeNanos capture time of the first sample of the chunk
+     */
+    void add(long samplePosition, long captureTimeNanos) {
+        long n = mNumOfChunks.get();
+        int i = (int) (n & mMask);
+        mPositions.set(i, samplePosition);
+        mTimes.set(i, captureTimeNanos);
+        mNumOfChunks.lazySet(n + 1);
+    }
+
+    /**
+     * @return capture time of the given sample, extrapolated from the nearest kept chunk if the sample
+     * is not in the kept chunks, or -1 if no chunk has been added
+     */
+    long getCaptureTimeNanos(long samplePosition) {
+        while (true) {
+            long n = mNumOfChunks.get();
+            if (n == 0) {
+                return -1;
+            }
+            // The oldest slot is not read, as it is being overwritten by the next chunk
+            long first = Math.max(0, n - mPositions.length() + 1);
+            long k = n - 1;
+            // The latest chunk that starts at or before the sample (or the oldest chunk)
+            while (k > first && mPositions.get((int) (k & mMask)) > samplePosition) {
+                k--;
+            }
+            int i = (int) (k & mMask);
+            long position = mPositions.get(i);
+            long time = mTimes.get(i);
+            if (mNumOfChunks.get() - mPositions.length() < k) {
+                return time + (samplePosition - position) * 1000000000L / mSampleRate;
+            }
+        }
+    }
+
+    /**
+     * Forgets the chunks. Must not be called while chunks are added.
+     */
+    void reset() {
+        mNumOfChunks.set(0);
+    }
+}
@@ -0,0 +1,89 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Detects a stalled capture, i.e. a read from the microphone that has not returned any audio
+ * for longer than the timeout (e.g. because the mediaserver died, or another app took the microphone).</p>
+ * <p>
+ * The recorder thread reports its progress after every read, which is a volatile write. The checks are
+ * done by a single daemon thread that is shared by all the watchdogs, i.e. the watchdogs of the
+ * restarted (or many) recorders do not add threads. The stall callback is called once per stall,
+ * on the watchdog thread, i.e. it must return quickly.
+ * </p>
+ */
+class CaptureWatchdog {
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "CaptureWatchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final long mTimeoutNanos;
+    private final long mCheckIntervalMillis;
+    private final Runnable mOnStall;
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    private volatile long mProgressNanos;
+    private volatile boolean mIsStalled = false;
+    private ScheduledFuture<?> mFuture;
+
+    /**
+     * @param timeoutMillis time without progress after which the capture is considered stalled
+     * @param onStall       called (on the watchdog thread) when the capture stalls
+     */
+    CaptureWatchdog(long timeoutMillis, Runnable onStall) {
+        mTimeoutNanos = timeoutMillis * 1000000L;
+        mCheckIntervalMillis = Math.max(1, timeoutMillis / 4);
+        mOnStall = onStall;
+    }
+
+    /**
+     * Starts (or restarts) watching, the capture is considered to have made progress now.
+     */
+    synchronized void start() {
+        progress();
+        if (mFuture == null) {
+            mFuture = EXECUTOR.scheduleWithFixedDelay(mCheck, mCheckIntervalMillis, mCheckIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+    }
+
+    /**
+     * Called by the recorder thread after the capture has delivered audio.
+     */
+    void progress() {
+        mProgressNanos = System.nanoTime();
+        mIsStalled = false;
+    }
+
+    boolean isStalled() {
+        return mIsStalled;
+    }
+
+    private void check() {
+        if (!mIsStalled && System.nanoTime() - mProgressNanos > mTimeoutNanos) {
+            mIsStalled = true;
+            mOnStall.run();
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package ee.ioc.phon.android.speechutils;
 
+import android.annotation.SuppressLint;
+
 import androidx.annotation.RequiresPermission;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ShortBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import ee.ioc.phon.android.speechutils.utils.AudioUtils;
 
@@ -19,12 +25,17 @@ import static android.Manifest.permission.RECORD_AUDIO;
  * end-of-hotword and the Android recorder may have its own delay. So there's a need for
  * a mechanism that will allow the developer to compensate between the various delays and
  * enable audio processing of an audio buffer from a specific point in time (past, current
- * of future).
+ * of future). A session that starts in the future does not block the consumer: the start is
+ * recorded as a position, and the audio is consumed once the recording has reached it
+ * (see {@link #startSession()} and {@link SessionStartListener}).
  * <p>
  * For the purpose of efficiency and reduction of garbage collection, the recorded buffer
  * is a cyclic one and the code handles the edge cases (gotten audio buffer is split
  * between the end of the recording buffer and the beginning).
  * <p>
+ * For a look-back of many minutes, the cyclic buffer can be kept in a file that is mapped into
+ * memory (see the constructor that takes a file), so that it does not take up the heap.
+ * <p>
  * The class also handles the cyclic buffer consumption. While consuming the recorded
  * buffer, the consumer is always behind or exactly on the producer pointer (chasing the
  * recording).
@@ -50,43 +61,66 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
 
     private SessionStartPointer mSessionStartPointer = SessionStartPointer.beginningOfBuffer();
     private final AtomicBoolean mRecordingToFile = new AtomicBoolean(false);
+    // Thread that writes the recording into the WAV file, woken up by the recorder thread after every read
+    private volatile Thread mFileWriter;
+    private final AudioSampleListener mFileWriterWakeUp = new AudioSampleListener() {
+        @Override
+        public void onAudioSamples(ShortBuffer samples, long samplePosition, long timeNanos) {
+            Thread fileWriter = mFileWriter;
+            if (fileWriter != null) {
+                LockSupport.unpark(fileWriter);
+            }
+        }
+    };
+
+    // Recorded session whose start has been resolved (by the consumer), and the (byte) position of
+    // its start, which can be in the future
+    private long mStartedSessionId = -1;
+    private volatile long mSessionStartPosition = 0;
+    // True until the recording reaches the start of the session
+    private final AtomicBoolean mSessionStartPending = new AtomicBoolean(false);
+    private volatile SessionStartListener mSessionStartListener;
+    // Registered as a sample listener while there is a session start listener
+    private final AudioSampleListener mSessionStartChecker = new AudioSampleListener() {
+        @Override
+        public void onAudioSamples(ShortBuffer samples, long samplePosition, long timeNanos) {
+            checkSessionStart(samplePosition, samplePosition + samples.remaining(), timeNanos);
+        }
+    };
 
+    /**
+     * Point in time (relative to the moment when a new session is started) from which the audio
+     * of the session is consumed. The pointers are immutable, and are resolved against the buffer
+     * of the recorder that uses them, i.e. they can be shared by several recorders.
+     */
     public static class SessionStartPointer {
 
-        private int mSessionStartPointerMillis;
-        private static SessionStartPointer mBeginningOfBufferPosition = new SessionStartPointer(Integer.MIN_VALUE);
-        private static SessionStartPointer mNowPosition = new SessionStartPointer(0);
+        private static final SessionStartPointer BEGINNING_OF_BUFFER = new SessionStartPointer(Integer.MIN_VALUE);
+        private static final SessionStartPointer NOW = new SessionStartPointer(0);
 
-        private SessionStartPointer(int sessionStartPointerMillis) {
-            setSessionStartPointerMillis(sessionStartPointerMillis);
-        }
+        private final int mSessionStartPointerMillis;
 
-        private void setSessionStartPointerMillis(int sessionStartPointerMillis) {
+        private SessionStartPointer(int sessionStartPointerMillis) {
             mSessionStartPointerMillis = sessionStartPointerMillis;
         }
 
+        /**
+         * @return offset from the latest recorded audio in milliseconds (negative is past, positive is future)
+         */
         int getSessionStartPointerMillis() {
-            // in case that no one set the buffer length, return start pointer as now
-            if (this == mBeginningOfBufferPosition && mSessionStartPointerMillis == Integer.MIN_VALUE)
-                return mNowPosition.getSessionStartPointerMillis();
-
-            // in case that the requested start pointer is bigger than the buffer, return the buffer size
-            if (this != mBeginningOfBufferPosition && mSessionStartPointerMillis < mBeginningOfBufferPosition.getSessionStartPointerMillis())
-                return mBeginningOfBufferPosition.getSessionStartPointerMillis();
-
             return mSessionStartPointerMillis;
         }
 
-        static void setRecordingBufferLengthMillis(int recordingBufferLengthMillis) {
-            mBeginningOfBufferPosition.setSessionStartPointerMillis(-Math.abs(recordingBufferLengthMillis));
+        boolean isBeginningOfBuffer() {
+            return this == BEGINNING_OF_BUFFER;
         }
 
         public static SessionStartPointer beginningOfBuffer() {
-            return mBeginningOfBufferPosition;
+            return BEGINNING_OF_BUFFER;
         }
 
         public static SessionStartPointer now() {
-            return mNowPosition;
+            return NOW;
         }
 
         public static SessionStartPointer someMillisBack(int millisBackToStartTheSessionFrom) {
@@ -114,12 +148,31 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
         }
     }
 
-    @RequiresPermission(RECORD_AUDIO)
-    public ContinuousRawAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis) {
-        super(audioSource, sampleRate, recordingBufferLengthMillis, true);
+    /**
+     * Is told when the recording reaches the start of a session, e.g. a session that starts some
+     * milliseconds in the future, so that its audio can be consumed without polling.
+     */
+    public interface SessionStartListener {
+
+        /**
+         * Called on the recorder thread with the first read that reaches the start of the session.
+         * Must return quickly, e.g. hand the consumption over to the consumer thread.
+         *
+         * @param samplePosition position of the start of the session, counted in samples since the start of the recorder
+         * @param timeNanos      time (System.nanoTime) when the start of the session was captured
+         */
+        void onSessionStart(long samplePosition, long timeNanos);
+    }
 
-        // this is very important. We introduce the buffer length to the SessionStartPointer object
-        SessionStartPointer.setRecordingBufferLengthMillis(recordingBufferLengthMillis);
+    /**
+     * @param bufferFile file into which the cyclic buffer is mapped (e.g. in the cache dir of the app),
+     *                   so that the buffer is limited by the disk space rather than by the heap.
+     *                   If null, or if the file cannot be mapped, then the buffer is kept on the heap.
+     */
+    @RequiresPermission(RECORD_AUDIO)
+    public ContinuousRawAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis, File bufferFile) {
+        super(audioSource, sampleRate, recordingBufferLengthMillis, true,
+                createMappedBuffer(bufferFile, getNumOfBytesIn(sampleRate, recordingBufferLengthMillis)));
 
         try {
             int bufferSize = getBufferSize();
@@ -136,6 +189,36 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
         }
     }
 
+    /**
+     * Records from the given source (e.g. a replayed file) instead of the microphone, into a cyclic
+     * buffer of the given length.
+     *
+     * @param source source of the audio, which is released with the recorder
+     */
+    @SuppressLint("MissingPermission") // The given source is not the microphone
+    public ContinuousRawAudioRecorder(AudioSource source, int sampleRate, int recordingBufferLengthMillis) {
+        super(source, sampleRate, recordingBufferLengthMillis, true, null);
+
+        try {
+            int bufferSize = getBufferSize();
+            int framePeriod = bufferSize / (2 * RESOLUTION_IN_BYTES * CHANNELS);
+            createRecorder(DEFAULT_AUDIO_SOURCE, source.getSampleRate(), bufferSize);
+            createBuffer(framePeriod);
+            setState(State.READY);
+        } catch (Exception e) {
+            if (e.getMessage() == null) {
+                handleError("Unknown error occurred while initializing recorder");
+            } else {
+                handleError(e.getMessage());
+            }
+        }
+    }
+
+    @RequiresPermission(RECORD_AUDIO)
+    public ContinuousRawAudioRecorder(int audioSource, int sampleRate, int recordingBufferLengthMillis) {
+        this(audioSource, sampleRate, recordingBufferLengthMillis, null);
+    }
+
     @RequiresPermission(RECORD_AUDIO)
     public ContinuousRawAudioRecorder(int sampleRate, int recordingBufferLengthMillis) {
         this(DEFAULT_AUDIO_SOURCE, sampleRate, recordingBufferLengthMillis);
@@ -160,139 +243,217 @@ public class ContinuousRawAudioRecorder extends AbstractAudioRecorder {
         return this;
     }
 
-    private int calculateNumOfSamplesToGoBack(int startPos) {
-        // if the consumed session is not the same as the recorded session
-        // get the data from the beginning of the buffer/desired session start pointer
-        if (!isRecordedSessionSameAsConsumedSession()) {
-            Log.i(LOG_FILTER + "Recorded session and consumed session are NOT the same. Grabbing the data from the session start position");
-
-            // there are cases in which due to delay in the recorder wrt the real world, we will need
-            // to wait for the exact moment. The session start point should be based on trial and error
-            if (mSessionStartPointer.getSessionStartPointerMillis() > 0) {
-                try {
-                    Thread.sleep(mSessionStartPointer.getSessionStartPointerMillis());
-                } catch (InterruptedException e) {
-                }
-
-                return getNumOfSamplesIn(SessionStartPointer.now().getSessionStartPointerMillis());
-            }
-
-            int numOfSamplesToGoBack = getNumOfSamplesIn(mSessionStartPointer.getSessionStartPointerMillis());
-            if (numOfSamplesToGoBack > mRecording.length)
-                return getNumOfSamplesIn(SessionStartPointer.beginningOfBuffer().getSessionStartPointerMillis());
-
-            return numOfSamplesToGoBack;
+    /**
+     * Sets the listener that is called when the recording reaches the start of a new session.
+     *
+     * @param listener listener, or null to remove it
+     */
+    public synchronized void setSessionStartListener(SessionStartListener listener) {
+        if (mSessionStartListener == null && listener != null) {
+            addAudioSampleListener(mSessionStartChecker);
+        } else if (mSessionStartListener != null && listener == null) {
+            removeAudioSampleListener(mSessionStartChecker);
         }
+        mSessionStartListener = listener;
+    }
 
-        Log.i(LOG_FILTER + "Recorded session and consumed session are the same. Working according to the consumed pointer");
-        if (startPos == getLength()) {
-            Log.i(LOG_FILTER + "Consumed session pointer still points to the recorded session pointer. Nothing to do or to return");
-            return -1;
+    /**
+     * Keeps the listeners of the recorder itself, i.e. the session start check and the wake-up of the
+     * WAV file writer, if they are in use.
+     */
+    @Override
+    public synchronized void removeAudioListeners() {
+        super.removeAudioListeners();
+        if (mSessionStartListener != null) {
+            addAudioSampleListener(mSessionStartChecker);
+        }
+        if (mFileWriter != null) {
+            addAudioSampleListener(mFileWriterWakeUp);
         }
-
-        int numOfSamplesToGoBack = getLength() - startPos;
-        if (numOfSamplesToGoBack < 0) // cyclic buffer case
-            numOfSamplesToGoBack += mRecording.length;
-
-        Log.i(LOG_FILTER + "Consumed session pointer is behind the recorded session pointer by: " + numOfSamplesToGoBack + " samples");
-        return numOfSamplesToGoBack;
     }
 
-    @Override
-    protected byte[] getCurrentRecording(int startPos) {
+    /**
+     * Starts a new session at the position given by the current session start pointer. The call does not
+     * block: if the start is in the future, then the consume-methods return nothing until the recording
+     * has reached it (and the session start listener is then called), after which the audio is consumed
+     * from the start. Must be called from the consumer thread.
+     *
+     * @return position of the start of the session, counted in samples since the start of the recorder
+     */
+    public long startSession() {
+        long sessionId = markNewRecordingSession();
+        startSession(sessionId, mRecording.getWritePosition());
+        return mSessionStartPosition / (RESOLUTION_IN_BYTES * CHANNELS);
+    }
 
-        int numOfSamplesToGoBack = calculateNumOfSamplesToGoBack(startPos);
-        if (numOfSamplesToGoBack <= 0) {
-            Log.i(LOG_FILTER + "There are no samples that we need to take from the recording");
-            return null;
+    /**
+     * Resolves the session start pointer of the given session against the given (byte) position
+     * of the latest recorded audio. The start is not earlier than the oldest audio in the buffer.
+     */
+    private void startSession(long sessionId, long endPos) {
+        long startPos;
+        SessionStartPointer sessionStartPointer = mSessionStartPointer;
+        if (sessionStartPointer.isBeginningOfBuffer()) {
+            startPos = mRecording.getOldestPosition();
+        } else {
+            int millis = sessionStartPointer.getSessionStartPointerMillis();
+            long numOfBytes = getNumOfBytesIn(millis);
+            startPos = Math.max(mRecording.getOldestPosition(), millis < 0 ? endPos - numOfBytes : endPos + numOfBytes);
         }
-
-        return getCurrentRecordingFrom(numOfSamplesToGoBack);
+        mStartedSessionId = sessionId;
+        mSessionStartPosition = startPos;
+        mSessionStartPending.set(true);
+        Log.i(LOG_FILTER + "Session " + sessionId + " starts at byte " + startPos + ", latest byte is " + endPos);
     }
 
-    private byte[] getCurrentRecordingFrom(int numOfSamplesToGoBack) {
-        byte[] buffer = new byte[numOfSamplesToGoBack];
-        int currentLength = getLength();
-        int potentialStartSample = currentLength - numOfSamplesToGoBack;
+    /**
+     * Called by the recorder thread after every read.
+     *
+     * @param position    position of the first sample of the read
+     * @param endPosition position after the last recorded sample
+     * @param timeNanos   capture time of the first sample of the read
+     */
+    private void checkSessionStart(long position, long endPosition, long timeNanos) {
+        // The start position is published before the flag
+        if (!mSessionStartPending.get()) {
+            return;
+        }
+        long startPos = mSessionStartPosition;
+        if (endPosition * RESOLUTION_IN_BYTES * CHANNELS > startPos && mSessionStartPending.compareAndSet(true, false)) {
+            SessionStartListener listener = mSessionStartListener;
+            if (listener != null) {
+                long startSample = startPos / (RESOLUTION_IN_BYTES * CHANNELS);
+                listener.onSessionStart(startSample, timeNanos + (startSample - position) * 1000000000L / getSampleRate());
+            }
+        }
+    }
 
-        if (potentialStartSample >= 0) {
-            Log.i(LOG_FILTER + "Start sample in the recording is a positive one. Copying from position: " + potentialStartSample + ", " + numOfSamplesToGoBack + " bytes");
-            System.arraycopy(mRecording, potentialStartSample, buffer, 0, numOfSamplesToGoBack);
+    /**
+     * If the consumed session is not the same as the recorded session (i.e. the consumer has been
+     * overtaken by the recorder, or a new session has been marked), then the consumption starts
+     * from the start of the recorded session, which is resolved once per session. If the start is
+     * in the future, then there is nothing to consume until the recording reaches it.
+     * If the returned position is before the beginning of the buffer (i.e. the buffer did not pass
+     * one cycle yet, or the requested bytes have been overwritten already), then the copying starts
+     * from the oldest available byte.
+     */
+    @Override
+    protected long getConsumeStartPosition(long endPos) {
+        long startPos;
+        if (isRecordedSessionSameAsConsumedSession()) {
+            startPos = getConsumedPosition();
         } else {
-            if (!mRecordingBufferIsFullWithData) {
-                Log.i(LOG_FILTER + "Start sample in the recording is a negative one. The buffer did not pass one cycle yet. Copying from position: 0, " + currentLength + " bytes");
-                System.arraycopy(mRecording, 0, buffer, 0, currentLength);
-            } else {
-                // the potential start sample is out of the boundaries of the array to the negative side
-                potentialStartSample = Math.abs(potentialStartSample);
-                Log.i(LOG_FILTER + "Start sample in the recording is a negative one. The buffer passed at least one cycle. Copying from position: " + (mRecording.length - potentialStartSample) + ", " + potentialStartSample + " bytes and from position: 0, " + currentLength + " bytes");
-                System.arraycopy(mRecording, mRecording.length - potentialStartSample, buffer, 0, potentialStartSample);
-                System.arraycopy(mRecording, 0, buffer, potentialStartSample, currentLength);
+            long sessionId = getRecordedSessionId();
+            if (sessionId != mStartedSessionId) {
+                Log.i(LOG_FILTER + "Recorded session and consumed session are NOT the same. Grabbing the data from the session start position");
+                startSession(sessionId, endPos);
             }
+            startPos = mSessionStartPosition;
         }
+        if (startPos >= endPos) {
+            return -1;
+        }
+        return startPos;
+    }
 
-        return buffer;
+    private static AudioBuffer createMappedBuffer(File bufferFile, int numOfBytes) {
+        if (bufferFile == null) {
+            return null;
+        }
+        try {
+            return AudioRingBuffer.map(bufferFile, numOfBytes, true);
+        } catch (IOException e) {
+            Log.e(LOG_FILTER + "Could not map the buffer to " + bufferFile + " due to: " + e.getMessage());
+            return null;
+        }
     }
 
     public byte[] pcmToWav(byte[] pcm) {
         return AudioUtils.getRecordingAsWav(pcm, getSampleRate(), RESOLUTION_IN_BYTES, CHANNELS);
     }
 
-    private byte[] createWavHeader(int pcmDataLength) {
-        return AudioUtils.getWavHeader(pcmDataLength, getSampleRate(), RESOLUTION_IN_BYTES, CHANNELS);
-    }
-
+    /**
+     * Writes the buffer into the given WAV file straight from the buffer (e.g. from the mapped file),
+     * i.e. without copying it to the heap.
+     */
     public void dumpBufferToWavFile(String wavFileFullPath) {
         SessionStartPointer sessionStartPointer = mSessionStartPointer;
         setSessionStartPointer(SessionStartPointer.beginningOfBuffer());
-        AudioUtils.saveWavToFile(wavFileFullPath, pcmToWav(consumeRecording()), false);
+        try (WavFileSink sink = new WavFileSink(new File(wavFileFullPath), getSampleRate(), RESOLUTION_IN_BYTES, CHANNELS)) {
+            consumeRecording(sink, wavFileFullPath);
+        } catch (IOException e) {
+            Log.e(LOG_FILTER + "Could not save the buffer to " + wavFileFullPath + " due to: " + e.getMessage());
+        }
         setSessionStartPointer(sessionStartPointer);
     }
 
-    public void startRecording(final String wavFileFullPath) {
+    public void startRecording(String wavFileFullPath) {
+        startRecording(wavFileFullPath, WavFileSink.DEFAULT_UPDATE_INTERVAL_MILLIS, false);
+    }
+
+    /**
+     * Starts writing the recording into the given WAV file on a background thread, until
+     * {@link #stopRecording()} is called. The file is kept open, the audio is written into it
+     * straight from the buffer as soon as the recorder has read it, and the header is patched at
+     * the given interval, so that the file is playable also if the app crashes.
+     *
+     * @param updateIntervalMillis interval of patching the header (and syncing)
+     * @param sync                 true to sync the file to the disk at every update
+     */
+    public void startRecording(final String wavFileFullPath, final int updateIntervalMillis, final boolean sync) {
         if (!mRecordingToFile.compareAndSet(false, true))
             return;
 
-        new Thread(new Runnable() {
+        Thread fileWriter = new Thread(new Runnable() {
             @Override
             public void run() {
-                // in case that someone stopped the recording before the thread could start
-                if (!mRecordingToFile.get())
-                    return;
-
-                int pcmDataLength = 0;
-                byte[] pcmData;
-                AtomicBoolean firstBuffer = new AtomicBoolean(true);
-
-                while (mRecordingToFile.get()) {
-
-                    // No need to endlessly poll the recording. It will work without the sleep well but
-                    // every 50ms is also good (keeps the CPU happier than without the sleep)
-                    try {
-                        Thread.sleep(50L);
-                    } catch (InterruptedException e) {
-                        mRecordingToFile.set(false);
-                        return;
+                try (WavFileSink sink = new WavFileSink(new File(wavFileFullPath), getSampleRate(),
+                        RESOLUTION_IN_BYTES, CHANNELS, updateIntervalMillis, sync)) {
+                    // Waits (without polling) until the recorder has read more audio, or the recording is stopped
+                    while (mRecordingToFile.get() && !Thread.interrupted()) {
+                        consumeRecording(sink, wavFileFullPath);
+                        LockSupport.park(this);
+                    }
+                    consumeRecording(sink, wavFileFullPath);
+                    // The header is patched on close
+                } catch (IOException e) {
+                    mRecordingToFile.set(false);
+                    Log.e(LOG_FILTER + "Could not save the recording to " + wavFileFullPath + " due to: " + e.getMessage());
+                } finally {
+                    // Unless the recording to file has already been restarted
+                    if (mFileWriter == Thread.currentThread()) {
+                        removeAudioSampleListener(mFileWriterWakeUp);
+                        mFileWriter = null;
                     }
-
-                    pcmData = consumeRecording();
-                    if (pcmData == null || pcmData.length == 0)
-                        continue;
-
-                    pcmDataLength += pcmData.length;
-                    if (firstBuffer.compareAndSet(true, false))
-                        AudioUtils.saveWavToFile(wavFileFullPath, pcmToWav(pcmData), false);
-                    else
-                        AudioUtils.saveWavToFile(wavFileFullPath, pcmData, true);
                 }
-
-                //now rewrite the wav header according to the new size
-                AudioUtils.saveWavHeaderToFile(wavFileFullPath, createWavHeader(pcmDataLength));
             }
-        }).start();
+        });
+        mFileWriter = fileWriter;
+        // The previous writer might not have finished (and removed the listener) yet
+        removeAudioSampleListener(mFileWriterWakeUp);
+        addAudioSampleListener(mFileWriterWakeUp);
+        fileWriter.start();
     }
 
     public void stopRecording() {
-        mRecordingToFile.compareAndSet(true, false);
+        if (mRecordingToFile.compareAndSet(true, false)) {
+            Thread fileWriter = mFileWriter;
+            if (fileWriter != null) {
+                LockSupport.unpark(fileWriter);
+            }
+        }
+    }
+
+    /**
+     * Writes the new audio into the given file. If the buffer was overwritten while writing, then the
+     * written audio is dropped from the file, and the next write continues from the oldest audio,
+     * i.e. the file has a gap rather than wrong audio.
+     */
+    private void consumeRecording(WavFileSink sink, String wavFileFullPath) throws IOException {
+        long dataLength = sink.getDataLength();
+        if (consumeRecording(sink) < 0) {
+            sink.truncate(dataLength);
+            Log.e(LOG_FILTER + "Buffer was overwritten while saving it to " + wavFileFullPath);
+        }
     }
 }
@@ -18,7 +18,6 @@ package ee.ioc.phon.android.speechutils;
 
 import static android.Manifest.permission.RECORD_AUDIO;
 
-import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.os.Build;
@@ -26,6 +25,7 @@ import android.os.Build;
 import androidx.annotation.RequiresPermission;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.List;
 
 import ee.ioc.phon.android.speechutils.utils.AudioUtils;
@@ -50,17 +50,30 @@ public class EncodedAudioRecorder extends AbstractAudioRecorder {
     private static final long DEQUEUE_INPUT_BUFFER_TIMEOUT = 10000;
     private static final long DEQUEUE_OUTPUT_BUFFER_TIMEOUT = 10000;
 
-    // TODO: Use queue of byte[]
-    private final byte[] mRecordingEnc;
-    private int mRecordedEncLength = 0;
-    private int mConsumedEncLength = 0;
+    // Written by the recorder thread, consumed by the client
+    private final SegmentedAudioBuffer mRecordingEnc;
 
     private int mNumBytesSubmitted = 0;
     private int mNumBytesDequeued = 0;
 
+    // Samples that are read for the encoder input buffer, reused across the buffers
+    private short[] mInputSamples;
+
+    // Position (in samples) of the start of the latest encoded frame
+    private volatile long mEncodedSamplePosition = 0;
+    // Position (in samples) after the audio that has been given to the encoder
+    private volatile long mQueuedSamplePosition = 0;
+
+    private final LatencyHistogram mEncodeLatency = new LatencyHistogram("capture-to-encode");
+
+    /**
+     * @param audioSource              Identifier of the audio source (e.g. microphone)
+     * @param sampleRate               Sample rate (e.g. 16000)
+     * @param maxRecordingLengthMillis Maximum length of the recording
+     */
     @RequiresPermission(RECORD_AUDIO)
-    public EncodedAudioRecorder(int audioSource, int sampleRate) {
-        super(audioSource, sampleRate);
+    public EncodedAudioRecorder(int audioSource, int sampleRate, int maxRecordingLengthMillis) {
+        super(audioSource, sampleRate, maxRecordingLengthMillis);
         try {
             int bufferSize = getBufferSize();
             createRecorder(audioSource, sampleRate, bufferSize);
@@ -74,8 +87,13 @@ public class EncodedAudioRecorder extends AbstractAudioRecorder {
                 handleError(e.getMessage());
             }
         }
-        // TODO: replace 35 with the max length of the recording
-        mRecordingEnc = new byte[RESOLUTION_IN_BYTES * CHANNELS * sampleRate * 35]; // 35 sec raw
+        // The encoded recording is never longer than the raw recording, but typically much shorter
+        mRecordingEnc = new SegmentedAudioBuffer(getBlockPool(), mRecording.capacity());
+    }
+
+    @RequiresPermission(RECORD_AUDIO)
+    public EncodedAudioRecorder(int audioSource, int sampleRate) {
+        this(audioSource, sampleRate, DEFAULT_BUFFER_LENGTH_IN_MILLIS);
     }
 
     @RequiresPermission(RECORD_AUDIO)
@@ -98,26 +116,84 @@ public class EncodedAudioRecorder extends AbstractAudioRecorder {
         return CONTENT_TYPE;
     }
 
-    public synchronized byte[] consumeRecordingEncAndTruncate() {
-        int len = getConsumedEncLength();
-        byte[] bytes = getCurrentRecordingEnc(len);
-        setRecordedEncLength(0);
-        setConsumedEncLength(0);
+    public byte[] consumeRecordingEncAndTruncate() {
+        long end = mRecordingEnc.getWritePosition();
+        long encodedSamplePosition = mEncodedSamplePosition;
+        byte[] bytes = getCurrentRecordingEnc(mRecordingEnc.getReadPosition(), end);
+        if (bytes == null) {
+            return null;
+        }
+        mRecordingEnc.truncate(end);
+        releaseEncodedRaw();
+        recordEncConsumeLatency(encodedSamplePosition, bytes.length);
         return bytes;
     }
 
     /**
-     * @return bytes that have been recorded and encoded since this method was last called
+     * Does not block the recorder thread. Must be called from a single (consumer) thread at a time.
+     *
+     * @return bytes that have been recorded and encoded since this method was last called,
+     * or null if they could not be read
      */
-    public synchronized byte[] consumeRecordingEnc() {
-        byte[] bytes = getCurrentRecordingEnc(getConsumedEncLength());
-        setConsumedEncLength(getRecordedEncLength());
+    public byte[] consumeRecordingEnc() {
+        long end = mRecordingEnc.getWritePosition();
+        long encodedSamplePosition = mEncodedSamplePosition;
+        byte[] bytes = getCurrentRecordingEnc(mRecordingEnc.getReadPosition(), end);
+        if (bytes == null) {
+            return null;
+        }
+        mRecordingEnc.setReadPosition(end);
+        releaseEncodedRaw();
+        recordEncConsumeLatency(encodedSamplePosition, bytes.length);
         return bytes;
     }
 
+    /**
+     * Copies the bytes that have been recorded and encoded since the last consume-call into the
+     * given array, without allocating.
+     *
+     * @return number of bytes copied (at most len), or -1 if they could not be read
+     */
+    public int consumeRecordingEnc(byte[] dst, int off, int len) {
+        long start = mRecordingEnc.getReadPosition();
+        int numOfBytes = (int) Math.min(len, mRecordingEnc.getWritePosition() - start);
+        if (mRecordingEnc.read(start, dst, off, numOfBytes) < 0) {
+            return -1;
+        }
+        mRecordingEnc.setReadPosition(start + numOfBytes);
+        releaseEncodedRaw();
+        return numOfBytes;
+    }
+
+    /**
+     * The encoder is given the sample positions as the presentation times, which it carries over
+     * to the encoded frames, i.e. the encoded audio can be mapped back to the capture time.
+     *
+     * @return position (in samples) of the start of the latest encoded frame, i.e. the audio before it
+     * has been encoded, use e.g. with {@link #markSent} after sending the encoded audio
+     */
+    public long getEncodedSamplePosition() {
+        return mEncodedSamplePosition;
+    }
+
+    /**
+     * @return histogram of the latencies from the capture of the first sample of an encoded frame
+     * to its output by the encoder
+     */
+    public LatencyHistogram getEncodeLatency() {
+        return mEncodeLatency;
+    }
+
+    /**
+     * @return number of encoded bytes that the next consume-call would return
+     */
+    public int availableEnc() {
+        return (int) (mRecordingEnc.getWritePosition() - mRecordingEnc.getReadPosition());
+    }
+
     @RequiresPermission(RECORD_AUDIO)
     @Override
-    protected void recorderLoop(AudioRecord speechRecord) {
+    protected void recorderLoop(AudioSource speechRecord) {
         mNumBytesSubmitted = 0;
         mNumBytesDequeued = 0;
         MediaFormat format = MediaFormatFactory.createMediaFormat(MIME, getSampleRate());
@@ -151,60 +227,95 @@ public class EncodedAudioRecorder extends AbstractAudioRecorder {
         return null;
     }
 
-    private int getConsumedEncLength() {
-        return mConsumedEncLength;
+    /**
+     * Also drops the raw audio once it has been encoded, i.e. then only the encoded recording
+     * can be consumed.
+     */
+    @Override
+    public void setReleaseConsumed(boolean releaseConsumed) {
+        super.setReleaseConsumed(releaseConsumed);
+        mRecordingEnc.setReleaseConsumed(releaseConsumed);
     }
 
-    private void setConsumedEncLength(int len) {
-        mConsumedEncLength = len;
+    @Override
+    protected void clearRecording() {
+        super.clearRecording();
+        mRecordingEnc.clear();
+        mEncodedSamplePosition = 0;
+        mQueuedSamplePosition = 0;
     }
 
-    private void setRecordedEncLength(int len) {
-        mRecordedEncLength = len;
+    private void updateEncoderQueueDepth() {
+        getMetrics().setEncoderQueueDepth((int) Math.max(0, mQueuedSamplePosition - mEncodedSamplePosition) * RESOLUTION_IN_BYTES);
     }
 
-    private int getRecordedEncLength() {
-        return mRecordedEncLength;
+    /**
+     * The consumed encoded audio ends (approximately) with the latest encoded frame.
+     */
+    private void recordEncConsumeLatency(long encodedSamplePosition, int numOfBytes) {
+        if (numOfBytes > 0) {
+            recordLatency(getConsumeLatency(), encodedSamplePosition);
+        }
     }
 
     private void addEncoded(byte[] buffer) {
-        int len = buffer.length;
-        if (mRecordingEnc.length >= mRecordedEncLength + len) {
-            System.arraycopy(buffer, 0, mRecordingEnc, mRecordedEncLength, len);
-            mRecordedEncLength += len;
-        } else {
-            handleError("RecorderEnc buffer overflow: " + mRecordedEncLength);
+        if (!mRecordingEnc.write(buffer, 0, buffer.length)) {
+            handleError("RecorderEnc buffer overflow: " + mRecordingEnc.getWritePosition());
         }
     }
 
-    private byte[] getCurrentRecordingEnc(int startPos) {
-        int len = getRecordedEncLength() - startPos;
-        byte[] bytes = new byte[len];
-        System.arraycopy(mRecordingEnc, startPos, bytes, 0, len);
+    /**
+     * @return the encoded bytes between the given positions, or null if they could not be read
+     */
+    private byte[] getCurrentRecordingEnc(long startPos, long endPos) {
+        byte[] bytes = new byte[(int) (endPos - startPos)];
+        if (mRecordingEnc.read(startPos, bytes, 0, bytes.length) < 0) {
+            Log.e("Could not copy (enc) from pos: " + startPos + ", bytes: " + bytes.length);
+            return null;
+        }
         Log.i("Copied (enc) from pos: " + startPos + ", bytes: " + bytes.length);
         return bytes;
     }
 
+    /**
+     * If the consumed audio is released, then the raw audio that has been given to the encoder is
+     * released by the consumer (which owns the start of the recording) when it consumes the encoded audio.
+     */
+    private void releaseEncodedRaw() {
+        if (isReleaseConsumed()) {
+            long position = mQueuedSamplePosition * RESOLUTION_IN_BYTES * CHANNELS;
+            if (position > mRecording.getStartPosition()) {
+                mRecording.truncate(position);
+            }
+        }
+    }
+
     /**
      * Copy audio from the recorder into the encoder.
      */
     @RequiresPermission(RECORD_AUDIO)
-    private int queueInputBuffer(MediaCodec codec, ByteBuffer[] inputBuffers, int index, AudioRecord speechRecord) {
-        if (speechRecord == null || speechRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+    private int queueInputBuffer(MediaCodec codec, ByteBuffer[] inputBuffers, int index, AudioSource speechRecord) {
+        if (speechRecord == null || !speechRecord.isRecording()) {
             return -1;
         }
 
         ByteBuffer inputBuffer = inputBuffers[index];
         inputBuffer.clear();
         int size = inputBuffer.limit();
-        byte[] buffer = new byte[size];
-        int status = read(speechRecord, buffer);
+        int numOfSamples = size / RESOLUTION_IN_BYTES;
+        if (mInputSamples == null || mInputSamples.length != numOfSamples) {
+            mInputSamples = new short[numOfSamples];
+        }
+        long samplePosition = mRecording.getWritePosition() / (RESOLUTION_IN_BYTES * CHANNELS);
+        int status = read(speechRecord, mInputSamples);
         if (status < 0) {
             handleError("status = " + status);
             return -1;
         }
-        inputBuffer.put(buffer);
-        codec.queueInputBuffer(index, 0, size, 0, 0);
+        inputBuffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(mInputSamples);
+        codec.queueInputBuffer(index, 0, size, samplePosition * 1000000L / getSampleRate(), 0);
+        mQueuedSamplePosition = mRecording.getWritePosition() / (RESOLUTION_IN_BYTES * CHANNELS);
+        updateEncoderQueueDepth();
         return size;
     }
 
@@ -225,6 +336,12 @@ public class EncodedAudioRecorder extends AbstractAudioRecorder {
             //buffer.clear();
             codec.releaseOutputBuffer(index, false);
             addEncoded(bufferCopied);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                long samplePosition = info.presentationTimeUs * getSampleRate() / 1000000L;
+                recordLatency(mEncodeLatency, samplePosition);
+                mEncodedSamplePosition = samplePosition;
+                updateEncoderQueueDepth();
+            }
             if (Log.DEBUG) {
                 AudioUtils.showSomeBytes("out", bufferCopied);
             }
@@ -243,7 +360,7 @@ public class EncodedAudioRecorder extends AbstractAudioRecorder {
      * Buffers containing codec-specific-data have no meaningful timestamps.
      */
     @RequiresPermission(RECORD_AUDIO)
-    private int recorderEncoderLoop(MediaCodec codec, AudioRecord speechRecord) {
+    private int recorderEncoderLoop(MediaCodec codec, AudioSource speechRecord) {
         int status = -1;
         codec.start();
         // Getting some buffers (e.g. 4 of each) to communicate with the codec
@@ -0,0 +1,77 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.util.Arrays;
+
+/**
+ * <p>Keeps track of the energy (sum of squares of the samples) of the most recently
+ * recorded chunk, and of a sliding window (e.g. one second) of the most recent samples.</p>
+ * <p>
+ * The sums are updated incrementally by the recorder thread, i.e. every sample is looked at once,
+ * and published via volatile fields, so that the queries are constant-time and can be made from
+ * any thread (e.g. the UI thread that shows the volume).
+ * </p>
+ */
+class EnergyTracker {
+
+    // Squares of the samples in the window, the oldest is overwritten by the newest
+    private final int[] mSquares;
+    private int mIndex = 0;
+    private long mSum = 0;
+
+    private volatile double mChunkMeanSquare = 0;
+    private volatile long mWindowSumOfSquares = 0;
+
+    /**
+     * @param windowNumOfSamples length of the sliding window in samples
+     */
+    EnergyTracker(int windowNumOfSamples) {
+        mSquares = new int[windowNumOfSamples];
+    }
+
+    /**
+     * Adds the given chunk of samples. Called only by the recorder thread.
+     */
+    void add(short[] samples, int off, int len) {
+        int end = off + len;
+        long chunkSum = 0;
+        for (int i = off; i < end; i++) {
+            int sample = samples[i];
+            int square = sample * sample;
+            chunkSum += square;
+            mSum += square - mSquares[mIndex];
+            mSquares[mIndex] = square;
+            if (++mIndex == mSquares.length) {
+                mIndex = 0;
+            }
+        }
+        if (len > 0) {
+            mChunkMeanSquare = (double) chunkSum / len;
+        }
+        mWindowSumOfSquares = mSum;
+    }
+
+    /**
+     * Forgets the samples added so far. Must not be called while samples are added.
+     */
+    void reset() {
+        Arrays.fill(mSquares, 0);
+        mIndex = 0;
+        mSum = 0;
+        mChunkMeanSquare = 0;
+        mWindowSumOfSquares = 0;
+    }
+
+    /**
+     * @return mean of the squares of the samples of the most recent chunk
+     */
+    double getChunkMeanSquare() {
+        return mChunkMeanSquare;
+    }
+
+    /**
+     * @return sum of the squares of the samples in the sliding window
+     */
+    long getWindowSumOfSquares() {
+        return mWindowSumOfSquares;
+    }
+}
@@ -0,0 +1,252 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * <p>Audio source that replays a WAV file (16-bit PCM) or a headerless file of 16-bit little-endian PCM,
+ * either in real time (a read blocks until its audio would have been captured by a microphone) or
+ * as fast as possible, e.g. to run the recorder on a plain JVM in tests and benchmarks.</p>
+ * <p>
+ * The source stops by itself once the end of the file has been read, i.e. the recorder loop then
+ * finishes. Starting a stopped source continues from where it stopped (see {@link #rewind()}).
+ * </p>
+ */
+public class FileAudioSource implements AudioSource {
+
+    public static final int ERROR = -1;
+
+    private static final int DEFAULT_BUFFER_MILLIS = 80;
+
+    private final RandomAccessFile mFile;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final boolean mIsRealTime;
+    private final long mDataOffset;
+    private final long mDataEnd;
+    private final int mFrameSize;
+
+    private byte[] mBytes = new byte[0];
+    private volatile boolean mIsReleased = false;
+    private volatile boolean mIsRecording = false;
+    private volatile long mStartTimeNanos;
+    private long mNumOfFramesRead = 0;
+
+    /**
+     * Replays the given WAV file.
+     *
+     * @param realTime true to replay in real time, false to replay as fast as possible
+     * @throws IOException if the file cannot be read, or is not a WAV file of 16-bit PCM
+     */
+    public FileAudioSource(File file, boolean realTime) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            long[] header = parseWavHeader(mFile);
+            mSampleRate = (int) header[0];
+            mChannelCount = (int) header[1];
+            mDataOffset = header[2];
+            // The length is 0 in the header of a file that is still being written
+            mDataEnd = header[3] == 0 ? mFile.length() : Math.min(mFile.length(), header[2] + header[3]);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mIsRealTime = realTime;
+        mFrameSize = AudioRecorder.RESOLUTION_IN_BYTES * mChannelCount;
+        mFile.seek(mDataOffset);
+    }
+
+    /**
+     * Replays the given file of headerless 16-bit little-endian PCM.
+     */
+    public FileAudioSource(File file, int sampleRate, int channelCount, boolean realTime) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mIsRealTime = realTime;
+        mDataOffset = 0;
+        mDataEnd = mFile.length();
+        mFrameSize = AudioRecorder.RESOLUTION_IN_BYTES * mChannelCount;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return DEFAULT_BUFFER_MILLIS * mSampleRate / 1000 * mFrameSize;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return !mIsReleased;
+    }
+
+    @Override
+    public boolean isRecording() {
+        return mIsRecording;
+    }
+
+    @Override
+    public void start() {
+        if (mIsReleased) {
+            return;
+        }
+        mNumOfFramesRead = 0;
+        mStartTimeNanos = System.nanoTime();
+        mIsRecording = true;
+    }
+
+    @Override
+    public void stop() {
+        mIsRecording = false;
+    }
+
+    @Override
+    public void release() {
+        mIsRecording = false;
+        mIsReleased = true;
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.e("Closing the replayed file failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves back to the beginning of the audio, e.g. to replay the file again after it has ended.
+     */
+    public void rewind() throws IOException {
+        mFile.seek(mDataOffset);
+    }
+
+    @Override
+    public int read(short[] dst, int off, int len) {
+        int numOfBytes = readBytes(len * AudioRecorder.RESOLUTION_IN_BYTES);
+        if (numOfBytes <= 0) {
+            return numOfBytes;
+        }
+        int numOfSamples = numOfBytes / AudioRecorder.RESOLUTION_IN_BYTES;
+        for (int i = 0; i < numOfSamples; i++) {
+            dst[off + i] = (short) ((mBytes[2 * i] & 0xff) | (mBytes[2 * i + 1] << 8));
+        }
+        return numOfSamples;
+    }
+
+    @Override
+    public int read(byte[] dst, int off, int len) {
+        int numOfBytes = readBytes(len);
+        if (numOfBytes > 0) {
+            System.arraycopy(mBytes, 0, dst, off, numOfBytes);
+        }
+        return numOfBytes;
+    }
+
+    /**
+     * In the real-time mode the frames are captured at the sample rate from the start of the source.
+     */
+    @Override
+    public long getCaptureTimeNanos(long framePosition) {
+        if (!mIsRealTime) {
+            return -1;
+        }
+        return mStartTimeNanos + framePosition * 1000000000L / mSampleRate;
+    }
+
+    /**
+     * Reads whole frames (at most the given number of bytes) into mBytes, and in the real-time mode
+     * waits until the read frames would have been captured.
+     *
+     * @return number of bytes read, 0 if the source is not recording, or ERROR
+     */
+    private int readBytes(int len) {
+        if (!mIsRecording) {
+            return 0;
+        }
+        try {
+            long remaining = mDataEnd - mFile.getFilePointer();
+            int numOfBytes = (int) Math.min(len, remaining) / mFrameSize * mFrameSize;
+            if (mBytes.length < numOfBytes) {
+                mBytes = new byte[numOfBytes];
+            }
+            mFile.readFully(mBytes, 0, numOfBytes);
+            if (numOfBytes == remaining) {
+                // The end of the file, the recorder loop finishes after this read
+                mIsRecording = false;
+            }
+            mNumOfFramesRead += numOfBytes / mFrameSize;
+            if (mIsRealTime) {
+                waitUntilCaptured(mNumOfFramesRead);
+            }
+            return numOfBytes;
+        } catch (IOException e) {
+            Log.e("Reading the replayed file failed: " + e.getMessage());
+            return ERROR;
+        }
+    }
+
+    private void waitUntilCaptured(long framePosition) {
+        long delayNanos = getCaptureTimeNanos(framePosition) - System.nanoTime();
+        if (delayNanos > 0) {
+            try {
+                Thread.sleep(delayNanos / 1000000, (int) (delayNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Finds the format and the data of a WAV file, skipping the chunks that are not needed.
+     *
+     * @return sample rate, number of channels, offset of the data, and length of the data
+     */
+    private static long[] parseWavHeader(RandomAccessFile file) throws IOException {
+        byte[] bytes = new byte[16];
+        file.readFully(bytes, 0, 12);
+        if (!"RIFF".equals(new String(bytes, 0, 4, "US-ASCII")) || !"WAVE".equals(new String(bytes, 8, 4, "US-ASCII"))) {
+            throw new IOException("Not a WAV file");
+        }
+        long sampleRate = -1;
+        long channelCount = -1;
+        while (file.getFilePointer() + 8 <= file.length()) {
+            file.readFully(bytes, 0, 8);
+            String id = new String(bytes, 0, 4, "US-ASCII");
+            long length = getInt(bytes, 4) & 0xffffffffL;
+            long next = file.getFilePointer() + length + (length & 1);
+            if ("fmt ".equals(id)) {
+                file.readFully(bytes, 0, 16);
+                int format = getShort(bytes, 0);
+                int bitsPerSample = getShort(bytes, 14);
+                if (format != 1 || bitsPerSample != 16) {
+                    throw new IOException("Not 16-bit PCM: format " + format + ", bits " + bitsPerSample);
+                }
+                channelCount = getShort(bytes, 2);
+                sampleRate = getInt(bytes, 4);
+            } else if ("data".equals(id)) {
+                if (sampleRate < 0) {
+                    throw new IOException("No format before the data");
+                }
+                return new long[]{sampleRate, channelCount, file.getFilePointer(), length};
+            }
+            file.seek(next);
+        }
+        throw new IOException("No data in the WAV file");
+    }
+
+    private static int getShort(byte[] bytes, int off) {
+        return (bytes[off] & 0xff) | (bytes[off + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] bytes, int off) {
+        return getShort(bytes, off) | getShort(bytes, off + 2) << 16;
+    }
+}
@@ -0,0 +1,112 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Histogram of latencies with logarithmic buckets: bucket 0 counts the latencies below 1 ms,
+ * and bucket i the latencies from 2^(i-1) to 2^i ms, up to about 9 minutes.</p>
+ * <p>
+ * Recording a latency does not allocate or lock, i.e. it can be done on the recorder thread and
+ * on the consumer threads at the same time, and the histogram can be queried from any thread.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    public static final int NUM_OF_BUCKETS = 20;
+
+    private final String mName;
+    private final AtomicLongArray mCounts = new AtomicLongArray(NUM_OF_BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @param latencyNanos latency in nanoseconds, negative values are counted as 0
+     */
+    public void record(long latencyNanos) {
+        long nanos = Math.max(0, latencyNanos);
+        long millis = nanos / 1000000;
+        int bucket = Math.min(NUM_OF_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+        mCounts.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSumNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = mMaxNanos.get();
+        } while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return number of latencies in the given bucket
+     */
+    public long getCount(int bucket) {
+        return mCounts.get(bucket);
+    }
+
+    /**
+     * @return upper bound (in milliseconds) of the latencies in the given bucket
+     */
+    public static long getBucketLimitMillis(int bucket) {
+        return 1L << bucket;
+    }
+
+    public double getMeanMillis() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSumNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxMillis() {
+        return mMaxNanos.get() / 1e6;
+    }
+
+    /**
+     * @param percentile e.g. 50 for the median or 99
+     * @return upper bound (in milliseconds) of the bucket that contains the given percentile,
+     * or 0 if nothing has been recorded
+     */
+    public long getPercentileMillis(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long sum = 0;
+        for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+            sum += mCounts.get(i);
+            if (sum >= rank) {
+                return getBucketLimitMillis(i);
+            }
+        }
+        return getBucketLimitMillis(NUM_OF_BUCKETS - 1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSumNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: n=%d mean=%.1fms p50<%dms p90<%dms p99<%dms max=%.1fms",
+                mName, getCount(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(90),
+                getPercentileMillis(99), getMaxMillis());
+    }
+}
@@ -0,0 +1,59 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.nio.ShortBuffer;
+
+import ee.ioc.phon.android.speechutils.dsp.FeatureRingBuffer;
+import ee.ioc.phon.android.speechutils.dsp.LogMelExtractor;
+
+/**
+ * <p>Feeds the recorded samples into a log-mel extractor, so that the features are computed
+ * incrementally on the recorder thread as the audio arrives, rather than by re-analyzing
+ * snapshots of the complete recording.</p>
+ * <p>
+ * Register with {@link AudioRecorder#addAudioSampleListener}. The consumers read the features
+ * from {@link #getFeatures()} at their own frame index. If the recorder is reset (i.e. the sample
+ * positions do not continue), the extractor is reset, and the frames are counted again from zero.
+ * </p>
+ */
+public class LogMelFeatureListener implements AudioSampleListener {
+
+    private final LogMelExtractor mExtractor;
+
+    // Position of the next expected sample, and of the first sample of frame 0
+    private long mNextPosition = -1;
+    private volatile long mStartPosition = 0;
+
+    public LogMelFeatureListener(LogMelExtractor extractor) {
+        mExtractor = extractor;
+    }
+
+    public LogMelFeatureListener(int sampleRate) {
+        this(new LogMelExtractor(sampleRate));
+    }
+
+    public LogMelExtractor getExtractor() {
+        return mExtractor;
+    }
+
+    public FeatureRingBuffer getFeatures() {
+        return mExtractor.getFeatures();
+    }
+
+    /**
+     * @return position (counted in samples since the start of the recorder) of the first sample
+     * of the given frame
+     */
+    public long getSamplePosition(long frameIndex) {
+        return mStartPosition + frameIndex * mExtractor.getShift();
+    }
+
+    @Override
+    public void onAudioSamples(ShortBuffer samples, long samplePosition, long timeNanos) {
+        if (samplePosition != mNextPosition) {
+            mExtractor.reset();
+            mStartPosition = samplePosition;
+        }
+        mNextPosition = samplePosition + samples.remaining();
+        mExtractor.add(samples);
+    }
+}
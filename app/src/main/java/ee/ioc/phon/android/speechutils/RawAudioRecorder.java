@@ -16,6 +16,8 @@
 
 package ee.ioc.phon.android.speechutils;
 
+import android.annotation.SuppressLint;
+
 import androidx.annotation.RequiresPermission;
 
 import static android.Manifest.permission.RECORD_AUDIO;
@@ -50,12 +52,13 @@ public class RawAudioRecorder extends AbstractAudioRecorder {
      * <p>Android docs say: 44100Hz is currently the only rate that is guaranteed to work on all devices,
      * but other rates such as 22050, 16000, and 11025 may work on some devices.</p>
      *
-     * @param audioSource Identifier of the audio source (e.g. microphone)
-     * @param sampleRate  Sample rate (e.g. 16000)
+     * @param audioSource              Identifier of the audio source (e.g. microphone)
+     * @param sampleRate               Sample rate (e.g. 16000)
+     * @param maxRecordingLengthMillis Maximum length of the recording
      */
     @RequiresPermission(RECORD_AUDIO)
-    public RawAudioRecorder(int audioSource, int sampleRate) {
-        super(audioSource, sampleRate);
+    public RawAudioRecorder(int audioSource, int sampleRate, int maxRecordingLengthMillis) {
+        super(audioSource, sampleRate, maxRecordingLengthMillis);
         try {
             int bufferSize = getBufferSize();
             int framePeriod = bufferSize / (2 * RESOLUTION_IN_BYTES * CHANNELS);
@@ -71,6 +74,38 @@ public class RawAudioRecorder extends AbstractAudioRecorder {
         }
     }
 
+    /**
+     * <p>Instantiates a new recorder that records from the given source (e.g. a replayed file)
+     * instead of the microphone, and sets the state to READY.
+     * In case of errors, no exception is thrown, but the state is set to ERROR.</p>
+     *
+     * @param source                   Source of the audio, which is released with the recorder
+     * @param sampleRate               Sample rate of the recording (at most the rate of the source)
+     * @param maxRecordingLengthMillis Maximum length of the recording
+     */
+    @SuppressLint("MissingPermission") // The given source is not the microphone
+    public RawAudioRecorder(AudioSource source, int sampleRate, int maxRecordingLengthMillis) {
+        super(source, sampleRate, maxRecordingLengthMillis, false, null);
+        try {
+            int bufferSize = getBufferSize();
+            int framePeriod = bufferSize / (2 * RESOLUTION_IN_BYTES * CHANNELS);
+            createRecorder(DEFAULT_AUDIO_SOURCE, source.getSampleRate(), bufferSize);
+            createBuffer(framePeriod);
+            setState(State.READY);
+        } catch (Exception e) {
+            if (e.getMessage() == null) {
+                handleError("Unknown error occurred while initializing recorder");
+            } else {
+                handleError(e.getMessage());
+            }
+        }
+    }
+
+    @RequiresPermission(RECORD_AUDIO)
+    public RawAudioRecorder(int audioSource, int sampleRate) {
+        this(audioSource, sampleRate, DEFAULT_BUFFER_LENGTH_IN_MILLIS);
+    }
+
     @RequiresPermission(RECORD_AUDIO)
     public RawAudioRecorder(int sampleRate) {
         this(DEFAULT_AUDIO_SOURCE, sampleRate);
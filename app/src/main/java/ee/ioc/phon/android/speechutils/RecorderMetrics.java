@@ -0,0 +1,303 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.util.Locale;
+
+/**
+ * <p>Health of a recorder: counters of the reads and of the lost audio, and gauges of the buffer fill
+ * and of the consumer lag, which are otherwise only visible in the (compiled out) debug log.</p>
+ * <p>
+ * Every counter has a single writer, the recorder thread (or the watchdog for the stalls), which
+ * updates it as a volatile field, without locking or allocating, i.e. the metrics can be left on in production. Any thread can take a snapshot.
+ * The counters are cumulative over the recordings of the recorder, until {@link #reset()}.
+ * </p>
+ */
+public class RecorderMetrics {
+
+    private final LatencyHistogram mReadLatency = new LatencyHistogram("read-call");
+
+    private volatile long mNumOfBytesRead = 0;
+    private volatile long mNumOfReads = 0;
+    private volatile long mNumOfZeroReads = 0;
+    private volatile long mNumOfShortReads = 0;
+    private volatile long mNumOfErrorReads = 0;
+    private volatile long mNumOfOverflows = 0;
+    private volatile long mNumOfOverwrittenBytes = 0;
+    private volatile long mNumOfStalls = 0;
+    private volatile long mNumOfRecoveries = 0;
+    private volatile int mCapacity = 0;
+    private volatile int mFill = 0;
+    private volatile int mFillHighWaterMark = 0;
+    private volatile long mConsumerLag = 0;
+    private volatile int mEncoderQueueDepth = 0;
+
+    /**
+     * Called by the recorder thread after every read from the microphone.
+     *
+     * @param numOfBytes   number of bytes read (or a negative error code)
+     * @param len          number of bytes requested
+     * @param latencyNanos time spent in the read call
+     */
+    void onRead(int numOfBytes, int len, long latencyNanos) {
+        mReadLatency.record(latencyNanos);
+        mNumOfReads++;
+        if (numOfBytes < 0) {
+            mNumOfErrorReads++;
+        } else if (numOfBytes == 0) {
+            mNumOfZeroReads++;
+        } else {
+            mNumOfBytesRead += numOfBytes;
+            if (numOfBytes < len) {
+                mNumOfShortReads++;
+            }
+        }
+    }
+
+    /**
+     * Called by the recorder thread when the (non-overwriting) recording buffer is full.
+     */
+    void onOverflow() {
+        mNumOfOverflows++;
+    }
+
+    /**
+     * Called by the watchdog when the capture has stalled.
+     */
+    void onStall() {
+        mNumOfStalls++;
+    }
+
+    /**
+     * Called by the recorder thread when the capture has been restarted.
+     */
+    void onRecovery() {
+        mNumOfRecoveries++;
+    }
+
+    /**
+     * Called by the recorder thread after the read audio has been added to the recording.
+     *
+     * @param capacity           capacity (in bytes) of the recording buffer
+     * @param fill               number of unconsumed bytes in the recording buffer
+     * @param consumerLag        number of bytes recorded since the consumed position (can exceed the capacity)
+     * @param numOfOverwritten   number of unconsumed bytes that were overwritten by this read
+     */
+    void onRecorded(int capacity, int fill, long consumerLag, int numOfOverwritten) {
+        mCapacity = capacity;
+        mFill = fill;
+        if (fill > mFillHighWaterMark) {
+            mFillHighWaterMark = fill;
+        }
+        mConsumerLag = consumerLag;
+        if (numOfOverwritten > 0) {
+            mNumOfOverwrittenBytes += numOfOverwritten;
+        }
+    }
+
+    /**
+     * @param numOfBytes number of bytes (of raw audio) that have been given to the encoder,
+     *                   but have not been output yet
+     */
+    void setEncoderQueueDepth(int numOfBytes) {
+        mEncoderQueueDepth = numOfBytes;
+    }
+
+    /**
+     * @return distribution of the time spent in the read calls, i.e. mostly waiting for the microphone
+     */
+    public LatencyHistogram getReadLatency() {
+        return mReadLatency;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Resets the counters, e.g. after they have been reported. Should not be called while recording.
+     */
+    public void reset() {
+        mReadLatency.reset();
+        mNumOfBytesRead = 0;
+        mNumOfReads = 0;
+        mNumOfZeroReads = 0;
+        mNumOfShortReads = 0;
+        mNumOfErrorReads = 0;
+        mNumOfOverflows = 0;
+        mNumOfOverwrittenBytes = 0;
+        mNumOfStalls = 0;
+        mNumOfRecoveries = 0;
+        mFillHighWaterMark = mFill;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * Immutable copy of the metrics at the time of the snapshot.
+     */
+    public static class Snapshot {
+
+        private final long mTimeNanos = System.nanoTime();
+        private final long mNumOfBytesRead;
+        private final long mNumOfReads;
+        private final long mNumOfZeroReads;
+        private final long mNumOfShortReads;
+        private final long mNumOfErrorReads;
+        private final long mNumOfOverflows;
+        private final long mNumOfOverwrittenBytes;
+        private final long mNumOfStalls;
+        private final long mNumOfRecoveries;
+        private final int mCapacity;
+        private final int mFill;
+        private final int mFillHighWaterMark;
+        private final long mConsumerLag;
+        private final int mEncoderQueueDepth;
+        private final double mReadLatencyMeanMillis;
+        private final long mReadLatencyP99Millis;
+        private final double mReadLatencyMaxMillis;
+
+        private Snapshot(RecorderMetrics metrics) {
+            mNumOfBytesRead = metrics.mNumOfBytesRead;
+            mNumOfReads = metrics.mNumOfReads;
+            mNumOfZeroReads = metrics.mNumOfZeroReads;
+            mNumOfShortReads = metrics.mNumOfShortReads;
+            mNumOfErrorReads = metrics.mNumOfErrorReads;
+            mNumOfOverflows = metrics.mNumOfOverflows;
+            mNumOfOverwrittenBytes = metrics.mNumOfOverwrittenBytes;
+            mNumOfStalls = metrics.mNumOfStalls;
+            mNumOfRecoveries = metrics.mNumOfRecoveries;
+            mCapacity = metrics.mCapacity;
+            mFill = metrics.mFill;
+            mFillHighWaterMark = metrics.mFillHighWaterMark;
+            mConsumerLag = metrics.mConsumerLag;
+            mEncoderQueueDepth = metrics.mEncoderQueueDepth;
+            mReadLatencyMeanMillis = metrics.mReadLatency.getMeanMillis();
+            mReadLatencyP99Millis = metrics.mReadLatency.getPercentileMillis(99);
+            mReadLatencyMaxMillis = metrics.mReadLatency.getMaxMillis();
+        }
+
+        /**
+         * @return time (System.nanoTime) of the snapshot, e.g. to compute rates from two snapshots
+         */
+        public long getTimeNanos() {
+            return mTimeNanos;
+        }
+
+        public long getNumOfBytesRead() {
+            return mNumOfBytesRead;
+        }
+
+        public long getNumOfReads() {
+            return mNumOfReads;
+        }
+
+        /**
+         * @return number of reads that returned nothing, e.g. because the mediaserver died
+         */
+        public long getNumOfZeroReads() {
+            return mNumOfZeroReads;
+        }
+
+        /**
+         * @return number of reads that returned fewer bytes than requested
+         */
+        public long getNumOfShortReads() {
+            return mNumOfShortReads;
+        }
+
+        /**
+         * @return number of reads that returned an error code
+         */
+        public long getNumOfErrorReads() {
+            return mNumOfErrorReads;
+        }
+
+        /**
+         * @return number of times the (non-overwriting) recording buffer was full
+         */
+        public long getNumOfOverflows() {
+            return mNumOfOverflows;
+        }
+
+        /**
+         * @return number of bytes that were overwritten before they were consumed (in the always-listen mode)
+         */
+        public long getNumOfOverwrittenBytes() {
+            return mNumOfOverwrittenBytes;
+        }
+
+        /**
+         * @return number of times the capture stalled, i.e. delivered no audio for too long (in the always-listen mode)
+         */
+        public long getNumOfStalls() {
+            return mNumOfStalls;
+        }
+
+        /**
+         * @return number of times the capture was restarted after a failed read or a stall (in the always-listen mode)
+         */
+        public long getNumOfRecoveries() {
+            return mNumOfRecoveries;
+        }
+
+        /**
+         * @return capacity (in bytes) of the recording buffer
+         */
+        public int getCapacity() {
+            return mCapacity;
+        }
+
+        /**
+         * @return number of unconsumed bytes in the recording buffer after the latest read
+         */
+        public int getFill() {
+            return mFill;
+        }
+
+        /**
+         * @return largest fill of the recording buffer
+         */
+        public int getFillHighWaterMark() {
+            return mFillHighWaterMark;
+        }
+
+        /**
+         * @return number of bytes by which the consumer was behind the recorder after the latest read
+         */
+        public long getConsumerLag() {
+            return mConsumerLag;
+        }
+
+        /**
+         * @return number of bytes of raw audio in the encoder (0 if the recorder does not encode)
+         */
+        public int getEncoderQueueDepth() {
+            return mEncoderQueueDepth;
+        }
+
+        public double getReadLatencyMeanMillis() {
+            return mReadLatencyMeanMillis;
+        }
+
+        public long getReadLatencyP99Millis() {
+            return mReadLatencyP99Millis;
+        }
+
+        public double getReadLatencyMaxMillis() {
+            return mReadLatencyMaxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "reads=%d bytes=%d zero=%d short=%d error=%d overflows=%d overwritten=%d stalls=%d recoveries=%d "
+                            + "fill=%d/%d hwm=%d lag=%d encQueue=%d read: mean=%.1fms p99<%dms max=%.1fms",
+                    mNumOfReads, mNumOfBytesRead, mNumOfZeroReads, mNumOfShortReads, mNumOfErrorReads,
+                    mNumOfOverflows, mNumOfOverwrittenBytes, mNumOfStalls, mNumOfRecoveries, mFill, mCapacity, mFillHighWaterMark,
+                    mConsumerLag, mEncoderQueueDepth, mReadLatencyMeanMillis, mReadLatencyP99Millis,
+                    mReadLatencyMaxMillis);
+        }
+    }
+}
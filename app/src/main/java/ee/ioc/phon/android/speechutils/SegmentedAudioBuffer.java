@@ -0,0 +1,298 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>Single-producer/single-consumer audio buffer that consists of fixed-size blocks,
+ * which are taken from a pool as the recording grows, and returned to the pool once the audio
+ * in them has been dropped, i.e. a short recording takes only a few blocks.</p>
+ * <p>
+ * The buffer never overwrites the recording: once its (hard) capacity is reached, the producer
+ * refuses to write. By default the recording is kept until it is truncated, so that the complete
+ * recording can be read. If the consumed audio does not need to be kept, then its blocks can be
+ * released as soon as it has been consumed, in which case only the unconsumed audio
+ * counts towards the capacity. The audio is then released once the consumer and all the
+ * cursors have read it.
+ * </p>
+ * <p>
+ * The blocks are acquired and released only by the producer, the consumer only moves its positions.
+ * A block is released once it is completely before the oldest position. The oldest position can
+ * move while a cursor (on another thread) is reading, e.g. if the consumer truncates the recording,
+ * in which case the released block might already hold other audio. Every read therefore checks
+ * after the copy that the copied audio has not been released, and fails (returns -1) otherwise,
+ * as the reads of an overwriting {@link AudioRingBuffer} do.
+ * </p>
+ */
+public class SegmentedAudioBuffer extends AudioBuffer {
+
+    private final AudioBlockPool mPool;
+    private final int mBlockSize;
+    private final int mBlockShift;
+    private final int mBlockMask;
+    private final int mCapacity;
+
+    // Blocks indexed by the block number (i.e. position divided by the block size) modulo the
+    // number of slots. Read by the consumer and the cursors only at positions that were published by the producer.
+    private final byte[][] mBlocks;
+
+    private volatile boolean mReleaseConsumed = false;
+
+    // Owned by the producer: number of the oldest block that might still be held
+    private long mFirstHeldBlock = 0;
+    // Position before which the blocks have been released, never moves backwards
+    private volatile long mReleasedPosition = 0;
+    private volatile int mNumOfBlocks = 0;
+
+    /**
+     * @param pool        pool of blocks
+     * @param maxCapacity maximum number of bytes that the buffer can hold,
+     *                    rounded up to a multiple of the block size
+     */
+    public SegmentedAudioBuffer(AudioBlockPool pool, int maxCapacity) {
+        mPool = pool;
+        mBlockSize = pool.getBlockSize();
+        mBlockShift = Integer.numberOfTrailingZeros(mBlockSize);
+        mBlockMask = mBlockSize - 1;
+        int numOfBlocks = Math.max(1, (maxCapacity + mBlockMask) >>> mBlockShift);
+        mCapacity = numOfBlocks * mBlockSize;
+        // A recording that fills the capacity can start in the middle of a block
+        mBlocks = new byte[numOfBlocks + 1][];
+    }
+
+    @Override
+    public int capacity() {
+        return mCapacity;
+    }
+
+    @Override
+    public boolean isOverwrite() {
+        return false;
+    }
+
+    /**
+     * Sets whether the consumed audio is dropped (and its blocks released), in which case it is not part of
+     * the complete recording anymore. Should be set before the recording starts.
+     */
+    public void setReleaseConsumed(boolean releaseConsumed) {
+        mReleaseConsumed = releaseConsumed;
+    }
+
+    public boolean isReleaseConsumed() {
+        return mReleaseConsumed;
+    }
+
+    @Override
+    public long getOldestPosition() {
+        long oldestPosition = mReleaseConsumed ? Math.max(mStartPosition.get(), getSlowestReadPosition()) : mStartPosition.get();
+        return Math.max(oldestPosition, mReleasedPosition);
+    }
+
+    @Override
+    public int remaining() {
+        return (int) (mCapacity - (mWritePosition.get() - getOldestPosition()));
+    }
+
+    /**
+     * @return number of blocks that the buffer currently holds
+     */
+    public int getNumOfBlocks() {
+        return mNumOfBlocks;
+    }
+
+    @Override
+    public boolean write(byte[] src, int off, int len) {
+        long writePosition = mWritePosition.get();
+        long oldestPosition = getOldestPosition();
+        if (writePosition + len - oldestPosition > mCapacity) {
+            return false;
+        }
+        releaseBlocks(oldestPosition);
+        while (len > 0) {
+            byte[] block = getBlockForWriting(writePosition);
+            int index = (int) (writePosition & mBlockMask);
+            int numOfBytes = Math.min(len, mBlockSize - index);
+            System.arraycopy(src, off, block, index, numOfBytes);
+            off += numOfBytes;
+            len -= numOfBytes;
+            writePosition += numOfBytes;
+        }
+        mWritePosition.setOrdered(writePosition);
+        return true;
+    }
+
+    @Override
+    public boolean write(short[] src, int off, int len) {
+        long writePosition = mWritePosition.get();
+        long oldestPosition = getOldestPosition();
+        if (writePosition + 2L * len - oldestPosition > mCapacity) {
+            return false;
+        }
+        releaseBlocks(oldestPosition);
+        // The positions of the samples are always even, i.e. a sample never spans two blocks
+        while (len > 0) {
+            byte[] block = getBlockForWriting(writePosition);
+            int index = (int) (writePosition & mBlockMask);
+            int numOfSamples = Math.min(len, (mBlockSize - index) >> 1);
+            for (int end = off + numOfSamples; off < end; off++) {
+                short sample = src[off];
+                block[index++] = (byte) sample;
+                block[index++] = (byte) (sample >> 8);
+            }
+            len -= numOfSamples;
+            writePosition += 2 * numOfSamples;
+        }
+        mWritePosition.setOrdered(writePosition);
+        return true;
+    }
+
+    @Override
+    public int read(long position, byte[] dst, int off, int len) {
+        if (position < getOldestPosition() || position + len > mWritePosition.get()) {
+            return -1;
+        }
+        long startPosition = position;
+        int numOfBytesLeft = len;
+        while (numOfBytesLeft > 0) {
+            byte[] block = getBlock(position);
+            if (block == null) {
+                return -1;
+            }
+            int index = (int) (position & mBlockMask);
+            int numOfBytes = Math.min(numOfBytesLeft, mBlockSize - index);
+            System.arraycopy(block, index, dst, off, numOfBytes);
+            off += numOfBytes;
+            numOfBytesLeft -= numOfBytes;
+            position += numOfBytes;
+        }
+        return isReleased(startPosition) ? -1 : len;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst, int len) {
+        if (position < getOldestPosition() || position + len > mWritePosition.get()) {
+            return -1;
+        }
+        long startPosition = position;
+        int numOfBytesLeft = len;
+        while (numOfBytesLeft > 0) {
+            byte[] block = getBlock(position);
+            if (block == null) {
+                return -1;
+            }
+            int index = (int) (position & mBlockMask);
+            int numOfBytes = Math.min(numOfBytesLeft, mBlockSize - index);
+            dst.put(block, index, numOfBytes);
+            numOfBytesLeft -= numOfBytes;
+            position += numOfBytes;
+        }
+        return isReleased(startPosition) ? -1 : len;
+    }
+
+    @Override
+    public int read(long position, WritableByteChannel dst, int len) throws IOException {
+        if (position < getOldestPosition() || position + len > mWritePosition.get()) {
+            return -1;
+        }
+        long startPosition = position;
+        int numOfBytesLeft = len;
+        while (numOfBytesLeft > 0) {
+            byte[] block = getBlock(position);
+            if (block == null) {
+                return -1;
+            }
+            int index = (int) (position & mBlockMask);
+            int numOfBytes = Math.min(numOfBytesLeft, mBlockSize - index);
+            ByteBuffer src = ByteBuffer.wrap(block, index, numOfBytes);
+            while (src.hasRemaining()) {
+                dst.write(src);
+            }
+            numOfBytesLeft -= numOfBytes;
+            position += numOfBytes;
+        }
+        return isReleased(startPosition) ? -1 : len;
+    }
+
+    @Override
+    public int read(long position, short[] dst, int off, int len) {
+        if (position < getOldestPosition() || position + 2L * len > mWritePosition.get()) {
+            return -1;
+        }
+        long startPosition = position;
+        int numOfSamplesLeft = len;
+        while (numOfSamplesLeft > 0) {
+            byte[] block = getBlock(position);
+            if (block == null) {
+                return -1;
+            }
+            int index = (int) (position & mBlockMask);
+            int numOfSamples = Math.min(numOfSamplesLeft, (mBlockSize - index) >> 1);
+            for (int end = off + numOfSamples; off < end; off++) {
+                dst[off] = (short) ((block[index++] & 0xFF) | (block[index++] << 8));
+            }
+            numOfSamplesLeft -= numOfSamples;
+            position += 2 * numOfSamples;
+        }
+        return isReleased(startPosition) ? -1 : len;
+    }
+
+    /**
+     * A copy is consistent only if the copied blocks were not released (and reused) while copying.
+     */
+    private boolean isReleased(long position) {
+        return position < getOldestPosition();
+    }
+
+    /**
+     * Also returns all the blocks to the pool.
+     */
+    @Override
+    public void clear() {
+        for (int i = 0; i < mBlocks.length; i++) {
+            if (mBlocks[i] != null) {
+                mPool.release(mBlocks[i]);
+                mBlocks[i] = null;
+            }
+        }
+        mNumOfBlocks = 0;
+        mFirstHeldBlock = 0;
+        mReleasedPosition = 0;
+        super.clear();
+    }
+
+    private byte[] getBlock(long position) {
+        return mBlocks[(int) ((position >>> mBlockShift) % mBlocks.length)];
+    }
+
+    private byte[] getBlockForWriting(long position) {
+        int slot = (int) ((position >>> mBlockShift) % mBlocks.length);
+        byte[] block = mBlocks[slot];
+        if (block == null) {
+            block = mPool.acquire();
+            mBlocks[slot] = block;
+            mNumOfBlocks++;
+        }
+        return block;
+    }
+
+    /**
+     * Returns the blocks that are completely before the given position to the pool.
+     */
+    private void releaseBlocks(long oldestPosition) {
+        long oldestBlock = oldestPosition >>> mBlockShift;
+        long lastBlock = Math.min(oldestBlock, mFirstHeldBlock + mBlocks.length);
+        for (long i = mFirstHeldBlock; i < lastBlock; i++) {
+            int slot = (int) (i % mBlocks.length);
+            if (mBlocks[slot] != null) {
+                mPool.release(mBlocks[slot]);
+                mBlocks[slot] = null;
+                mNumOfBlocks--;
+            }
+        }
+        if (oldestBlock > mFirstHeldBlock) {
+            mFirstHeldBlock = oldestBlock;
+            mReleasedPosition = oldestBlock << mBlockShift;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import ee.ioc.phon.android.speechutils.dsp.VoiceActivityDetector;
+
+/**
+ * <p>Removes the non-speech spans from a raw recording before it is uploaded, so that the leading,
+ * trailing and long internal silences do not go over the wire.</p>
+ * <p>
+ * The recording is split into frames, which are classified by a voice activity detector or, if there
+ * is none, by their energy relative to the noise floor of the recording (the energy of its quietest
+ * frames). Every run of speech frames is kept with some padding of the surrounding audio on both
+ * sides, so that the onsets and the endings of the words are not clipped, and a pause between two
+ * runs is kept whole if removing it would save no more than the padding. Everything else is dropped,
+ * i.e. a long pause shrinks to twice the padding. The positions in the compacted recording can be
+ * mapped back to the original one with the returned {@link AudioOffsetMap}.
+ * </p>
+ * <p>
+ * The frames are classified after the recording, rather than taken from the recorder while it records,
+ * because the recorder only keeps the start and the end of the speech (see
+ * {@link AbstractAudioRecorder#setVoiceActivityDetector}), not the pauses within it. A detector that is
+ * given to the compactor must therefore be a separate instance from the one of the recorder.
+ * </p>
+ * <p>
+ * If no speech is found, the recording is returned as it is, so that a missed detection does not lose
+ * the audio. The recording is 16-bit little-endian mono PCM, as returned by
+ * {@link AudioRecorder#consumeRecording()}. An instance is not thread-safe.
+ * </p>
+ */
+public class SilenceCompactor {
+
+    public static final int DEFAULT_FRAME_LENGTH_MILLIS = 20;
+    public static final int DEFAULT_PADDING_MILLIS = 200;
+
+    // Without a detector, the speech frames are this much louder than the noise floor
+    private static final double ENERGY_THRESHOLD_DB = 10;
+    // The noise floor is the energy exceeded by this fraction of the frames
+    private static final double NOISE_FLOOR_PERCENTILE = 0.1;
+    // ... but is not lower than -60 dBFS, so that digital silence does not make all the noise speech
+    private static final double MIN_NOISE_FLOOR = Math.pow(Short.MAX_VALUE / 1000.0, 2);
+
+    private static final int RESOLUTION_IN_BYTES = 2;
+
+    private final int mSampleRate;
+    private final VoiceActivityDetector mVad;
+    private final int mFrameLength;
+    private final int mPaddingFrames;
+    private final short[] mFrame;
+
+    public SilenceCompactor(int sampleRate) {
+        this(sampleRate, null, DEFAULT_FRAME_LENGTH_MILLIS, DEFAULT_PADDING_MILLIS);
+    }
+
+    /**
+     * @param sampleRate        sample rate of the recordings
+     * @param vad               voice activity detector (its own instance, as it is reset for every
+     *                          recording), or null to classify the frames by their energy
+     * @param frameLengthMillis length of the classified frames in milliseconds (10, 20 or 30)
+     * @param paddingMillis     length of the audio that is kept around the speech
+     */
+    public SilenceCompactor(int sampleRate, VoiceActivityDetector vad, int frameLengthMillis, int paddingMillis) {
+        if (frameLengthMillis != 10 && frameLengthMillis != 20 && frameLengthMillis != 30) {
+            throw new IllegalArgumentException("Frame length must be 10, 20 or 30 ms: " + frameLengthMillis);
+        }
+        if (paddingMillis < 0) {
+            throw new IllegalArgumentException("Padding must not be negative: " + paddingMillis);
+        }
+        mSampleRate = sampleRate;
+        mVad = vad;
+        mFrameLength = sampleRate * frameLengthMillis / 1000;
+        mPaddingFrames = (paddingMillis + frameLengthMillis - 1) / frameLengthMillis;
+        mFrame = new short[mFrameLength];
+    }
+
+    /**
+     * @param pcm raw recording (16-bit little-endian mono)
+     * @return compacted recording and the map of its positions to the positions of the given recording
+     */
+    public Result compact(byte[] pcm) {
+        int numOfSamples = pcm.length / RESOLUTION_IN_BYTES;
+        int numOfFrames = (numOfSamples + mFrameLength - 1) / mFrameLength;
+        boolean[] isKept = classify(ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer(), numOfFrames);
+        if (!pad(isKept)) {
+            return new Result(pcm, AudioOffsetMap.identity(mSampleRate, numOfSamples));
+        }
+
+        // Spans of the kept frames
+        int numOfSpans = 0;
+        int numOfKeptSamples = 0;
+        for (int n = 0; n < numOfFrames; n++) {
+            if (isKept[n]) {
+                if (n == 0 || !isKept[n - 1]) {
+                    numOfSpans++;
+                }
+                numOfKeptSamples += Math.min(mFrameLength, numOfSamples - n * mFrameLength);
+            }
+        }
+        long[] compactedStart = new long[numOfSpans];
+        long[] originalStart = new long[numOfSpans];
+        byte[] compacted = new byte[numOfKeptSamples * RESOLUTION_IN_BYTES];
+        int span = -1;
+        int pos = 0;
+        for (int n = 0; n < numOfFrames; n++) {
+            if (isKept[n]) {
+                int start = n * mFrameLength;
+                if (n == 0 || !isKept[n - 1]) {
+                    span++;
+                    compactedStart[span] = pos;
+                    originalStart[span] = start;
+                }
+                int len = Math.min(mFrameLength, numOfSamples - start);
+                System.arraycopy(pcm, start * RESOLUTION_IN_BYTES, compacted, pos * RESOLUTION_IN_BYTES, len * RESOLUTION_IN_BYTES);
+                pos += len;
+            }
+        }
+        return new Result(compacted, new AudioOffsetMap(mSampleRate, compactedStart, originalStart, numOfKeptSamples));
+    }
+
+    /**
+     * @return speech decision of every frame (the last frame can be incomplete)
+     */
+    private boolean[] classify(ShortBuffer samples, int numOfFrames) {
+        boolean[] isSpeech = new boolean[numOfFrames];
+        if (mVad != null) {
+            mVad.reset();
+            for (int n = 0; n < numOfFrames; n++) {
+                int len = Math.min(mFrameLength, samples.remaining());
+                samples.get(mFrame, 0, len);
+                isSpeech[n] = mVad.isSpeech(mFrame, 0, len);
+            }
+            return isSpeech;
+        }
+        double[] energy = new double[numOfFrames];
+        for (int n = 0; n < numOfFrames; n++) {
+            int len = Math.min(mFrameLength, samples.remaining());
+            samples.get(mFrame, 0, len);
+            double sum = 0;
+            for (int i = 0; i < len; i++) {
+                sum += mFrame[i] * mFrame[i];
+            }
+            energy[n] = sum / len;
+        }
+        double[] sorted = energy.clone();
+        Arrays.sort(sorted);
+        double floor = numOfFrames == 0 ? 0 : sorted[(int) (NOISE_FLOOR_PERCENTILE * (numOfFrames - 1))];
+        double threshold = Math.max(floor, MIN_NOISE_FLOOR) * Math.pow(10, ENERGY_THRESHOLD_DB / 10);
+        for (int n = 0; n < numOfFrames; n++) {
+            isSpeech[n] = energy[n] > threshold;
+        }
+        return isSpeech;
+    }
+
+    /**
+     * Extends the speech frames by the padding on both sides, and fills the gaps between them
+     * that are not longer than three times the padding.
+     *
+     * @return true iff there is speech
+     */
+    private boolean pad(boolean[] frames) {
+        int numOfFrames = frames.length;
+        int lastSpeech = -1;
+        boolean[] isSpeech = frames.clone();
+        for (int n = 0; n < numOfFrames; n++) {
+            if (!isSpeech[n]) {
+                continue;
+            }
+            int from = lastSpeech < 0 ? n - mPaddingFrames : lastSpeech + 1;
+            if (lastSpeech >= 0 && n - lastSpeech - 1 > 3 * mPaddingFrames) {
+                // The pause is long enough to be shortened
+                from = n - mPaddingFrames;
+                for (int i = lastSpeech + 1; i <= Math.min(numOfFrames - 1, lastSpeech + mPaddingFrames); i++) {
+                    frames[i] = true;
+                }
+            }
+            for (int i = Math.max(0, from); i < n; i++) {
+                frames[i] = true;
+            }
+            lastSpeech = n;
+        }
+        if (lastSpeech < 0) {
+            return false;
+        }
+        for (int i = lastSpeech + 1; i <= Math.min(numOfFrames - 1, lastSpeech + mPaddingFrames); i++) {
+            frames[i] = true;
+        }
+        return true;
+    }
+
+    /**
+     * Compacted recording and its offset map.
+     */
+    public static class Result {
+
+        private final byte[] mAudio;
+        private final AudioOffsetMap mOffsetMap;
+
+        Result(byte[] audio, AudioOffsetMap offsetMap) {
+            mAudio = audio;
+            mOffsetMap = offsetMap;
+        }
+
+        /**
+         * @return compacted recording (16-bit little-endian mono), or the original one if there is no speech
+         */
+        public byte[] getAudio() {
+            return mAudio;
+        }
+
+        public AudioOffsetMap getOffsetMap() {
+            return mOffsetMap;
+        }
+    }
+}
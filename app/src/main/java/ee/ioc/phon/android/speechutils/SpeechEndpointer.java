@@ -0,0 +1,128 @@
+package ee.ioc.phon.android.speechutils;
+
+import ee.ioc.phon.android.speechutils.dsp.VoiceActivityDetector;
+
+/**
+ * <p>Splits the recorded audio into frames, classifies them with a voice activity detector,
+ * and finds the beginning and the end of speech.</p>
+ * <p>
+ * The speech starts with the first frame of a run of (onset) speech frames, and ends with the first
+ * frame of a run of (hangover) non-speech frames, i.e. short pauses and short noises are ignored.
+ * The frames are processed by the recorder thread, the positions are published via volatile fields.
+ * </p>
+ */
+class SpeechEndpointer {
+
+    private final VoiceActivityDetector mVad;
+    private final short[] mFrame;
+    private final int mOnsetFrames;
+    private final int mHangoverFrames;
+
+    private int mFrameFill = 0;
+    // Position of the first sample in mFrame
+    private long mFramePosition = 0;
+
+    private int mNumOfSpeechFrames = 0;
+    private int mNumOfNonSpeechFrames = 0;
+    private long mSpeechFramePosition = -1;
+    private long mNonSpeechFramePosition = -1;
+
+    private volatile boolean mIsSpeech = false;
+    private volatile long mSpeechStartPosition = -1;
+    private volatile long mSpeechEndPosition = -1;
+
+    /**
+     * @param vad            voice activity detector
+     * @param frameLength    number of samples per frame
+     * @param onsetFrames    number of consecutive speech frames that start the speech
+     * @param hangoverFrames number of consecutive non-speech frames that end the speech
+     */
+    SpeechEndpointer(VoiceActivityDetector vad, int frameLength, int onsetFrames, int hangoverFrames) {
+        mVad = vad;
+        mFrame = new short[frameLength];
+        mOnsetFrames = Math.max(1, onsetFrames);
+        mHangoverFrames = Math.max(1, hangoverFrames);
+    }
+
+    /**
+     * Adds the given chunk of samples. Called only by the recorder thread.
+     *
+     * @param samplePosition position of the first sample of the chunk
+     */
+    void add(short[] samples, int off, int len, long samplePosition) {
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (mFrameFill == 0) {
+                mFramePosition = samplePosition + (i - off);
+            }
+            int numOfSamples = Math.min(end - i, mFrame.length - mFrameFill);
+            System.arraycopy(samples, i, mFrame, mFrameFill, numOfSamples);
+            mFrameFill += numOfSamples;
+            i += numOfSamples;
+            if (mFrameFill == mFrame.length) {
+                addFrame(mVad.isSpeech(mFrame, 0, mFrame.length), mFramePosition);
+                mFrameFill = 0;
+            }
+        }
+    }
+
+    /**
+     * Forgets the speech found so far, and resets the detector. Must not be called while samples are added.
+     */
+    void reset() {
+        mFrameFill = 0;
+        mNumOfSpeechFrames = 0;
+        mNumOfNonSpeechFrames = 0;
+        mSpeechFramePosition = -1;
+        mNonSpeechFramePosition = -1;
+        mIsSpeech = false;
+        mSpeechStartPosition = -1;
+        mSpeechEndPosition = -1;
+        mVad.reset();
+    }
+
+    private void addFrame(boolean isSpeech, long framePosition) {
+        if (isSpeech) {
+            if (mNumOfSpeechFrames++ == 0) {
+                mSpeechFramePosition = framePosition;
+            }
+            mNumOfNonSpeechFrames = 0;
+            if (!mIsSpeech && mNumOfSpeechFrames >= mOnsetFrames) {
+                mSpeechEndPosition = -1;
+                mSpeechStartPosition = mSpeechFramePosition;
+                mIsSpeech = true;
+            }
+        } else {
+            if (mNumOfNonSpeechFrames++ == 0) {
+                mNonSpeechFramePosition = framePosition;
+            }
+            mNumOfSpeechFrames = 0;
+            if (mIsSpeech && mNumOfNonSpeechFrames >= mHangoverFrames) {
+                mSpeechEndPosition = mNonSpeechFramePosition;
+                mIsSpeech = false;
+            }
+        }
+    }
+
+    /**
+     * @return true iff the speech has started and has not ended yet
+     */
+    boolean isSpeech() {
+        return mIsSpeech;
+    }
+
+    /**
+     * @return sample position where the (last) speech started, or -1 if no speech has been detected
+     */
+    long getSpeechStartPosition() {
+        return mSpeechStartPosition;
+    }
+
+    /**
+     * @return sample position where the (last) speech ended, or -1 if the speech has not ended
+     */
+    long getSpeechEndPosition() {
+        return mSpeechEndPosition;
+    }
+}
@@ -0,0 +1,164 @@
+package ee.ioc.phon.android.speechutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import ee.ioc.phon.android.speechutils.utils.AudioUtils;
+
+/**
+ * <p>Streams PCM audio into a WAV file through a single open file channel, e.g. straight from the
+ * recording buffer via {@link AbstractAudioRecorder#consumeRecording(WritableByteChannel)}, i.e.
+ * without reopening the file or copying the audio for every chunk.</p>
+ * <p>
+ * The header is written when the file is opened, and its sizes are patched in place at the given
+ * interval and on close, so that a crash leaves a playable file that is missing at most the last
+ * interval of audio in its header. Optionally the file is also synced (fsync) to the disk at every
+ * patch, i.e. the syncs are batched rather than done for every chunk. An instance is not thread-safe.
+ * </p>
+ */
+public class WavFileSink implements WritableByteChannel {
+
+    public static final int DEFAULT_UPDATE_INTERVAL_MILLIS = 1000;
+
+    private static final int HEADER_LENGTH = 44;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mSampleRate;
+    private final short mResolutionInBytes;
+    private final short mChannels;
+    private final long mUpdateIntervalNanos;
+    private final boolean mIsSync;
+
+    private long mDataLength = 0;
+    private long mHeaderDataLength = 0;
+    private long mUpdateTimeNanos;
+
+    public WavFileSink(File file, int sampleRate, short resolutionInBytes, short channels) throws IOException {
+        this(file, sampleRate, resolutionInBytes, channels, DEFAULT_UPDATE_INTERVAL_MILLIS, false);
+    }
+
+    /**
+     * Creates (or truncates) the file, and writes the header.
+     *
+     * @param updateIntervalMillis interval of patching the header (and syncing), 0 to do it after every write
+     * @param sync                 true to sync the file to the disk at every update
+     */
+    public WavFileSink(File file, int sampleRate, short resolutionInBytes, short channels,
+                       int updateIntervalMillis, boolean sync) throws IOException {
+        mSampleRate = sampleRate;
+        mResolutionInBytes = resolutionInBytes;
+        mChannels = channels;
+        mUpdateIntervalNanos = updateIntervalMillis * 1000000L;
+        mIsSync = sync;
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            mChannel.truncate(0);
+            writeHeader();
+            mChannel.position(HEADER_LENGTH);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mUpdateTimeNanos = System.nanoTime();
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer to the audio data.
+     *
+     * @return number of written bytes
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int numOfBytes = 0;
+        while (src.hasRemaining()) {
+            numOfBytes += mChannel.write(src);
+        }
+        mDataLength += numOfBytes;
+        long timeNanos = System.nanoTime();
+        if (timeNanos - mUpdateTimeNanos >= mUpdateIntervalNanos) {
+            update();
+            mUpdateTimeNanos = timeNanos;
+        }
+        return numOfBytes;
+    }
+
+    public int write(byte[] src, int off, int len) throws IOException {
+        return write(ByteBuffer.wrap(src, off, len));
+    }
+
+    /**
+     * Drops the audio after the given number of bytes, e.g. the audio that turned out to be
+     * overwritten while it was being written. The header is patched at the next update.
+     *
+     * @param dataLength number of audio bytes to keep, at most the current data length
+     */
+    public void truncate(long dataLength) throws IOException {
+        if (dataLength < mDataLength) {
+            mChannel.truncate(HEADER_LENGTH + dataLength);
+            mChannel.position(HEADER_LENGTH + dataLength);
+            mDataLength = dataLength;
+        }
+    }
+
+    /**
+     * @return number of audio bytes written so far
+     */
+    public long getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * Patches the sizes in the header and, if requested, syncs the file to the disk.
+     */
+    public void update() throws IOException {
+        if (!mChannel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (mHeaderDataLength != mDataLength) {
+            writeHeader();
+        }
+        if (mIsSync) {
+            mChannel.force(false);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    /**
+     * Patches the header, syncs the file (if requested) and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mChannel.isOpen()) {
+            return;
+        }
+        try {
+            update();
+        } finally {
+            mFile.close();
+        }
+    }
+
+    /**
+     * Writes the header at the beginning of the file, without moving the position of the channel.
+     */
+    private void writeHeader() throws IOException {
+        int dataLength = (int) Math.min(Integer.MAX_VALUE - HEADER_LENGTH, mDataLength);
+        ByteBuffer header = ByteBuffer.wrap(AudioUtils.getWavHeader(dataLength, mSampleRate, mResolutionInBytes, mChannels));
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += mChannel.write(header, position);
+        }
+        mHeaderDataLength = mDataLength;
+    }
+}
@@ -0,0 +1,22 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * Processes frames of audio in place, e.g. removes the DC offset or adjusts the gain.
+ * Implementations can keep state across frames (e.g. the filter history), and are called
+ * by a single (recorder) thread, frame by frame, in the order of the recording.
+ * Processing must not allocate.
+ */
+public interface AudioFilter {
+
+    /**
+     * @param samples 16-bit samples, which are replaced by the processed samples
+     * @param offset  index of the first sample of the frame
+     * @param length  number of samples in the frame
+     */
+    void process(short[] samples, int offset, int length);
+
+    /**
+     * Forgets the state, e.g. before a new recording.
+     */
+    void reset();
+}
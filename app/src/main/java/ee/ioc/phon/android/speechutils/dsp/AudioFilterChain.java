@@ -0,0 +1,34 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * Applies the given filters one after the other, e.g.
+ * <pre>
+ * new AudioFilterChain(
+ *         new HighPassFilter(16000, 80),
+ *         new NoiseGate(16000, -55, -20),
+ *         new AutomaticGainControl(16000, -20, 20),
+ *         new SoftLimiter(-3));
+ * </pre>
+ */
+public class AudioFilterChain implements AudioFilter {
+
+    private final AudioFilter[] mFilters;
+
+    public AudioFilterChain(AudioFilter... filters) {
+        mFilters = filters.clone();
+    }
+
+    @Override
+    public void process(short[] samples, int offset, int length) {
+        for (AudioFilter filter : mFilters) {
+            filter.process(samples, offset, length);
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (AudioFilter filter : mFilters) {
+            filter.reset();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * <p>Software automatic gain control, which brings the speech to a target level, e.g. when the
+ * speaker is far from the microphone, or the device has no (or a poor) platform AGC.</p>
+ * <p>
+ * The level is the RMS over a short window. The gain decreases quickly when the level rises
+ * above the target (so that loud onsets are not clipped for long) and increases slowly when it
+ * falls below the target. The gain is not increased while the level is below the noise threshold,
+ * so that the pauses do not pump up the background noise. The amplified samples go through a
+ * soft limiter instead of being clipped.
+ * </p>
+ */
+public class AutomaticGainControl implements AudioFilter {
+
+    private static final double LEVEL_MILLIS = 50;
+    private static final double ATTACK_MILLIS = 10;
+    private static final double RELEASE_MILLIS = 1000;
+    // Level (in dB relative to full scale) below which the audio is considered to be background noise
+    private static final double NOISE_THRESHOLD_DB = -50;
+    private static final double LIMITER_THRESHOLD_DB = -1;
+
+    private final float mTarget;
+    private final float mMaxGain;
+    private final float mNoiseThreshold;
+    private final float mLevelRate;
+    private final float mAttack;
+    private final float mRelease;
+    private final SoftLimiter mLimiter = new SoftLimiter(LIMITER_THRESHOLD_DB);
+
+    private float mMeanSquare;
+    private float mGain;
+
+    /**
+     * @param sampleRate sample rate in Hz
+     * @param targetDb   target RMS level (in dB relative to full scale, e.g. -20)
+     * @param maxGainDb  maximum gain in dB (e.g. 20)
+     */
+    public AutomaticGainControl(int sampleRate, double targetDb, double maxGainDb) {
+        mTarget = (float) (Short.MAX_VALUE * Math.pow(10, targetDb / 20));
+        mMaxGain = (float) Math.pow(10, maxGainDb / 20);
+        mNoiseThreshold = (float) (Short.MAX_VALUE * Math.pow(10, NOISE_THRESHOLD_DB / 20));
+        mLevelRate = NoiseGate.coefficient(sampleRate, LEVEL_MILLIS);
+        mAttack = NoiseGate.coefficient(sampleRate, ATTACK_MILLIS);
+        mRelease = NoiseGate.coefficient(sampleRate, RELEASE_MILLIS);
+        reset();
+    }
+
+    /**
+     * @return current gain (linear)
+     */
+    public float getGain() {
+        return mGain;
+    }
+
+    @Override
+    public void process(short[] samples, int offset, int length) {
+        float meanSquare = mMeanSquare;
+        float gain = mGain;
+        float noiseThresholdSquared = mNoiseThreshold * mNoiseThreshold;
+        for (int i = offset; i < offset + length; i++) {
+            float x = samples[i];
+            meanSquare += mLevelRate * (x * x - meanSquare);
+            if (meanSquare > noiseThresholdSquared) {
+                float targetGain = Math.min(mMaxGain, mTarget / (float) Math.sqrt(meanSquare));
+                gain += (targetGain < gain ? mAttack : mRelease) * (targetGain - gain);
+            }
+            samples[i] = (short) Math.round(mLimiter.limit(x * gain));
+        }
+        mMeanSquare = meanSquare;
+        mGain = gain;
+    }
+
+    @Override
+    public void reset() {
+        mMeanSquare = 0;
+        mGain = 1;
+    }
+}
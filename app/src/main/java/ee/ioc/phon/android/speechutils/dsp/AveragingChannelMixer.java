@@ -0,0 +1,40 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * Averages the channels, i.e. the cheapest downmix, which works best if the microphones are close
+ * to each other (compared to the wavelength), so that the speech is in phase in all the channels.
+ */
+public class AveragingChannelMixer implements ChannelMixer {
+
+    private final int mNumOfChannels;
+
+    public AveragingChannelMixer(int numOfChannels) {
+        if (numOfChannels < 1) {
+            throw new IllegalArgumentException("Number of channels must be positive: " + numOfChannels);
+        }
+        mNumOfChannels = numOfChannels;
+    }
+
+    @Override
+    public int getNumOfChannels() {
+        return mNumOfChannels;
+    }
+
+    @Override
+    public void mix(short[] in, int inOff, int numOfFrames, short[] out, int outOff) {
+        final int channels = mNumOfChannels;
+        int i = inOff;
+        for (int n = 0; n < numOfFrames; n++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += in[i++];
+            }
+            out[outOff + n] = (short) (sum / channels);
+        }
+    }
+
+    @Override
+    public void reset() {
+        // No state
+    }
+}
@@ -0,0 +1,131 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * <p>Selects the channel with the best signal-to-noise ratio, e.g. the microphone that is closest
+ * to the speaker, or that is not covered by the hand.</p>
+ * <p>
+ * The energy of every channel is measured in blocks, and compared to the noise floor of the
+ * channel, which drops immediately with quieter blocks and rises slowly otherwise.
+ * The selection switches only if another channel is better by a margin, and the switch is a
+ * linear cross-fade over one block, so that it does not click.
+ * </p>
+ */
+public class BestChannelMixer implements ChannelMixer {
+
+    // How much better (in dB) another channel must be to be selected
+    private static final double SWITCH_MARGIN_DB = 3;
+    // Minimum signal-to-noise ratio (in dB) of the selected channel, i.e. it must contain speech
+    private static final double MIN_SNR_DB = 6;
+    // Smoothing of the signal-to-noise ratio over the blocks
+    private static final double SNR_SMOOTHING = 0.2;
+    // Rate at which the noise floor rises towards the block energy
+    private static final double NOISE_FLOOR_ADAPTATION = 0.01;
+
+    private final int mNumOfChannels;
+    private final int mBlockLength;
+
+    // Sum of squares of the current block, per channel
+    private final double[] mEnergy;
+    private final double[] mNoiseFloorDb;
+    private final double[] mSnrDb;
+    private int mBlockPos;
+
+    private int mSelected;
+    // Channel that is faded out, and the number of frames left in the fade
+    private int mPrevious;
+    private int mFadeLeft;
+
+    /**
+     * @param numOfChannels number of interleaved channels
+     * @param blockLength   number of frames between the decisions (e.g. 10 ms)
+     */
+    public BestChannelMixer(int numOfChannels, int blockLength) {
+        if (numOfChannels < 1 || blockLength < 1) {
+            throw new IllegalArgumentException("Illegal channels/block: " + numOfChannels + "/" + blockLength);
+        }
+        mNumOfChannels = numOfChannels;
+        mBlockLength = blockLength;
+        mEnergy = new double[numOfChannels];
+        mNoiseFloorDb = new double[numOfChannels];
+        mSnrDb = new double[numOfChannels];
+        reset();
+    }
+
+    @Override
+    public int getNumOfChannels() {
+        return mNumOfChannels;
+    }
+
+    /**
+     * @return index of the currently selected channel
+     */
+    public int getSelectedChannel() {
+        return mSelected;
+    }
+
+    @Override
+    public void mix(short[] in, int inOff, int numOfFrames, short[] out, int outOff) {
+        final int channels = mNumOfChannels;
+        final double[] energy = mEnergy;
+        int i = inOff;
+        for (int n = 0; n < numOfFrames; n++) {
+            for (int c = 0; c < channels; c++) {
+                int s = in[i + c];
+                energy[c] += s * s;
+            }
+            // The frame is read before the output is written, which may overwrite it
+            int selected = in[i + mSelected];
+            if (mFadeLeft > 0) {
+                float w = (float) mFadeLeft / mBlockLength;
+                out[outOff + n] = (short) (w * in[i + mPrevious] + (1 - w) * selected);
+                mFadeLeft--;
+            } else {
+                out[outOff + n] = (short) selected;
+            }
+            i += channels;
+            if (++mBlockPos == mBlockLength) {
+                endBlock();
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int c = 0; c < mNumOfChannels; c++) {
+            mEnergy[c] = 0;
+            mNoiseFloorDb[c] = Double.NaN;
+            mSnrDb[c] = 0;
+        }
+        mBlockPos = 0;
+        mSelected = 0;
+        mPrevious = 0;
+        mFadeLeft = 0;
+    }
+
+    private void endBlock() {
+        for (int c = 0; c < mNumOfChannels; c++) {
+            // +1 avoids the log of 0 for digital silence
+            double energyDb = 10 * Math.log10(mEnergy[c] / mBlockLength + 1);
+            if (Double.isNaN(mNoiseFloorDb[c]) || energyDb < mNoiseFloorDb[c]) {
+                mNoiseFloorDb[c] = energyDb;
+            } else {
+                mNoiseFloorDb[c] += NOISE_FLOOR_ADAPTATION * (energyDb - mNoiseFloorDb[c]);
+            }
+            mSnrDb[c] += SNR_SMOOTHING * (energyDb - mNoiseFloorDb[c] - mSnrDb[c]);
+            mEnergy[c] = 0;
+        }
+        mBlockPos = 0;
+        int best = mSelected;
+        for (int c = 0; c < mNumOfChannels; c++) {
+            if (mSnrDb[c] > mSnrDb[best]) {
+                best = c;
+            }
+        }
+        // In the pauses, the channels are about equally good, and the selection is kept
+        if (best != mSelected && mSnrDb[best] > MIN_SNR_DB && mSnrDb[best] > mSnrDb[mSelected] + SWITCH_MARGIN_DB) {
+            mPrevious = mSelected;
+            mSelected = best;
+            mFadeLeft = mBlockLength;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * Mixes interleaved multi-channel audio (e.g. from several microphones) down to mono.
+ * Implementations can keep state across calls (e.g. the channel delays), and are called
+ * by a single (recorder) thread, in the order of the recording.
+ */
+public interface ChannelMixer {
+
+    /**
+     * @return number of interleaved input channels
+     */
+    int getNumOfChannels();
+
+    /**
+     * Mixes the given frames. The output can be written into the input array, as long as it
+     * does not start after the input (i.e. outOff &lt;= inOff).
+     *
+     * @param in          interleaved 16-bit samples
+     * @param inOff       index of the first sample of the first frame
+     * @param numOfFrames number of frames, i.e. samples per channel
+     * @param out         mono samples
+     * @param outOff      index of the first output sample
+     */
+    void mix(short[] in, int inOff, int numOfFrames, short[] out, int outOff);
+
+    /**
+     * Forgets the state, e.g. before a new recording.
+     */
+    void reset();
+}
@@ -0,0 +1,149 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * <p>Delay-and-sum beamformer: the channels are delayed so that the sound from the speaker is in
+ * phase in all of them, and then averaged. The speech adds up coherently, while the diffuse
+ * noise does not, i.e. with N microphones the SNR improves by up to 10*log10(N) dB.</p>
+ * <p>
+ * The delay of every channel relative to the first one (the time difference of arrival) is
+ * estimated at the end of every block, as the lag of the maximum of the cross-correlation.
+ * The estimate is used only if the channels are clearly correlated at that lag (i.e. there is
+ * a dominant source), otherwise the previous delays are kept. The output is delayed by the
+ * maximum delay. The history of the channels is kept in preallocated ring buffers, i.e. the
+ * mixing does not allocate.
+ * </p>
+ */
+public class DelayAndSumBeamformer implements ChannelMixer {
+
+    // Minimum normalized cross-correlation at which the delays are updated
+    private static final double MIN_CORRELATION = 0.5;
+
+    private final int mNumOfChannels;
+    private final int mMaxDelay;
+    private final int mBlockLength;
+
+    // History of every channel, indexed by the frame position masked by mMask
+    private final short[][] mHistory;
+    private final int mMask;
+    private int mPos;
+    private int mBlockPos;
+
+    // Delay of every channel (0 ... 2 * mMaxDelay frames) that aligns it with the others
+    private final int[] mDelay;
+
+    /**
+     * @param numOfChannels number of interleaved channels
+     * @param maxDelay      maximum time difference of arrival between the channels in frames,
+     *                      i.e. the distance between the microphones divided by the speed of sound,
+     *                      times the sample rate (e.g. 5 for 10 cm at 16 kHz)
+     * @param blockLength   number of frames between the estimates of the delays (e.g. 20 ms)
+     */
+    public DelayAndSumBeamformer(int numOfChannels, int maxDelay, int blockLength) {
+        if (numOfChannels < 1 || maxDelay < 0 || blockLength < 1) {
+            throw new IllegalArgumentException("Illegal channels/delay/block: " + numOfChannels + "/" + maxDelay + "/" + blockLength);
+        }
+        mNumOfChannels = numOfChannels;
+        mMaxDelay = maxDelay;
+        mBlockLength = blockLength;
+        int historyLength = Integer.highestOneBit(blockLength + 2 * maxDelay) << 1;
+        mHistory = new short[numOfChannels][historyLength];
+        mMask = historyLength - 1;
+        mDelay = new int[numOfChannels];
+        reset();
+    }
+
+    @Override
+    public int getNumOfChannels() {
+        return mNumOfChannels;
+    }
+
+    /**
+     * @return number of frames by which the given channel lags behind the first channel
+     */
+    public int getLag(int channel) {
+        return mMaxDelay - mDelay[channel];
+    }
+
+    @Override
+    public void mix(short[] in, int inOff, int numOfFrames, short[] out, int outOff) {
+        final int channels = mNumOfChannels;
+        final short[][] history = mHistory;
+        final int mask = mMask;
+        int i = inOff;
+        for (int n = 0; n < numOfFrames; n++) {
+            int pos = mPos;
+            for (int c = 0; c < channels; c++) {
+                history[c][pos & mask] = in[i++];
+            }
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += history[c][(pos - mDelay[c]) & mask];
+            }
+            out[outOff + n] = (short) (sum / channels);
+            mPos = pos + 1;
+            if (++mBlockPos == mBlockLength) {
+                mBlockPos = 0;
+                estimateDelays();
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (short[] channel : mHistory) {
+            for (int i = 0; i < channel.length; i++) {
+                channel[i] = 0;
+            }
+        }
+        mPos = 0;
+        mBlockPos = 0;
+        for (int c = 0; c < mNumOfChannels; c++) {
+            mDelay[c] = mMaxDelay;
+        }
+    }
+
+    /**
+     * Finds the lag of every channel relative to the first one over the last block.
+     * The first channel is delayed by mMaxDelay, so that the other channels can be shifted
+     * both ways.
+     */
+    private void estimateDelays() {
+        final short[] ref = mHistory[0];
+        final int mask = mMask;
+        int end = mPos - mMaxDelay;
+        double refEnergy = 0;
+        for (int n = end - mBlockLength; n < end; n++) {
+            double r = ref[n & mask];
+            refEnergy += r * r;
+        }
+        if (refEnergy == 0) {
+            return;
+        }
+        for (int c = 1; c < mNumOfChannels; c++) {
+            final short[] x = mHistory[c];
+            double energy = 0;
+            for (int n = end - mBlockLength; n < end; n++) {
+                double v = x[n & mask];
+                energy += v * v;
+            }
+            if (energy == 0) {
+                continue;
+            }
+            double bestCorr = 0;
+            int bestLag = 0;
+            for (int lag = -mMaxDelay; lag <= mMaxDelay; lag++) {
+                double corr = 0;
+                for (int n = end - mBlockLength; n < end; n++) {
+                    corr += ref[n & mask] * x[(n + lag) & mask];
+                }
+                if (corr > bestCorr) {
+                    bestCorr = corr;
+                    bestLag = lag;
+                }
+            }
+            if (bestCorr / Math.sqrt(refEnergy * energy) > MIN_CORRELATION) {
+                mDelay[c] = mMaxDelay - bestLag;
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Ring of fixed-size float frames (e.g. log-mel feature vectors), written by a single producer
+ * (the recorder thread) and read by any number of consumers at their own frame index.</p>
+ * <p>
+ * The frames are stored in a single preallocated float array. A frame is published by an ordered
+ * store of the number of written frames after it has been copied, so a consumer that sees the count
+ * also sees the frame. The producer never waits: a consumer that falls behind by more than the
+ * capacity finds its frames overwritten, which is detected by re-checking the count after the copy
+ * (as in {@link ee.ioc.phon.android.speechutils.AudioRingBuffer}).
+ * </p>
+ */
+public class FeatureRingBuffer {
+
+    private final int mDimension;
+    private final int mCapacity;
+    private final int mMask;
+    private final float[] mFrames;
+    private final AtomicLong mNumOfFrames = new AtomicLong();
+
+    /**
+     * @param dimension number of values per frame
+     * @param capacity  number of frames that are kept, rounded up to a power of two
+     */
+    public FeatureRingBuffer(int dimension, int capacity) {
+        if (dimension < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Illegal dimension/capacity: " + dimension + "/" + capacity);
+        }
+        mDimension = dimension;
+        mCapacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mMask = mCapacity - 1;
+        mFrames = new float[mCapacity * dimension];
+    }
+
+    public int getDimension() {
+        return mDimension;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return number of frames written since the creation (or the last reset),
+     * i.e. the index of the next frame
+     */
+    public long getNumOfFrames() {
+        return mNumOfFrames.get();
+    }
+
+    /**
+     * @return index of the oldest frame that is still available
+     */
+    public long getOldestFrame() {
+        return Math.max(0, mNumOfFrames.get() - mCapacity);
+    }
+
+    /**
+     * Appends a frame, overwriting the oldest one if the ring is full. Called by the producer only.
+     */
+    public void write(float[] frame, int off) {
+        long numOfFrames = mNumOfFrames.get();
+        System.arraycopy(frame, off, mFrames, (int) (numOfFrames & mMask) * mDimension, mDimension);
+        mNumOfFrames.lazySet(numOfFrames + 1);
+    }
+
+    /**
+     * Copies the given frame into dst.
+     *
+     * @return true if the frame was copied, false if it has not been written yet,
+     * or has been (or was being, during the copy) overwritten
+     */
+    public boolean read(long frameIndex, float[] dst, int off) {
+        return read(frameIndex, 1, dst, off) == 1;
+    }
+
+    /**
+     * Copies the given number of consecutive frames into dst, one after the other.
+     *
+     * @return number of copied frames (len), or -1 if some of them have not been written yet,
+     * or have been overwritten
+     */
+    public int read(long frameIndex, int len, float[] dst, int off) {
+        if (frameIndex < getOldestFrame() || frameIndex + len > mNumOfFrames.get()) {
+            return -1;
+        }
+        for (int n = 0; n < len; n++) {
+            int index = (int) ((frameIndex + n) & mMask) * mDimension;
+            System.arraycopy(mFrames, index, dst, off + n * mDimension, mDimension);
+        }
+        return frameIndex < getOldestFrame() ? -1 : len;
+    }
+
+    /**
+     * Discards all the frames. Must not be called while the producer is writing.
+     */
+    public void reset() {
+        mNumOfFrames.set(0);
+    }
+}
@@ -0,0 +1,173 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * <p>Fast Fourier transform of real-valued signals whose length is a power of two.</p>
+ * <p>
+ * The real signal of length N is packed into a complex signal of length N/2, which is transformed
+ * with an iterative radix-2 FFT, and the spectrum is then unpacked. The twiddle factors and the
+ * bit-reversal permutation are computed once in the constructor, and the transforms do not
+ * allocate, so that an instance can be used on the recorder thread for every frame.
+ * An instance is not thread-safe.
+ * </p>
+ */
+public class Fft {
+
+    private final int mSize;
+    private final int mHalfSize;
+
+    // Twiddle factors of the complex FFT of length N/2
+    private final float[] mCos;
+    private final float[] mSin;
+    // Twiddle factors for unpacking the spectrum: exp(-2*pi*i*k/N), k = 0..N/2
+    private final float[] mUnpackCos;
+    private final float[] mUnpackSin;
+    private final int[] mBitReversed;
+
+    // Work space of the complex FFT
+    private final float[] mRe;
+    private final float[] mIm;
+
+    /**
+     * @param size number of real samples per transform, a power of two, at least 4
+     */
+    public Fft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        mSize = size;
+        mHalfSize = size / 2;
+        mCos = new float[mHalfSize / 2];
+        mSin = new float[mHalfSize / 2];
+        for (int i = 0; i < mHalfSize / 2; i++) {
+            double angle = -2 * Math.PI * i / mHalfSize;
+            mCos[i] = (float) Math.cos(angle);
+            mSin[i] = (float) Math.sin(angle);
+        }
+        mUnpackCos = new float[mHalfSize + 1];
+        mUnpackSin = new float[mHalfSize + 1];
+        for (int k = 0; k <= mHalfSize; k++) {
+            double angle = -2 * Math.PI * k / mSize;
+            mUnpackCos[k] = (float) Math.cos(angle);
+            mUnpackSin[k] = (float) Math.sin(angle);
+        }
+        int bits = Integer.numberOfTrailingZeros(mHalfSize);
+        mBitReversed = new int[mHalfSize];
+        for (int i = 0; i < mHalfSize; i++) {
+            mBitReversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        mRe = new float[mHalfSize];
+        mIm = new float[mHalfSize];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return number of frequency bins (N/2 + 1, from DC to the Nyquist frequency)
+     */
+    public int numOfBins() {
+        return mHalfSize + 1;
+    }
+
+    /**
+     * Computes the spectrum of the given real signal.
+     *
+     * @param input signal of length N
+     * @param re    real parts of the N/2 + 1 bins
+     * @param im    imaginary parts of the N/2 + 1 bins
+     */
+    public void forward(float[] input, float[] re, float[] im) {
+        for (int k = 0; k < mHalfSize; k++) {
+            mRe[k] = input[2 * k];
+            mIm[k] = input[2 * k + 1];
+        }
+        transform(mRe, mIm);
+        for (int k = 0; k <= mHalfSize; k++) {
+            int k1 = k == mHalfSize ? 0 : k;
+            int k2 = k == 0 ? 0 : mHalfSize - k;
+            // Spectra of the even and odd samples
+            float evenRe = 0.5f * (mRe[k1] + mRe[k2]);
+            float evenIm = 0.5f * (mIm[k1] - mIm[k2]);
+            float oddRe = 0.5f * (mIm[k1] + mIm[k2]);
+            float oddIm = -0.5f * (mRe[k1] - mRe[k2]);
+            float c = mUnpackCos[k];
+            float s = mUnpackSin[k];
+            re[k] = evenRe + c * oddRe - s * oddIm;
+            im[k] = evenIm + c * oddIm + s * oddRe;
+        }
+    }
+
+    /**
+     * Computes the power spectrum (squared magnitudes of the N/2 + 1 bins) of the given real signal.
+     */
+    public void powerSpectrum(float[] input, float[] power, float[] re, float[] im) {
+        forward(input, re, im);
+        for (int k = 0; k <= mHalfSize; k++) {
+            power[k] = re[k] * re[k] + im[k] * im[k];
+        }
+    }
+
+    /**
+     * Computes the real signal from its N/2 + 1 spectrum bins, i.e. the inverse of {@link #forward}.
+     */
+    public void inverse(float[] re, float[] im, float[] output) {
+        for (int k = 0; k < mHalfSize; k++) {
+            int k2 = mHalfSize - k;
+            float evenRe = 0.5f * (re[k] + re[k2]);
+            float evenIm = 0.5f * (im[k] - im[k2]);
+            float diffRe = 0.5f * (re[k] - re[k2]);
+            float diffIm = 0.5f * (im[k] + im[k2]);
+            // Multiply by the conjugate of the twiddle factor
+            float c = mUnpackCos[k];
+            float s = -mUnpackSin[k];
+            float oddRe = diffRe * c - diffIm * s;
+            float oddIm = diffRe * s + diffIm * c;
+            // Z = even + i * odd, conjugated for the inverse transform
+            mRe[k] = evenRe - oddIm;
+            mIm[k] = -(evenIm + oddRe);
+        }
+        transform(mRe, mIm);
+        float scale = 1f / mHalfSize;
+        for (int k = 0; k < mHalfSize; k++) {
+            output[2 * k] = mRe[k] * scale;
+            output[2 * k + 1] = -mIm[k] * scale;
+        }
+    }
+
+    /**
+     * In-place iterative radix-2 complex FFT of length N/2.
+     */
+    private void transform(float[] re, float[] im) {
+        int n = mHalfSize;
+        for (int i = 0; i < n; i++) {
+            int j = mBitReversed[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int len = 2; len <= n; len <<= 1) {
+            int half = len >> 1;
+            int step = n / len;
+            for (int i = 0; i < n; i += len) {
+                for (int j = 0; j < half; j++) {
+                    float c = mCos[j * step];
+                    float s = mSin[j * step];
+                    int a = i + j;
+                    int b = a + half;
+                    float tRe = re[b] * c - im[b] * s;
+                    float tIm = re[b] * s + im[b] * c;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                }
+            }
+        }
+    }
+}
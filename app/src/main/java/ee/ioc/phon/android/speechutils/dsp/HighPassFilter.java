@@ -0,0 +1,64 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * <p>Second-order Butterworth high-pass filter (biquad), e.g. at 80 Hz to remove the DC offset
+ * and the low-frequency rumble (handling noise, wind, mains hum), which carry no speech but
+ * raise the energy of the non-speech frames.</p>
+ */
+public class HighPassFilter implements AudioFilter {
+
+    private final double mB0;
+    private final double mB1;
+    private final double mB2;
+    private final double mA1;
+    private final double mA2;
+
+    // State of the transposed direct form II
+    private double mZ1;
+    private double mZ2;
+
+    /**
+     * @param sampleRate sample rate in Hz
+     * @param cutoffHz   cutoff frequency in Hz (-3 dB)
+     */
+    public HighPassFilter(int sampleRate, double cutoffHz) {
+        if (cutoffHz <= 0 || cutoffHz >= sampleRate / 2.0) {
+            throw new IllegalArgumentException("Illegal cutoff frequency: " + cutoffHz);
+        }
+        double w0 = 2 * Math.PI * cutoffHz / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / Math.sqrt(2);
+        double a0 = 1 + alpha;
+        mB0 = (1 + cos) / 2 / a0;
+        mB1 = -(1 + cos) / a0;
+        mB2 = mB0;
+        mA1 = -2 * cos / a0;
+        mA2 = (1 - alpha) / a0;
+    }
+
+    @Override
+    public void process(short[] samples, int offset, int length) {
+        double z1 = mZ1;
+        double z2 = mZ2;
+        for (int i = offset; i < offset + length; i++) {
+            double x = samples[i];
+            double y = mB0 * x + z1;
+            z1 = mB1 * x - mA1 * y + z2;
+            z2 = mB2 * x - mA2 * y;
+            samples[i] = clip(y);
+        }
+        mZ1 = z1;
+        mZ2 = z2;
+    }
+
+    @Override
+    public void reset() {
+        mZ1 = 0;
+        mZ2 = 0;
+    }
+
+    private static short clip(double value) {
+        long rounded = Math.round(value);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, rounded));
+    }
+}
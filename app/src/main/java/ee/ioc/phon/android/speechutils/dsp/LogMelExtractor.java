@@ -0,0 +1,233 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+import java.nio.ShortBuffer;
+
+/**
+ * <p>Streaming log-mel filterbank features, as used by most speech recognizers, keyword spotters
+ * and neural voice activity detectors.</p>
+ * <p>
+ * The audio is cut into frames (25 ms every 10 ms by default) as it arrives. Every frame has its
+ * mean removed, is multiplied by a Hamming window and zero-padded to a power of two, and its power
+ * spectrum is summed by triangular filters that are spaced evenly on the mel scale. The log of every
+ * filter output (with a floor) is one value of the feature vector, which is appended to a
+ * {@link FeatureRingBuffer}. Frame n covers the samples n * shift ... n * shift + length - 1
+ * counted since the creation (or the last reset).
+ * </p>
+ * <p>
+ * The window, the FFT twiddles and the filter weights are computed in the constructor, and adding
+ * audio does not allocate, so that the extractor can run on the recorder thread. An instance is
+ * not thread-safe, but the features can be read from the ring by other threads.
+ * </p>
+ */
+public class LogMelExtractor {
+
+    public static final int DEFAULT_NUM_OF_MEL_BINS = 40;
+    public static final double DEFAULT_FRAME_MILLIS = 25;
+    public static final double DEFAULT_SHIFT_MILLIS = 10;
+    // Capacity of the feature ring, 10 seconds at the default shift
+    public static final int DEFAULT_NUM_OF_FRAMES = 1024;
+
+    private static final double LOW_FREQ = 20;
+    private static final float LOG_FLOOR = 1e-10f;
+
+    private final int mFrameLength;
+    private final int mShift;
+    private final int mNumOfMelBins;
+    private final Fft mFft;
+    private final float[] mWindow;
+
+    // First FFT bin of every filter, and its weights for the following bins
+    private final int[] mFilterStart;
+    private final float[][] mFilterWeights;
+
+    // Samples of the current frame, and the number of them that have arrived
+    private final float[] mInput;
+    private int mInputPos;
+    private final short[] mChunk;
+
+    private final float[] mFrame;
+    private final float[] mRe;
+    private final float[] mIm;
+    private final float[] mPower;
+    private final float[] mFeatures;
+    private final FeatureRingBuffer mRing;
+
+    public LogMelExtractor(int sampleRate) {
+        this(sampleRate, DEFAULT_NUM_OF_MEL_BINS, DEFAULT_FRAME_MILLIS, DEFAULT_SHIFT_MILLIS,
+                LOW_FREQ, sampleRate / 2.0, DEFAULT_NUM_OF_FRAMES);
+    }
+
+    /**
+     * @param sampleRate   sample rate in Hz
+     * @param numOfMelBins number of mel filters, i.e. the dimension of the features
+     * @param frameMillis  length of the analysis frame in milliseconds
+     * @param shiftMillis  frame shift in milliseconds
+     * @param lowFreq      lower edge of the first filter in Hz
+     * @param highFreq     upper edge of the last filter in Hz, at most half of the sample rate
+     * @param numOfFrames  capacity of the feature ring in frames
+     */
+    public LogMelExtractor(int sampleRate, int numOfMelBins, double frameMillis, double shiftMillis,
+                           double lowFreq, double highFreq, int numOfFrames) {
+        mFrameLength = (int) Math.round(sampleRate * frameMillis / 1000);
+        mShift = (int) Math.round(sampleRate * shiftMillis / 1000);
+        if (numOfMelBins < 1 || mShift < 1 || mShift > mFrameLength || lowFreq < 0 || highFreq <= lowFreq
+                || highFreq > sampleRate / 2.0) {
+            throw new IllegalArgumentException("Illegal mel bins/frame/shift/frequencies: " + numOfMelBins + "/"
+                    + frameMillis + "/" + shiftMillis + "/" + lowFreq + "/" + highFreq);
+        }
+        mNumOfMelBins = numOfMelBins;
+        int fftSize = Math.max(4, Integer.highestOneBit(mFrameLength - 1) << 1);
+        mFft = new Fft(fftSize);
+        mWindow = new float[mFrameLength];
+        for (int i = 0; i < mFrameLength; i++) {
+            mWindow[i] = (float) (0.54 - 0.46 * Math.cos(2 * Math.PI * i / (mFrameLength - 1)));
+        }
+
+        // Triangular filters, computed on the mel scale
+        mFilterStart = new int[numOfMelBins];
+        mFilterWeights = new float[numOfMelBins][];
+        double lowMel = mel(lowFreq);
+        double melDelta = (mel(highFreq) - lowMel) / (numOfMelBins + 1);
+        double binHz = (double) sampleRate / fftSize;
+        int numOfBins = mFft.numOfBins();
+        for (int m = 0; m < numOfMelBins; m++) {
+            double left = lowMel + m * melDelta;
+            double center = left + melDelta;
+            double right = center + melDelta;
+            int start = -1;
+            int end = -1;
+            float[] weights = new float[numOfBins];
+            for (int k = 0; k < numOfBins; k++) {
+                double mel = mel(k * binHz);
+                if (mel > left && mel < right) {
+                    weights[k] = (float) (mel <= center ? (mel - left) / melDelta : (right - mel) / melDelta);
+                    if (start < 0) {
+                        start = k;
+                    }
+                    end = k + 1;
+                }
+            }
+            if (start < 0) {
+                // The filter is narrower than an FFT bin, it takes the nearest bin
+                start = (int) Math.min(numOfBins - 1, Math.round(melToHz(center) / binHz));
+                end = start + 1;
+                weights[start] = 1;
+            }
+            mFilterStart[m] = start;
+            mFilterWeights[m] = new float[end - start];
+            System.arraycopy(weights, start, mFilterWeights[m], 0, end - start);
+        }
+
+        mInput = new float[mFrameLength];
+        mChunk = new short[mShift];
+        mFrame = new float[fftSize];
+        mRe = new float[numOfBins];
+        mIm = new float[numOfBins];
+        mPower = new float[numOfBins];
+        mFeatures = new float[numOfMelBins];
+        mRing = new FeatureRingBuffer(numOfMelBins, numOfFrames);
+    }
+
+    public int getNumOfMelBins() {
+        return mNumOfMelBins;
+    }
+
+    /**
+     * @return number of samples per frame
+     */
+    public int getFrameLength() {
+        return mFrameLength;
+    }
+
+    /**
+     * @return number of samples between the starts of the consecutive frames
+     */
+    public int getShift() {
+        return mShift;
+    }
+
+    /**
+     * @return ring that receives the feature vectors, one per frame
+     */
+    public FeatureRingBuffer getFeatures() {
+        return mRing;
+    }
+
+    /**
+     * Adds the given samples, and computes the features of every frame that they complete.
+     *
+     * @return number of new frames
+     */
+    public int add(short[] samples, int offset, int length) {
+        int numOfFrames = 0;
+        for (int i = offset; i < offset + length; i++) {
+            mInput[mInputPos++] = samples[i];
+            if (mInputPos == mFrameLength) {
+                processFrame();
+                numOfFrames++;
+                System.arraycopy(mInput, mShift, mInput, 0, mFrameLength - mShift);
+                mInputPos = mFrameLength - mShift;
+            }
+        }
+        return numOfFrames;
+    }
+
+    /**
+     * Adds the samples between the position and the limit of the given buffer (which can be
+     * read-only), and moves its position to the limit.
+     *
+     * @return number of new frames
+     */
+    public int add(ShortBuffer samples) {
+        int numOfFrames = 0;
+        while (samples.hasRemaining()) {
+            int len = Math.min(mChunk.length, samples.remaining());
+            samples.get(mChunk, 0, len);
+            numOfFrames += add(mChunk, 0, len);
+        }
+        return numOfFrames;
+    }
+
+    /**
+     * Discards the buffered samples and the features.
+     */
+    public void reset() {
+        mInputPos = 0;
+        mRing.reset();
+    }
+
+    private void processFrame() {
+        final float[] input = mInput;
+        final float[] frame = mFrame;
+        float mean = 0;
+        for (int i = 0; i < mFrameLength; i++) {
+            mean += input[i];
+        }
+        mean /= mFrameLength;
+        for (int i = 0; i < mFrameLength; i++) {
+            frame[i] = (input[i] - mean) * mWindow[i];
+        }
+        for (int i = mFrameLength; i < frame.length; i++) {
+            frame[i] = 0;
+        }
+        mFft.powerSpectrum(frame, mPower, mRe, mIm);
+        for (int m = 0; m < mNumOfMelBins; m++) {
+            final float[] weights = mFilterWeights[m];
+            final int start = mFilterStart[m];
+            float energy = 0;
+            for (int k = 0; k < weights.length; k++) {
+                energy += weights[k] * mPower[start + k];
+            }
+            mFeatures[m] = (float) Math.log(Math.max(energy, LOG_FLOOR));
+        }
+        mRing.write(mFeatures, 0);
+    }
+
+    private static double mel(double hz) {
+        return 1127 * Math.log(1 + hz / 700);
+    }
+
+    private static double melToHz(double mel) {
+        return 700 * (Math.exp(mel / 1127) - 1);
+    }
+}
@@ -0,0 +1,88 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * <p>Attenuates the audio while its level is below a threshold, i.e. silences the background
+ * noise in the pauses.</p>
+ * <p>
+ * The level is a peak envelope, which follows the rises quickly (attack) and the falls slowly
+ * (release). The gate opens as soon as the envelope exceeds the threshold, and closes once it has
+ * stayed below the threshold for the hold time, so that it does not chop the quiet ends of
+ * words. The gain moves smoothly between 1 and the attenuation, so that the gate does not click.
+ * </p>
+ */
+public class NoiseGate implements AudioFilter {
+
+    private static final double ATTACK_MILLIS = 1;
+    private static final double RELEASE_MILLIS = 50;
+    private static final double GAIN_MILLIS = 5;
+    private static final double HOLD_MILLIS = 200;
+
+    private final float mThreshold;
+    private final float mClosedGain;
+    private final float mAttack;
+    private final float mRelease;
+    private final float mGainRate;
+    private final int mHoldSamples;
+
+    private float mEnvelope;
+    private float mGain;
+    private int mHoldLeft;
+
+    /**
+     * @param sampleRate    sample rate in Hz
+     * @param thresholdDb   level (in dB relative to full scale, e.g. -55) below which the gate closes
+     * @param attenuationDb gain (in dB, e.g. -20) of the closed gate
+     */
+    public NoiseGate(int sampleRate, double thresholdDb, double attenuationDb) {
+        mThreshold = (float) (Short.MAX_VALUE * Math.pow(10, thresholdDb / 20));
+        mClosedGain = (float) Math.pow(10, attenuationDb / 20);
+        mAttack = coefficient(sampleRate, ATTACK_MILLIS);
+        mRelease = coefficient(sampleRate, RELEASE_MILLIS);
+        mGainRate = coefficient(sampleRate, GAIN_MILLIS);
+        mHoldSamples = (int) (sampleRate * HOLD_MILLIS / 1000);
+        reset();
+    }
+
+    /**
+     * @return true iff the gate is open (or opening)
+     */
+    public boolean isOpen() {
+        return mHoldLeft > 0;
+    }
+
+    @Override
+    public void process(short[] samples, int offset, int length) {
+        float envelope = mEnvelope;
+        float gain = mGain;
+        int holdLeft = mHoldLeft;
+        for (int i = offset; i < offset + length; i++) {
+            float x = samples[i];
+            float level = Math.abs(x);
+            envelope += (level > envelope ? mAttack : mRelease) * (level - envelope);
+            if (envelope > mThreshold) {
+                holdLeft = mHoldSamples;
+            } else if (holdLeft > 0) {
+                holdLeft--;
+            }
+            gain += mGainRate * ((holdLeft > 0 ? 1 : mClosedGain) - gain);
+            samples[i] = (short) Math.round(x * gain);
+        }
+        mEnvelope = envelope;
+        mGain = gain;
+        mHoldLeft = holdLeft;
+    }
+
+    @Override
+    public void reset() {
+        mEnvelope = 0;
+        mGain = mClosedGain;
+        mHoldLeft = 0;
+    }
+
+    /**
+     * @return coefficient of a one-pole smoother with the given time constant
+     */
+    static float coefficient(int sampleRate, double millis) {
+        return (float) (1 - Math.exp(-1000 / (millis * sampleRate)));
+    }
+}
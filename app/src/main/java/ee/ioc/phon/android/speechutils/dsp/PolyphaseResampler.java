@@ -0,0 +1,201 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * <p>Streaming sample rate converter from a higher (or equal) input rate to a lower output rate,
+ * e.g. from the native 48 kHz (or 44.1 kHz) of the device to the 16 kHz of the recognizer.</p>
+ * <p>
+ * The conversion by L/M (the rates divided by their greatest common divisor) is a polyphase
+ * FIR filter: a Kaiser-windowed sinc low-pass filter at the upsampled rate, of which only the
+ * phases that are needed for the output samples are evaluated. The coefficients are computed once
+ * in the constructor and stored phase by phase, and the history of the input is kept twice in a row,
+ * so that every output sample is a single contiguous dot product. Processing does not allocate,
+ * and the state carries over from one call to the next, i.e. the input can be split into chunks
+ * of any length. An instance is not thread-safe.
+ * </p>
+ */
+public class PolyphaseResampler {
+
+    // Zero crossings of the sinc on each side of its peak, i.e. the length of the filter
+    // relative to the period of the cutoff frequency
+    public static final int DEFAULT_NUM_OF_ZERO_CROSSINGS = 24;
+    // Cutoff frequency relative to the Nyquist frequency of the output
+    private static final double ROLLOFF = 0.9;
+    // Kaiser window parameter, about 85 dB of stopband attenuation
+    private static final double KAISER_BETA = 8.6;
+
+    private final int mInputRate;
+    private final int mOutputRate;
+    private final int mUp;
+    private final int mDown;
+    private final int mTaps;
+    private final double mDelay;
+
+    // Coefficients of phase p are at p * mTaps ... (p + 1) * mTaps - 1
+    private final float[] mCoeffs;
+    // The last mTaps input samples, newest first, stored twice
+    private final float[] mHistory;
+    private int mHistoryPos;
+    // Phase of the next output sample relative to the last input sample
+    private int mPhase;
+
+    public PolyphaseResampler(int inputRate, int outputRate) {
+        this(inputRate, outputRate, DEFAULT_NUM_OF_ZERO_CROSSINGS);
+    }
+
+    /**
+     * @param inputRate          input sample rate in Hz
+     * @param outputRate         output sample rate in Hz, at most the input rate
+     * @param numOfZeroCrossings length of the filter, more is sharper but slower
+     */
+    public PolyphaseResampler(int inputRate, int outputRate, int numOfZeroCrossings) {
+        if (outputRate <= 0 || inputRate < outputRate) {
+            throw new IllegalArgumentException("Unsupported conversion: " + inputRate + " -> " + outputRate);
+        }
+        if (numOfZeroCrossings < 1) {
+            throw new IllegalArgumentException("Number of zero crossings must be positive: " + numOfZeroCrossings);
+        }
+        mInputRate = inputRate;
+        mOutputRate = outputRate;
+        int gcd = gcd(inputRate, outputRate);
+        mUp = outputRate / gcd;
+        mDown = inputRate / gcd;
+        // Length of the prototype filter at the upsampled rate
+        int length = 2 * numOfZeroCrossings * mDown + 1;
+        mTaps = (length + mUp - 1) / mUp;
+        mCoeffs = new float[mUp * mTaps];
+        double cutoff = ROLLOFF / (2.0 * mDown);
+        double center = (length - 1) / 2.0;
+        mDelay = center / mUp;
+        double i0Beta = besselI0(KAISER_BETA);
+        for (int n = 0; n < length; n++) {
+            double t = n - center;
+            double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            double r = t / center;
+            double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r))) / i0Beta;
+            // Tap k of phase p multiplies the input sample k steps back
+            int p = n % mUp;
+            int k = n / mUp;
+            mCoeffs[p * mTaps + k] = (float) (mUp * sinc * window);
+        }
+        mHistory = new float[2 * mTaps];
+        reset();
+    }
+
+    public int getInputRate() {
+        return mInputRate;
+    }
+
+    public int getOutputRate() {
+        return mOutputRate;
+    }
+
+    /**
+     * @return delay that the filter adds, in input samples
+     */
+    public double getDelay() {
+        return mDelay;
+    }
+
+    /**
+     * Forgets the input so far, i.e. the next input starts a new signal.
+     */
+    public void reset() {
+        for (int i = 0; i < mHistory.length; i++) {
+            mHistory[i] = 0;
+        }
+        mHistoryPos = 0;
+        mPhase = 0;
+    }
+
+    /**
+     * @return number of input samples after which exactly the given number of output samples
+     * has been produced, given the current state
+     */
+    public int getNumOfInputSamples(int numOfOutputSamples) {
+        if (numOfOutputSamples <= 0) {
+            return 0;
+        }
+        return (int) ((mPhase + (long) (numOfOutputSamples - 1) * mDown) / mUp) + 1;
+    }
+
+    /**
+     * @return maximum number of output samples that the given number of input samples can produce
+     */
+    public int getMaxNumOfOutputSamples(int numOfInputSamples) {
+        return (int) (((long) numOfInputSamples * mUp + mDown - 1) / mDown);
+    }
+
+    /**
+     * Converts the given input samples, and appends the output samples that they complete.
+     *
+     * @param in     input samples
+     * @param inOff  offset of the first input sample
+     * @param inLen  number of input samples
+     * @param out    output samples, must have room for {@link #getMaxNumOfOutputSamples} samples
+     * @param outOff offset of the first output sample
+     * @return number of output samples
+     */
+    public int process(short[] in, int inOff, int inLen, short[] out, int outOff) {
+        final float[] coeffs = mCoeffs;
+        final float[] history = mHistory;
+        final int taps = mTaps;
+        int pos = mHistoryPos;
+        int phase = mPhase;
+        int o = outOff;
+        for (int i = inOff; i < inOff + inLen; i++) {
+            pos = pos == 0 ? taps - 1 : pos - 1;
+            history[pos] = in[i];
+            history[pos + taps] = in[i];
+            while (phase < mUp) {
+                int c = phase * taps;
+                float sum = 0;
+                for (int k = 0; k < taps; k++) {
+                    sum += coeffs[c + k] * history[pos + k];
+                }
+                out[o++] = toShort(sum);
+                phase += mDown;
+            }
+            phase -= mUp;
+        }
+        mHistoryPos = pos;
+        mPhase = phase;
+        return o - outOff;
+    }
+
+    private static short toShort(float value) {
+        int rounded = Math.round(value);
+        if (rounded > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (rounded < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) rounded;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Modified Bessel function of the first kind, order 0 (power series).
+     */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        double halfX = x / 2;
+        for (int k = 1; k < 50; k++) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,45 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * First-order pre-emphasis y[n] = x[n] - a * x[n - 1], which boosts the high frequencies
+ * (by about 6 dB per octave) to compensate for the spectral tilt of voiced speech,
+ * as expected by many feature extractors.
+ */
+public class PreEmphasisFilter implements AudioFilter {
+
+    public static final double DEFAULT_COEFFICIENT = 0.97;
+
+    private final float mCoefficient;
+    private float mPrevious;
+
+    public PreEmphasisFilter() {
+        this(DEFAULT_COEFFICIENT);
+    }
+
+    /**
+     * @param coefficient pre-emphasis coefficient (0..1), typically 0.95-0.97
+     */
+    public PreEmphasisFilter(double coefficient) {
+        if (coefficient < 0 || coefficient > 1) {
+            throw new IllegalArgumentException("Illegal pre-emphasis coefficient: " + coefficient);
+        }
+        mCoefficient = (float) coefficient;
+    }
+
+    @Override
+    public void process(short[] samples, int offset, int length) {
+        float previous = mPrevious;
+        for (int i = offset; i < offset + length; i++) {
+            float x = samples[i];
+            float y = x - mCoefficient * previous;
+            previous = x;
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(y)));
+        }
+        mPrevious = previous;
+    }
+
+    @Override
+    public void reset() {
+        mPrevious = 0;
+    }
+}
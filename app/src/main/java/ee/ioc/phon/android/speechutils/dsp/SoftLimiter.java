@@ -0,0 +1,47 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * Limits the peaks that exceed a threshold with a smooth (tanh) curve that approaches the full
+ * scale, i.e. instead of the hard clipping of the 16-bit samples, which adds harsh distortion.
+ * The samples below the threshold are not changed. Has no state.
+ */
+public class SoftLimiter implements AudioFilter {
+
+    private final float mThreshold;
+    private final float mHeadroom;
+
+    /**
+     * @param thresholdDb level (in dB relative to full scale, e.g. -3) above which the peaks are limited
+     */
+    public SoftLimiter(double thresholdDb) {
+        if (thresholdDb >= 0) {
+            throw new IllegalArgumentException("Threshold must be below full scale: " + thresholdDb);
+        }
+        mThreshold = (float) (Short.MAX_VALUE * Math.pow(10, thresholdDb / 20));
+        mHeadroom = Short.MAX_VALUE - mThreshold;
+    }
+
+    @Override
+    public void process(short[] samples, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            samples[i] = (short) limit(samples[i]);
+        }
+    }
+
+    /**
+     * Limits a single value, also beyond the 16-bit range (e.g. after a gain).
+     */
+    float limit(float x) {
+        float level = Math.abs(x);
+        if (level <= mThreshold) {
+            return x;
+        }
+        float limited = mThreshold + mHeadroom * (float) Math.tanh((level - mThreshold) / mHeadroom);
+        return x < 0 ? -limited : limited;
+    }
+
+    @Override
+    public void reset() {
+        // No state
+    }
+}
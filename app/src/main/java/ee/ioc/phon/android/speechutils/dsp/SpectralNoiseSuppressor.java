@@ -0,0 +1,225 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * <p>Noise suppressor for the devices that do not have the platform NoiseSuppressor effect.</p>
+ * <p>
+ * The audio is analyzed in frames of about 32 ms with 50% overlap (short-time Fourier transform
+ * with a square-root Hann window for both the analysis and the synthesis), every frequency bin is
+ * multiplied by a Wiener gain, and the frames are overlap-added back into audio.
+ * The a priori SNR of the gain is estimated with the decision-directed method, which avoids most
+ * of the "musical noise" of plain spectral subtraction, and the gain has a floor, so that the
+ * background is attenuated rather than removed.
+ * The noise spectrum is estimated from the non-speech parts of the audio by minimum statistics:
+ * the smoothed power of every bin is tracked over a window of about 1.5 seconds, and its minimum
+ * (which is reached in the pauses between the words) gives the noise power. The estimate thus
+ * follows a changing background, without a separate voice activity detector.
+ * </p>
+ * <p>
+ * Works as an in-place filter, i.e. the output has the same length as the input, but is delayed
+ * by one frame (see {@link #getDelay}). All the buffers are allocated in the constructor.
+ * </p>
+ */
+public class SpectralNoiseSuppressor implements AudioFilter {
+
+    public static final double DEFAULT_MAX_ATTENUATION_DB = 15;
+
+    private static final double FRAME_MILLIS = 32;
+    // Smoothing of the a priori SNR over the frames (decision-directed estimate)
+    private static final float SNR_SMOOTHING = 0.98f;
+    // Smoothing of the power over the frames, for the minimum tracking
+    private static final float POWER_SMOOTHING = 0.8f;
+    // The minimum is tracked over NUM_OF_SUBWINDOWS windows of SUBWINDOW_MILLIS each
+    private static final int NUM_OF_SUBWINDOWS = 8;
+    private static final double SUBWINDOW_MILLIS = 200;
+    // Compensates for the minimum of the smoothed power being lower than its mean
+    private static final float MINIMUM_BIAS = 1.5f;
+    private static final float EPSILON = 1e-6f;
+
+    private final int mFrameSize;
+    private final int mHop;
+    private final float mMinGain;
+    private final Fft mFft;
+    // Square-root of the periodic Hann window
+    private final float[] mWindow;
+
+    // The last mFrameSize input samples, and the position of the next sample
+    private final float[] mInput;
+    private int mInputPos;
+    // Overlap-add of the processed frames, and the output samples of the last hop
+    private final float[] mOverlap;
+    private final float[] mOutput;
+    private int mOutputPos;
+
+    private final float[] mFrame;
+    private final float[] mRe;
+    private final float[] mIm;
+    private final float[] mPower;
+    private final float[] mNoise;
+    // Clean speech power of the previous frame, per bin
+    private final float[] mPrevClean;
+
+    // Minimum statistics: smoothed power, its minimum in the current subwindow, and the minima of
+    // the previous subwindows
+    private final float[] mSmoothed;
+    private final float[] mMin;
+    private final float[][] mSubwindowMins;
+    private final int mSubwindowLength;
+    private int mSubwindow;
+    private int mSubwindowPos;
+    private int mNumOfFrames;
+
+    public SpectralNoiseSuppressor(int sampleRate) {
+        this(sampleRate, DEFAULT_MAX_ATTENUATION_DB);
+    }
+
+    /**
+     * @param sampleRate        sample rate in Hz
+     * @param maxAttenuationDb maximum attenuation of a frequency bin in dB
+     */
+    public SpectralNoiseSuppressor(int sampleRate, double maxAttenuationDb) {
+        mFrameSize = Math.max(64, Integer.highestOneBit((int) (sampleRate * FRAME_MILLIS / 1000)));
+        mHop = mFrameSize / 2;
+        mMinGain = (float) Math.pow(10, -maxAttenuationDb / 20);
+        mFft = new Fft(mFrameSize);
+        mWindow = new float[mFrameSize];
+        for (int i = 0; i < mFrameSize; i++) {
+            mWindow[i] = (float) Math.sqrt(0.5 - 0.5 * Math.cos(2 * Math.PI * i / mFrameSize));
+        }
+        mInput = new float[mFrameSize];
+        mOverlap = new float[mFrameSize];
+        mOutput = new float[mHop];
+        mFrame = new float[mFrameSize];
+        int numOfBins = mFft.numOfBins();
+        mRe = new float[numOfBins];
+        mIm = new float[numOfBins];
+        mPower = new float[numOfBins];
+        mNoise = new float[numOfBins];
+        mPrevClean = new float[numOfBins];
+        mSmoothed = new float[numOfBins];
+        mMin = new float[numOfBins];
+        mSubwindowMins = new float[NUM_OF_SUBWINDOWS][numOfBins];
+        mSubwindowLength = Math.max(1, (int) Math.round(sampleRate * SUBWINDOW_MILLIS / 1000 / mHop));
+        reset();
+    }
+
+    /**
+     * @return number of samples by which the output is delayed
+     */
+    public int getDelay() {
+        return mFrameSize;
+    }
+
+    /**
+     * @return number of samples per analysis frame
+     */
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    @Override
+    public void process(short[] samples, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            mInput[mInputPos++] = samples[i];
+            float y = mOutput[mOutputPos++];
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(y)));
+            if (mInputPos == mFrameSize) {
+                processFrame();
+                System.arraycopy(mInput, mHop, mInput, 0, mFrameSize - mHop);
+                mInputPos = mFrameSize - mHop;
+                mOutputPos = 0;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mFrameSize; i++) {
+            mInput[i] = 0;
+            mOverlap[i] = 0;
+        }
+        for (int i = 0; i < mHop; i++) {
+            mOutput[i] = 0;
+        }
+        for (int k = 0; k < mNoise.length; k++) {
+            mNoise[k] = 0;
+            mPrevClean[k] = 0;
+            mSmoothed[k] = 0;
+            mMin[k] = Float.MAX_VALUE;
+        }
+        for (float[] mins : mSubwindowMins) {
+            for (int k = 0; k < mins.length; k++) {
+                mins[k] = Float.MAX_VALUE;
+            }
+        }
+        mSubwindow = 0;
+        mSubwindowPos = 0;
+        mInputPos = mFrameSize - mHop;
+        mOutputPos = 0;
+        mNumOfFrames = 0;
+    }
+
+    private void processFrame() {
+        for (int i = 0; i < mFrameSize; i++) {
+            mFrame[i] = mInput[i] * mWindow[i];
+        }
+        mFft.forward(mFrame, mRe, mIm);
+        int numOfBins = mPower.length;
+        for (int k = 0; k < numOfBins; k++) {
+            mPower[k] = mRe[k] * mRe[k] + mIm[k] * mIm[k];
+        }
+        updateNoise();
+        for (int k = 0; k < numOfBins; k++) {
+            float noise = mNoise[k] + EPSILON;
+            float snrPost = mPower[k] / noise;
+            float snrPrio = SNR_SMOOTHING * mPrevClean[k] / noise + (1 - SNR_SMOOTHING) * Math.max(snrPost - 1, 0);
+            float gain = Math.max(mMinGain, snrPrio / (1 + snrPrio));
+            mPrevClean[k] = gain * gain * mPower[k];
+            mRe[k] *= gain;
+            mIm[k] *= gain;
+        }
+        mFft.inverse(mRe, mIm, mFrame);
+        for (int i = 0; i < mFrameSize; i++) {
+            mOverlap[i] += mFrame[i] * mWindow[i];
+        }
+        System.arraycopy(mOverlap, 0, mOutput, 0, mHop);
+        System.arraycopy(mOverlap, mHop, mOverlap, 0, mFrameSize - mHop);
+        for (int i = mFrameSize - mHop; i < mFrameSize; i++) {
+            mOverlap[i] = 0;
+        }
+    }
+
+    /**
+     * Updates the noise estimate (the minimum of the smoothed power over the last subwindows).
+     * The first frame is half zeros (the initial padding), and is skipped.
+     */
+    private void updateNoise() {
+        int numOfBins = mPower.length;
+        if (mNumOfFrames++ == 0) {
+            return;
+        }
+        boolean isFirst = mNumOfFrames == 2;
+        for (int k = 0; k < numOfBins; k++) {
+            float smoothed = isFirst ? mPower[k] : POWER_SMOOTHING * mSmoothed[k] + (1 - POWER_SMOOTHING) * mPower[k];
+            mSmoothed[k] = smoothed;
+            if (smoothed < mMin[k]) {
+                mMin[k] = smoothed;
+            }
+            float min = mMin[k];
+            for (float[] mins : mSubwindowMins) {
+                if (mins[k] < min) {
+                    min = mins[k];
+                }
+            }
+            mNoise[k] = MINIMUM_BIAS * min;
+        }
+        if (++mSubwindowPos == mSubwindowLength) {
+            float[] mins = mSubwindowMins[mSubwindow];
+            for (int k = 0; k < numOfBins; k++) {
+                mins[k] = mMin[k];
+                mMin[k] = Float.MAX_VALUE;
+            }
+            mSubwindow = (mSubwindow + 1) % NUM_OF_SUBWINDOWS;
+            mSubwindowPos = 0;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * <p>Voice activity detector that combines three per-frame features:</p>
+ * <ul>
+ * <li>energy relative to an adaptive noise floor, which follows the energy of the non-speech
+ * frames, drops immediately with quieter frames and rises slowly during speech (so that a louder
+ * background eventually becomes the new floor);</li>
+ * <li>zero-crossing rate, which is low for voiced speech and high for broadband noise;</li>
+ * <li>spectral flatness (geometric mean divided by arithmetic mean of the power spectrum in the
+ * speech band), which is close to 1 for noise and low for harmonic (voiced) sounds.</li>
+ * </ul>
+ * <p>
+ * A frame is speech if its energy is clearly above the noise floor and the spectrum or the
+ * zero-crossing rate looks like speech, or if its energy is far above the noise floor.
+ * Works on frames of any length, but is tuned for 10-30 ms frames.
+ * </p>
+ */
+public class SpectralVoiceActivityDetector implements VoiceActivityDetector {
+
+    // Frames that are quieter than this (RMS of about 30) are never speech
+    private static final double MIN_ENERGY_DB = 30;
+    private static final double DEFAULT_ENERGY_THRESHOLD_DB = 9;
+    private static final double DEFAULT_FLATNESS_THRESHOLD = 0.4;
+    private static final double DEFAULT_ZCR_THRESHOLD = 0.25;
+
+    // Rates at which the noise floor moves towards the frame energy
+    private static final double NOISE_FLOOR_ADAPTATION = 0.1;
+    private static final double NOISE_FLOOR_ADAPTATION_IN_SPEECH = 0.002;
+
+    private static final int MIN_FREQ_HZ = 100;
+    private static final int MAX_FREQ_HZ = 4000;
+    private static final double EPSILON = 1e-10;
+
+    private final double mEnergyThresholdDb;
+    private final double mFlatnessThreshold;
+    private final double mZcrThreshold;
+
+    private final int mFrameLength;
+    private final Fft mFft;
+    private final float[] mWindow;
+    private final float[] mFrame;
+    private final float[] mPower;
+    private final float[] mRe;
+    private final float[] mIm;
+    private final int mMinBin;
+    private final int mMaxBin;
+
+    private double mNoiseFloorDb = Double.NaN;
+
+    // Features of the last frame, for debugging and tuning
+    private double mEnergyDb;
+    private double mZcr;
+    private double mFlatness;
+
+    public SpectralVoiceActivityDetector(int sampleRate, int frameLength) {
+        this(sampleRate, frameLength, DEFAULT_ENERGY_THRESHOLD_DB, DEFAULT_FLATNESS_THRESHOLD, DEFAULT_ZCR_THRESHOLD);
+    }
+
+    /**
+     * @param sampleRate         sample rate in Hz
+     * @param frameLength        maximum number of samples in a frame
+     * @param energyThresholdDb  how many dB above the noise floor a speech frame must be
+     * @param flatnessThreshold  spectral flatness (0..1) below which the spectrum looks like speech
+     * @param zcrThreshold       zero-crossing rate (0..1) below which the frame looks like voiced speech
+     */
+    public SpectralVoiceActivityDetector(int sampleRate, int frameLength, double energyThresholdDb,
+                                         double flatnessThreshold, double zcrThreshold) {
+        mFrameLength = frameLength;
+        mEnergyThresholdDb = energyThresholdDb;
+        mFlatnessThreshold = flatnessThreshold;
+        mZcrThreshold = zcrThreshold;
+        int fftSize = Math.max(4, Integer.highestOneBit(frameLength - 1) << 1);
+        mFft = new Fft(fftSize);
+        mFrame = new float[fftSize];
+        mPower = new float[mFft.numOfBins()];
+        mRe = new float[mFft.numOfBins()];
+        mIm = new float[mFft.numOfBins()];
+        mWindow = new float[frameLength];
+        for (int i = 0; i < frameLength; i++) {
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (frameLength - 1)));
+        }
+        double hzPerBin = (double) sampleRate / fftSize;
+        mMinBin = Math.max(1, (int) (MIN_FREQ_HZ / hzPerBin));
+        mMaxBin = Math.min(mFft.numOfBins() - 1, (int) (MAX_FREQ_HZ / hzPerBin));
+    }
+
+    @Override
+    public boolean isSpeech(short[] samples, int offset, int length) {
+        length = Math.min(length, mFrameLength);
+        if (length < 2) {
+            return false;
+        }
+        long sumOfSquares = 0;
+        int numOfZeroCrossings = 0;
+        int previous = samples[offset];
+        for (int i = offset; i < offset + length; i++) {
+            int sample = samples[i];
+            sumOfSquares += sample * sample;
+            if ((sample >= 0) != (previous >= 0)) {
+                numOfZeroCrossings++;
+            }
+            previous = sample;
+        }
+        mEnergyDb = 10 * Math.log10((double) sumOfSquares / length + EPSILON);
+        mZcr = (double) numOfZeroCrossings / (length - 1);
+        mFlatness = getSpectralFlatness(samples, offset, length);
+
+        if (Double.isNaN(mNoiseFloorDb)) {
+            mNoiseFloorDb = mEnergyDb;
+        }
+
+        boolean isSpeech = false;
+        double aboveFloorDb = mEnergyDb - mNoiseFloorDb;
+        if (mEnergyDb > MIN_ENERGY_DB && aboveFloorDb > mEnergyThresholdDb) {
+            isSpeech = mFlatness < mFlatnessThreshold || mZcr < mZcrThreshold || aboveFloorDb > 2 * mEnergyThresholdDb;
+        }
+
+        if (mEnergyDb < mNoiseFloorDb) {
+            mNoiseFloorDb = mEnergyDb;
+        } else if (isSpeech) {
+            mNoiseFloorDb += NOISE_FLOOR_ADAPTATION_IN_SPEECH * aboveFloorDb;
+        } else {
+            mNoiseFloorDb += NOISE_FLOOR_ADAPTATION * aboveFloorDb;
+        }
+        return isSpeech;
+    }
+
+    @Override
+    public void reset() {
+        mNoiseFloorDb = Double.NaN;
+    }
+
+    public double getNoiseFloorDb() {
+        return mNoiseFloorDb;
+    }
+
+    public double getEnergyDb() {
+        return mEnergyDb;
+    }
+
+    public double getZeroCrossingRate() {
+        return mZcr;
+    }
+
+    public double getSpectralFlatness() {
+        return mFlatness;
+    }
+
+    private double getSpectralFlatness(short[] samples, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            mFrame[i] = samples[offset + i] * mWindow[i];
+        }
+        for (int i = length; i < mFrame.length; i++) {
+            mFrame[i] = 0;
+        }
+        mFft.powerSpectrum(mFrame, mPower, mRe, mIm);
+        double sumOfLogs = 0;
+        double sum = 0;
+        for (int k = mMinBin; k <= mMaxBin; k++) {
+            double power = mPower[k] + EPSILON;
+            sumOfLogs += Math.log(power);
+            sum += power;
+        }
+        int numOfBins = mMaxBin - mMinBin + 1;
+        return Math.exp(sumOfLogs / numOfBins) / (sum / numOfBins);
+    }
+}
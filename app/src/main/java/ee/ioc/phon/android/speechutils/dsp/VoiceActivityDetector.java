@@ -0,0 +1,22 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+/**
+ * Classifies short frames (typically 10, 20 or 30 ms) of audio as speech or non-speech.
+ * Implementations can keep state across frames (e.g. a noise estimate), and are called
+ * by a single (recorder) thread, frame by frame, in the order of the recording.
+ */
+public interface VoiceActivityDetector {
+
+    /**
+     * @param samples 16-bit samples
+     * @param offset  index of the first sample of the frame
+     * @param length  number of samples in the frame
+     * @return true iff the frame contains speech
+     */
+    boolean isSpeech(short[] samples, int offset, int length);
+
+    /**
+     * Forgets the state, e.g. before a new recording.
+     */
+    void reset();
+}
@@ -17,6 +17,8 @@ import androidx.annotation.RequiresPermission;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import ee.ioc.phon.android.speechutils.AbstractAudioRecorder;
+import ee.ioc.phon.android.speechutils.AudioOffsetMap;
 import ee.ioc.phon.android.speechutils.AudioCue;
 import ee.ioc.phon.android.speechutils.AudioPauser;
 import ee.ioc.phon.android.speechutils.AudioRecorder;
@@ -24,6 +26,11 @@ import ee.ioc.phon.android.speechutils.EncodedAudioRecorder;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.Log;
 import ee.ioc.phon.android.speechutils.RawAudioRecorder;
+import ee.ioc.phon.android.speechutils.RecorderMetrics;
+import ee.ioc.phon.android.speechutils.SilenceCompactor;
+import ee.ioc.phon.android.speechutils.dsp.AudioFilter;
+import ee.ioc.phon.android.speechutils.dsp.ChannelMixer;
+import ee.ioc.phon.android.speechutils.dsp.VoiceActivityDetector;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
 /**
@@ -41,11 +48,16 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     private static final int TASK_INTERVAL_STOP = 1000;
     private static final int TASK_DELAY_STOP = 1000;
 
+    private static final int VAD_FRAME_LENGTH_MILLIS = 20;
+
     private AudioCue mAudioCue;
     private AudioPauser mAudioPauser;
     private RecognitionService.Callback mListener;
 
     private AudioRecorder mRecorder;
+    // Recorder of the previous session, which is reset and reused by the next session (if it
+    // records in the same format), so that back-to-back sessions reuse the recorder buffers
+    private AudioRecorder mReleasedRecorder;
 
     private final Handler mVolumeHandler = new Handler();
     private Runnable mShowVolumeTask;
@@ -55,6 +67,8 @@ public abstract class AbstractRecognitionService extends RecognitionService {
 
     private Bundle mExtras;
 
+    private AudioOffsetMap mOffsetMap;
+
     protected static Bundle toResultsBundle(String hypothesis) {
         ArrayList<String> hypotheses = new ArrayList<>();
         hypotheses.add(hypothesis);
@@ -104,7 +118,36 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     @RequiresPermission(RECORD_AUDIO)
     protected AudioRecorder getAudioRecorder() throws IOException {
         if (mRecorder == null) {
-            mRecorder = createAudioRecorder(getEncoderType(), getSampleRate());
+            String encoderType = getEncoderType();
+            AudioRecorder recorder = mReleasedRecorder;
+            mReleasedRecorder = null;
+            if (isReusable(recorder, encoderType, getSampleRate())) {
+                // The listeners of the previous session would otherwise fire twice
+                ((AbstractAudioRecorder) recorder).removeAudioListeners();
+                recorder.reset();
+                mRecorder = recorder;
+            } else {
+                releaseKeptRecorder(recorder);
+                mRecorder = createAudioRecorder(encoderType, getSampleRate());
+                if (isWarmStart() && mRecorder instanceof AbstractAudioRecorder) {
+                    ((AbstractAudioRecorder) mRecorder).setWarmStart(true);
+                }
+            }
+            int captureSampleRate = getCaptureSampleRate();
+            if (mRecorder instanceof AbstractAudioRecorder && ((AbstractAudioRecorder) mRecorder).getCaptureSampleRate() != captureSampleRate) {
+                ((AbstractAudioRecorder) mRecorder).setCaptureSampleRate(captureSampleRate);
+            }
+            if (mRecorder instanceof AbstractAudioRecorder) {
+                ((AbstractAudioRecorder) mRecorder).setChannelMixer(createChannelMixer(captureSampleRate));
+                ((AbstractAudioRecorder) mRecorder).setAudioFilter(createAudioFilter(getSampleRate()));
+            }
+            // A reused recorder keeps its detector, which has been reset
+            if (mRecorder instanceof AbstractAudioRecorder && !((AbstractAudioRecorder) mRecorder).hasVoiceActivityDetector()) {
+                VoiceActivityDetector vad = createVoiceActivityDetector(getSampleRate(), VAD_FRAME_LENGTH_MILLIS);
+                if (vad != null) {
+                    ((AbstractAudioRecorder) mRecorder).setVoiceActivityDetector(vad, VAD_FRAME_LENGTH_MILLIS);
+                }
+            }
         }
         return mRecorder;
     }
@@ -117,6 +160,14 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         return false;
     }
 
+    /**
+     * Returns true if the AudioRecord should be kept initialized between the sessions (see
+     * {@link AbstractAudioRecorder#setWarmStart}), so that the recording starts faster.
+     */
+    protected boolean isWarmStart() {
+        return false;
+    }
+
     /**
      * Gets the sample rate used in the recorder.
      * Different services can use a different sample rate.
@@ -125,6 +176,15 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         return 16000;
     }
 
+    /**
+     * Gets the rate at which the audio is captured (see {@link AbstractAudioRecorder#setCaptureSampleRate}),
+     * e.g. the native rate of the device, which is then resampled to {@link #getSampleRate}.
+     * By default the audio is captured at the sample rate.
+     */
+    protected int getCaptureSampleRate() {
+        return getSampleRate();
+    }
+
     /**
      * Gets the max number of milliseconds to record.
      */
@@ -140,6 +200,70 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         return false;
     }
 
+    /**
+     * Returns the voice activity detector that decides when the speech has ended (see isAutoStopAfterPause).
+     * Subclasses can return e.g. a SpectralVoiceActivityDetector, by default the pause is detected
+     * by comparing the energy of the last second to the earlier energy.
+     * A recorder that is reused by the next session keeps its detector (which is reset), i.e. this is
+     * not called again for it.
+     *
+     * @param sampleRate        sample rate of the recorder
+     * @param frameLengthMillis length of the frames that the detector classifies
+     * @return voice activity detector or null
+     */
+    protected VoiceActivityDetector createVoiceActivityDetector(int sampleRate, int frameLengthMillis) {
+        return null;
+    }
+
+    /**
+     * Returns the mixer of a stereo (two-microphone) capture, e.g. a DelayAndSumBeamformer for
+     * far-field use. By default the audio is captured in mono.
+     *
+     * @param captureSampleRate rate at which the audio is captured (and mixed)
+     * @return channel mixer or null
+     */
+    protected ChannelMixer createChannelMixer(int captureSampleRate) {
+        return null;
+    }
+
+    /**
+     * Returns the filter that processes the audio before it is recorded, e.g. an AudioFilterChain
+     * of a HighPassFilter and an AutomaticGainControl, or a SpectralNoiseSuppressor on the devices
+     * that do not have the platform noise suppressor (see SpeechAudioRecord.isNoiseSuppressorAvailable).
+     * By default the audio is not processed.
+     *
+     * @param sampleRate sample rate of the recorder
+     * @return audio filter or null
+     */
+    protected AudioFilter createAudioFilter(int sampleRate) {
+        return null;
+    }
+
+    /**
+     * Returns the compactor that removes the leading, trailing and long internal silences from the
+     * raw recording before it is passed to {@link #afterRecording}, e.g. to cut the upload time.
+     * The default SilenceCompactor detects the speech by energy, it can also be given its own
+     * instance of the voice activity detector. The encoded recordings are not compacted.
+     * By default the recording is passed as it is.
+     *
+     * @param sampleRate sample rate of the recorder
+     * @return silence compactor or null
+     */
+    protected SilenceCompactor createSilenceCompactor(int sampleRate) {
+        return null;
+    }
+
+    /**
+     * @return map of the positions in the recording that was passed to {@link #afterRecording}
+     * to the positions in the recorded audio (e.g. to map the timestamps of the results back),
+     * or null if the recording was not compacted. The original positions are relative to the audio
+     * that was consumed when the recording stopped, i.e. not to the start of the recording if
+     * some of the audio had been consumed (e.g. streamed) before.
+     */
+    protected AudioOffsetMap getOffsetMap() {
+        return mOffsetMap;
+    }
+
     /**
      * Tasks done after the recording has finished and the audio has been obtained.
      */
@@ -147,6 +271,14 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         // Nothing to do, e.g. if the audio has already been sent to the server during recording
     }
 
+    /**
+     * @return snapshot of the health metrics of the recorder (e.g. to report them after the recording),
+     * or null if there is no recorder
+     */
+    protected RecorderMetrics.Snapshot getRecorderMetrics() {
+        return mRecorder == null ? null : mRecorder.getMetrics().snapshot();
+    }
+
     // TODO: remove this, we have already getAudioRecorder
     protected AudioRecorder getRecorder() {
         return mRecorder;
@@ -159,6 +291,8 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     public void onDestroy() {
         super.onDestroy();
         disconnectAndStopRecording();
+        releaseKeptRecorder(mReleasedRecorder);
+        mReleasedRecorder = null;
     }
 
     /**
@@ -170,6 +304,7 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         mListener = listener;
         Log.i("onStartListening");
 
+        mOffsetMap = null;
         mExtras = recognizerIntent.getExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
@@ -311,6 +446,13 @@ public abstract class AbstractRecognitionService extends RecognitionService {
             recording = ((EncodedAudioRecorder) mRecorder).consumeRecordingEnc();
         } else {
             recording = mRecorder.consumeRecording();
+            SilenceCompactor compactor = recording == null ? null : createSilenceCompactor(getSampleRate());
+            if (compactor != null) {
+                SilenceCompactor.Result result = compactor.compact(recording);
+                Log.i("Compacted recording: " + recording.length + " -> " + result.getAudio().length + " bytes");
+                recording = result.getAudio();
+                mOffsetMap = result.getOffsetMap();
+            }
         }
 
         stopRecording0();
@@ -366,6 +508,24 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         return new RawAudioRecorder(sampleRate);
     }
 
+    /**
+     * @return true iff the given (released) recorder records in the format that
+     * {@link #createAudioRecorder} would create a recorder for, and has finished its previous recording
+     */
+    private static boolean isReusable(AudioRecorder recorder, String encoderType, int sampleRate) {
+        if (!(recorder instanceof AbstractAudioRecorder) || ((AbstractAudioRecorder) recorder).getSampleRate() != sampleRate) {
+            return false;
+        }
+        // Resetting a recorder whose thread is still finishing the previous recording would block the main thread
+        if (!((AbstractAudioRecorder) recorder).isIdle()) {
+            return false;
+        }
+        if ("audio/x-flac".equals(encoderType)) {
+            return recorder instanceof EncodedAudioRecorder;
+        }
+        return recorder instanceof RawAudioRecorder;
+    }
+
 
     /**
      * Starts recording.
@@ -433,11 +593,25 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     private void releaseRecorder() {
         if (mRecorder != null) {
             mRecorder.release();
+            // Only the empty recorder is kept until the next session
+            if (mRecorder instanceof AbstractAudioRecorder) {
+                ((AbstractAudioRecorder) mRecorder).discardRecording();
+            }
+            mReleasedRecorder = mRecorder;
             mRecorder = null;
         }
     }
 
 
+    /**
+     * Releases the AudioRecord that a released recorder might have kept in the warm-start mode.
+     */
+    private static void releaseKeptRecorder(AudioRecorder recorder) {
+        if (recorder instanceof AbstractAudioRecorder) {
+            ((AbstractAudioRecorder) recorder).setWarmStart(false);
+        }
+    }
+
     private void setAudioCuesEnabled(boolean enabled) {
         if (enabled) {
             mAudioCue = new AudioCue(this);
@@ -45,8 +45,9 @@ public class AudioUtils {
 
     public static byte[] getWavHeader(int totalAudioLen, int sampleRate, short resolutionInBytes, short channels) {
         int headerLen = 44;
-        int byteRate = sampleRate * resolutionInBytes; // sampleRate*(16/8)*1 ???
-        int totalDataLen = totalAudioLen + headerLen;
+        int byteRate = sampleRate * resolutionInBytes * channels;
+        // Size of the RIFF chunk, i.e. of the file without the 'RIFF' id and this size field
+        int totalDataLen = totalAudioLen + headerLen - 8;
 
         byte[] header = new byte[headerLen];
 
@@ -82,7 +83,7 @@ public class AudioUtils {
         header[29] = (byte) ((byteRate >> 8) & 0xff);
         header[30] = (byte) ((byteRate >> 16) & 0xff);
         header[31] = (byte) ((byteRate >> 24) & 0xff);
-        header[32] = (byte) (2 * 16 / 8);  // block align
+        header[32] = (byte) (resolutionInBytes * channels);  // block align
         header[33] = 0;
         header[34] = (byte) (8 * resolutionInBytes);  // bits per sample
         header[35] = 0;
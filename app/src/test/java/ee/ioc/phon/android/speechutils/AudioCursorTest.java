@@ -0,0 +1,219 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class AudioCursorTest {
+
+    private static final byte[] BYTES = new byte[]{0, 1, 2, 3, 4, 5};
+
+    /**
+     * Cursors read the same audio independently of each other and of the consumer.
+     */
+    @Test
+    public void test01() {
+        AudioRingBuffer rb = new AudioRingBuffer(16, false);
+        AudioCursor uploader = rb.openCursor("uploader", 0);
+        AudioCursor archiver = rb.openCursor("archiver", 0);
+        assertThat(rb.getCursor("uploader"), is(uploader));
+        rb.write(BYTES, 0, BYTES.length);
+        byte[] bytes = new byte[4];
+        assertThat(uploader.read(bytes, 0, 4), is(4));
+        assertArrayEquals(new byte[]{0, 1, 2, 3}, bytes);
+        assertThat(uploader.available(), is(2));
+        assertThat(archiver.available(), is(6));
+        assertThat(archiver.read(bytes, 0, 2), is(2));
+        assertThat(uploader.read(bytes, 0, 4), is(2));
+        assertThat(bytes[1], is((byte) 5));
+        assertThat(uploader.read(bytes, 0, 4), is(0));
+        assertThat(rb.getReadPosition(), is(0L));
+    }
+
+    /**
+     * An overrun cursor continues past the oldest audio (by the longest write, as the next write
+     * overwrites the oldest audio), and counts the lost audio, while the other cursors are not affected.
+     */
+    @Test
+    public void test02() {
+        AudioRingBuffer rb = new AudioRingBuffer(8, true);
+        AudioCursor slow = rb.openCursor("slow", 0);
+        AudioCursor fast = rb.openCursor("fast", 0);
+        byte[] bytes = new byte[8];
+        rb.write(BYTES, 0, BYTES.length);
+        assertThat(fast.read(bytes, 0, 8), is(6));
+        rb.write(BYTES, 0, BYTES.length);
+        assertThat(fast.read(bytes, 0, 8), is(6));
+        assertThat(slow.read(bytes, 0, 8), is(-1));
+        assertThat(slow.getNumOfOverruns(), is(1));
+        assertThat(slow.getNumOfLostBytes(), is(10L));
+        assertThat(slow.read(bytes, 0, 8), is(2));
+        assertThat(bytes[0], is((byte) 4));
+        assertThat(bytes[1], is((byte) 5));
+        assertThat(fast.getNumOfOverruns(), is(0));
+    }
+
+    /**
+     * The consumed blocks are released only once the slowest cursor has read them.
+     */
+    @Test
+    public void test03() {
+        AudioBlockPool pool = new AudioBlockPool(4, 10);
+        SegmentedAudioBuffer sb = new SegmentedAudioBuffer(pool, 16);
+        sb.setReleaseConsumed(true);
+        AudioCursor cursor = sb.openCursor("vad", 0);
+        sb.write(BYTES, 0, BYTES.length);
+        sb.setReadPosition(6);
+        sb.write(BYTES, 0, BYTES.length);
+        assertThat(sb.getOldestPosition(), is(0L));
+        assertThat(sb.getNumOfBlocks(), is(3));
+        short[] samples = new short[3];
+        assertThat(cursor.read(samples, 0, 3), is(3));
+        assertThat(samples[0], is((short) 0x0100));
+        sb.write(BYTES, 0, 2);
+        assertThat(sb.getOldestPosition(), is(6L));
+        assertThat(sb.getNumOfBlocks(), is(3));
+        cursor.close();
+        assertNull(sb.getCursor("vad"));
+        assertThat(sb.getOldestPosition(), is(6L));
+    }
+
+    /**
+     * Clearing the buffer rewinds the cursors.
+     */
+    @Test
+    public void test04() {
+        AudioRingBuffer rb = new AudioRingBuffer(16, true);
+        AudioCursor cursor = rb.openCursor("cursor", 0);
+        rb.write(BYTES, 0, BYTES.length);
+        cursor.skipToLatest();
+        assertThat(cursor.getPosition(), is(6L));
+        rb.clear();
+        assertThat(cursor.getPosition(), is(0L));
+        rb.write(BYTES, 0, 2);
+        assertThat(cursor.available(), is(2));
+    }
+
+    /**
+     * Two cursors that are read concurrently on their own threads get the audio at their positions.
+     */
+    @Test
+    public void test05() throws InterruptedException {
+        int numOfBytes = 4 * 1024 * 1024;
+        AudioRingBuffer rb = new AudioRingBuffer(numOfBytes, false);
+        byte[] bytes = new byte[numOfBytes];
+        for (int i = 0; i < numOfBytes; i++) {
+            bytes[i] = (byte) (i % 251);
+        }
+        rb.write(bytes, 0, numOfBytes);
+        assertConcurrentReads(rb, numOfBytes, false);
+    }
+
+    /**
+     * A cursor reads the blocks that the producer releases and reuses because the consumer
+     * truncates the recording, in which case the reads fail instead of returning other audio.
+     */
+    @Test
+    public void test06() throws InterruptedException {
+        AudioBlockPool pool = new AudioBlockPool(64, 4);
+        SegmentedAudioBuffer sb = new SegmentedAudioBuffer(pool, 1024);
+        assertConcurrentReads(sb, 10 * 1024 * 1024, true);
+    }
+
+    /**
+     * A cursor that keeps being overtaken on an overwriting buffer never reads audio that is being
+     * overwritten, as it continues past the region that the producer writes next.
+     */
+    @Test
+    public void test07() throws InterruptedException {
+        final AudioRingBuffer rb = new AudioRingBuffer(4096, true);
+        final AudioCursor cursor = rb.openCursor("slow", 0);
+        final int numOfBytes = 512 * 1024 * 1024;
+        final AtomicReference<String> error = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] bytes = new byte[37];
+                while (cursor.getPosition() < numOfBytes - 4096 && error.get() == null) {
+                    long position = cursor.getPosition();
+                    int n = cursor.read(bytes, 0, bytes.length);
+                    for (int j = 0; j < n; j++) {
+                        if (bytes[j] != (byte) ((position + j) % 251)) {
+                            error.set("read " + bytes[j] + " at " + (position + j));
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        byte[] bytes = new byte[512];
+        for (long position = 0; position < numOfBytes && reader.isAlive(); position += bytes.length) {
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = (byte) ((position + j) % 251);
+            }
+            rb.write(bytes, 0, bytes.length);
+        }
+        reader.join();
+        assertTrue(error.get(), error.get() == null);
+        assertTrue(cursor.getNumOfOverruns() > 0);
+    }
+
+    /**
+     * Two cursors (one reading into a ByteBuffer, the other into an array) check every byte they read (byte i is i modulo 251). If required, the audio is
+     * written (and truncated to keep the buffer from filling up) while the cursors read.
+     */
+    private static void assertConcurrentReads(final AudioBuffer buffer, final int numOfBytes, boolean write) throws InterruptedException {
+        final AtomicReference<String> error = new AtomicReference<>();
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+            final AudioCursor cursor = buffer.openCursor("cursor" + i, 0);
+            final boolean isByteBufferReader = i == 0;
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] bytes = new byte[37];
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+                    try {
+                        while (cursor.getPosition() < numOfBytes && error.get() == null) {
+                            long position = cursor.getPosition();
+                            byteBuffer.clear();
+                            int n = isByteBufferReader ? cursor.read(byteBuffer) : cursor.read(bytes, 0, bytes.length);
+                            for (int j = 0; j < n; j++) {
+                                if (bytes[j] != (byte) ((position + j) % 251)) {
+                                    error.set(cursor.getName() + " read " + bytes[j] + " at " + (position + j));
+                                    return;
+                                }
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        error.set(cursor.getName() + ": " + e);
+                    }
+                }
+            });
+            readers[i].start();
+        }
+        byte[] bytes = new byte[60];
+        long position = write ? 0 : numOfBytes;
+        while (position < numOfBytes) {
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = (byte) ((position + j) % 251);
+            }
+            if (buffer.write(bytes, 0, bytes.length)) {
+                position += bytes.length;
+            }
+            buffer.truncate(Math.max(0, position - 200));
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(error.get(), error.get() == null);
+    }
+}
@@ -0,0 +1,98 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AudioEngineTest {
+
+    @Test
+    public void test01() {
+        AudioEngine engine = new AudioEngine("test");
+        final Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int session = i;
+            assertThat(engine.start(new Runnable() {
+                @Override
+                public void run() {
+                    threads[session] = Thread.currentThread();
+                }
+            }), is(true));
+            assertThat(engine.join(1000), is(true));
+        }
+        // The sessions run on the same thread
+        assertThat(threads[0] == threads[1], is(true));
+        engine.quit();
+    }
+
+    @Test
+    public void test02() throws InterruptedException {
+        AudioEngine engine = new AudioEngine("test");
+        final CountDownLatch latch = new CountDownLatch(1);
+        assertThat(engine.start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    // Ignored
+                }
+            }
+        }), is(true));
+        // Only one session at a time
+        assertThat(engine.start(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }), is(false));
+        assertThat(engine.join(10), is(false));
+        latch.countDown();
+        assertThat(engine.join(1000), is(true));
+        assertThat(engine.isRunning(), is(false));
+        engine.quit();
+    }
+
+    /**
+     * A task given while a session runs is run on the engine thread once the session has finished,
+     * without waiting for it, and before the session counts as finished. Without a session, the task is
+     * run right away.
+     */
+    @Test
+    public void test03() throws InterruptedException {
+        AudioEngine engine = new AudioEngine("test");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Thread[] threads = new Thread[2];
+        assertThat(engine.start(new Runnable() {
+            @Override
+            public void run() {
+                threads[0] = Thread.currentThread();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    // Ignored
+                }
+            }
+        }), is(true));
+        engine.runAfterSession(new Runnable() {
+            @Override
+            public void run() {
+                threads[1] = Thread.currentThread();
+            }
+        });
+        assertThat(threads[1] == null, is(true));
+        latch.countDown();
+        assertThat(engine.join(1000), is(true));
+        assertThat(threads[1] == threads[0], is(true));
+        engine.runAfterSession(new Runnable() {
+            @Override
+            public void run() {
+                threads[1] = Thread.currentThread();
+            }
+        });
+        assertThat(threads[1] == Thread.currentThread(), is(true));
+        engine.quit();
+    }
+}
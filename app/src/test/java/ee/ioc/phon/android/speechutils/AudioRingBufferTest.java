@@ -0,0 +1,128 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class AudioRingBufferTest {
+
+    private static final byte[] BYTES = new byte[]{0, 1, 2, 3, 4, 5};
+
+    @Test
+    public void test01() {
+        AudioRingBuffer rb = new AudioRingBuffer(10, false);
+        assertThat(rb.capacity(), is(16));
+        assertThat(rb.write(BYTES, 0, BYTES.length), is(true));
+        assertThat(rb.write(BYTES, 0, BYTES.length), is(true));
+        // Does not overwrite the recording
+        assertThat(rb.write(BYTES, 0, BYTES.length), is(false));
+        assertThat(rb.getWritePosition(), is(12L));
+        assertThat(rb.remaining(), is(4));
+    }
+
+    @Test
+    public void test02() {
+        AudioRingBuffer rb = new AudioRingBuffer(16, true);
+        for (int i = 0; i < 5; i++) {
+            assertThat(rb.write(BYTES, 0, BYTES.length), is(true));
+        }
+        assertThat(rb.getOldestPosition(), is(14L));
+        byte[] bytes = new byte[16];
+        assertThat(rb.read(14, bytes, 0, bytes.length), is(16));
+        assertArrayEquals(new byte[]{2, 3, 4, 5, 0, 1, 2, 3, 4, 5, 0, 1, 2, 3, 4, 5}, bytes);
+        // Overwritten bytes are not available
+        assertThat(rb.read(13, bytes, 0, 1), is(-1));
+    }
+
+    @Test
+    public void test03() {
+        AudioRingBuffer rb = new AudioRingBuffer(16, false);
+        rb.write(BYTES, 0, BYTES.length);
+        rb.truncate(rb.getWritePosition());
+        assertThat(rb.getOldestPosition(), is(6L));
+        assertThat(rb.getReadPosition(), is(6L));
+        assertThat(rb.remaining(), is(16));
+    }
+
+    @Test
+    public void test04() {
+        AudioRingBuffer rb = new AudioRingBuffer(8, false);
+        short[] samples = new short[]{1, -1, 256, Short.MIN_VALUE};
+        assertThat(rb.write(samples, 0, samples.length), is(true));
+        // Samples are stored as little-endian bytes
+        byte[] bytes = new byte[8];
+        assertThat(rb.read(0, bytes, 0, bytes.length), is(8));
+        assertArrayEquals(new byte[]{1, 0, -1, -1, 0, 1, 0, -128}, bytes);
+        short[] samplesRead = new short[4];
+        assertThat(rb.read(0, samplesRead, 0, samplesRead.length), is(4));
+        assertArrayEquals(samples, samplesRead);
+    }
+
+    @Test
+    public void test05() throws IOException {
+        File file = File.createTempFile("ring", ".raw");
+        try {
+            AudioRingBuffer rb = AudioRingBuffer.map(file, 10, true);
+            assertThat(rb.capacity(), is(16));
+            assertThat(file.length(), is(16L));
+            for (int i = 0; i < 3; i++) {
+                assertThat(rb.write(BYTES, 0, BYTES.length), is(true));
+            }
+            // The buffer wraps around, and is written out straight from the mapped file
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertThat(rb.read(2, Channels.newChannel(out), 16), is(16));
+            assertArrayEquals(new byte[]{2, 3, 4, 5, 0, 1, 2, 3, 4, 5, 0, 1, 2, 3, 4, 5}, out.toByteArray());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A reader at the oldest position of an overwriting buffer races with the producer, which
+     * overwrites that position next: every read either fails or returns the audio that was written there.
+     * The producer writes 512-sample chunks, every sample is the number of its chunk.
+     */
+    @Test
+    public void test06() throws InterruptedException {
+        final AudioRingBuffer rb = new AudioRingBuffer(4096, true);
+        final AtomicLong numOfTornReads = new AtomicLong();
+        final AtomicLong numOfReads = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                short[] samples = new short[256];
+                while (!Thread.currentThread().isInterrupted()) {
+                    long position = rb.getOldestPosition() & ~1L;
+                    if (rb.read(position, samples, 0, samples.length) == samples.length) {
+                        numOfReads.incrementAndGet();
+                        for (int i = 0; i < samples.length; i++) {
+                            if (samples[i] != (short) ((position + 2 * i) / 1024)) {
+                                numOfTornReads.incrementAndGet();
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        short[] chunk = new short[512];
+        for (int n = 0; n < 2000000; n++) {
+            Arrays.fill(chunk, (short) n);
+            rb.write(chunk, 0, chunk.length);
+        }
+        reader.interrupt();
+        reader.join();
+        assertThat(numOfTornReads.get(), is(0L));
+        assertThat(numOfReads.get() > 0, is(true));
+    }
+}
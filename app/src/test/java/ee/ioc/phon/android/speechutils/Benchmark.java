@@ -0,0 +1,20 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Assume;
+
+/**
+ * Switch of the benchmarks among the local unit tests. They assert real-time factors, i.e. they depend
+ * on the load of the machine, and are therefore run only on request: {@code ./gradlew test -Pbenchmark}
+ */
+public final class Benchmark {
+
+    private Benchmark() {
+    }
+
+    /**
+     * Skips the calling test unless the benchmarks have been requested.
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks are run with -Pbenchmark", Boolean.getBoolean("speechutils.benchmark"));
+    }
+}
@@ -0,0 +1,180 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recovery of the capture in the always-listen mode, runs on the JVM with a scripted audio source.
+ */
+public class CaptureRecoveryTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /**
+     * A failed read restarts the capture, and the recording is kept.
+     */
+    @Test
+    public void test01() throws InterruptedException {
+        ScriptedSource source = new ScriptedSource();
+        source.mFailingRead = 5;
+        ContinuousRawAudioRecorder recorder = new ContinuousRawAudioRecorder(source, SAMPLE_RATE, 10000);
+        recorder.start();
+        waitForReads(source, 20);
+        recorder.stop();
+        assertThat(recorder.getState(), is(AudioRecorder.State.STOPPED));
+        Thread.sleep(20);
+        RecorderMetrics.Snapshot snapshot = recorder.getMetrics().snapshot();
+        assertThat(snapshot.getNumOfRecoveries(), is(1L));
+        assertThat(source.mNumOfStarts, is(2));
+        // Nothing was dropped by the recovery
+        assertThat((long) recorder.available(), is(snapshot.getNumOfBytesRead()));
+        recorder.release();
+    }
+
+    /**
+     * A read that blocks is detected by the watchdog, which restarts the capture.
+     */
+    @Test
+    public void test02() throws InterruptedException {
+        ScriptedSource source = new ScriptedSource();
+        source.mBlockingRead = 5;
+        ContinuousRawAudioRecorder recorder = new ContinuousRawAudioRecorder(source, SAMPLE_RATE, 10000);
+        recorder.start();
+        waitForReads(source, 20);
+        RecorderMetrics.Snapshot snapshot = recorder.getMetrics().snapshot();
+        assertThat(snapshot.getNumOfStalls(), is(1L));
+        assertThat(snapshot.getNumOfRecoveries(), is(1L));
+        recorder.stop();
+        recorder.release();
+    }
+
+    /**
+     * A capture that cannot be restarted is retried with a growing backoff until the recorder is stopped,
+     * after which the recorder thread finishes.
+     */
+    @Test
+    public void test03() throws InterruptedException {
+        ScriptedSource source = new ScriptedSource();
+        source.mFailingRead = 5;
+        source.mMaxNumOfStarts = 1;
+        ContinuousRawAudioRecorder recorder = new ContinuousRawAudioRecorder(source, SAMPLE_RATE, 10000);
+        recorder.start();
+        Thread.sleep(1000);
+        // The attempts after 50, 100, 200, 400 ms, the next one at 1550 ms
+        assertTrue("Starts: " + source.mNumOfStarts, source.mNumOfStarts >= 4 && source.mNumOfStarts <= 6);
+        long timeNanos = System.nanoTime();
+        recorder.stop();
+        assertThat(recorder.getState(), is(AudioRecorder.State.STOPPED));
+        recorder.reset();
+        assertTrue((System.nanoTime() - timeNanos) / 1000000 < 500);
+        assertThat(recorder.getState(), is(AudioRecorder.State.READY));
+        assertThat(recorder.getMetrics().snapshot().getNumOfRecoveries(), is(0L));
+        recorder.release();
+    }
+
+    private static void waitForReads(ScriptedSource source, int numOfReads) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (source.mNumOfReads < numOfReads && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // The last read has been recorded
+        Thread.sleep(20);
+    }
+
+    /**
+     * Delivers the requested audio per read (after 5 ms), with one read that fails (returns 0) or blocks until stopped.
+     */
+    private static class ScriptedSource implements AudioSource {
+
+        private final Object mLock = new Object();
+        private volatile boolean mIsRecording = false;
+        private volatile int mNumOfReads = 0;
+        private volatile int mNumOfStarts = 0;
+        private int mFailingRead = -1;
+        private int mBlockingRead = -1;
+        private int mMaxNumOfStarts = Integer.MAX_VALUE;
+
+        @Override
+        public int getSampleRate() {
+            return SAMPLE_RATE;
+        }
+
+        @Override
+        public int getChannelCount() {
+            return 1;
+        }
+
+        @Override
+        public int getBufferSize() {
+            return 4 * SAMPLE_RATE / 100 * 2;
+        }
+
+        @Override
+        public boolean isInitialized() {
+            return true;
+        }
+
+        @Override
+        public boolean isRecording() {
+            return mIsRecording;
+        }
+
+        @Override
+        public void start() {
+            mNumOfStarts++;
+            mIsRecording = mNumOfStarts <= mMaxNumOfStarts;
+        }
+
+        @Override
+        public void stop() {
+            synchronized (mLock) {
+                mIsRecording = false;
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void release() {
+            stop();
+        }
+
+        @Override
+        public int read(short[] dst, int off, int len) {
+            int n = mNumOfReads++;
+            if (n == mFailingRead) {
+                return 0;
+            }
+            synchronized (mLock) {
+                try {
+                    if (n == mBlockingRead) {
+                        while (mIsRecording) {
+                            mLock.wait();
+                        }
+                        return 0;
+                    }
+                    mLock.wait(5);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+            }
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = (short) i;
+            }
+            return len;
+        }
+
+        @Override
+        public int read(byte[] dst, int off, int len) {
+            return 0;
+        }
+
+        @Override
+        public long getCaptureTimeNanos(long framePosition) {
+            return -1;
+        }
+    }
+}
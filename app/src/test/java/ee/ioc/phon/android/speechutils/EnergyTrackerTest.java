@@ -0,0 +1,63 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Incremental energy of the recorded chunks, runs on the JVM (no device needed).
+ */
+public class EnergyTrackerTest {
+
+    /**
+     * The chunk energy is the mean square of the latest chunk, the window keeps the sum of squares
+     * of the latest samples.
+     */
+    @Test
+    public void test01() {
+        EnergyTracker tracker = new EnergyTracker(4);
+        assertThat(tracker.getChunkMeanSquare(), is(0.0));
+        tracker.add(new short[]{1, -2, 3}, 0, 3);
+        assertThat(tracker.getChunkMeanSquare(), is(14 / 3.0));
+        assertThat(tracker.getWindowSumOfSquares(), is(14L));
+        // Only the given part of the array is added, and the oldest sample drops out of the window
+        tracker.add(new short[]{100, 4, -5, 100}, 1, 2);
+        assertThat(tracker.getChunkMeanSquare(), is(41 / 2.0));
+        assertThat(tracker.getWindowSumOfSquares(), is(4L + 9 + 16 + 25));
+        // An empty chunk does not change the chunk energy
+        tracker.add(new short[0], 0, 0);
+        assertThat(tracker.getChunkMeanSquare(), is(41 / 2.0));
+        tracker.reset();
+        assertThat(tracker.getChunkMeanSquare(), is(0.0));
+        assertThat(tracker.getWindowSumOfSquares(), is(0L));
+    }
+
+    /**
+     * The window sum equals the sum over the latest samples recomputed from scratch, for chunks of
+     * any length (also longer than the window), and for the extreme samples.
+     */
+    @Test
+    public void test02() {
+        int windowLength = 1600;
+        EnergyTracker tracker = new EnergyTracker(windowLength);
+        Random random = new Random(42);
+        short[] samples = new short[50000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = i % 1000 == 0 ? Short.MIN_VALUE : (short) random.nextInt(1 << 16);
+        }
+        int pos = 0;
+        while (pos < samples.length) {
+            int len = Math.min(random.nextInt(2 * windowLength), samples.length - pos);
+            tracker.add(samples, pos, len);
+            pos += len;
+            long expected = 0;
+            for (int i = Math.max(0, pos - windowLength); i < pos; i++) {
+                expected += samples[i] * samples[i];
+            }
+            assertThat(tracker.getWindowSumOfSquares(), is(expected));
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ee.ioc.phon.android.speechutils.dsp.VoiceActivityDetector;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the recorders on the JVM (no device needed) with a replayed file as the audio source.
+ */
+public class FileAudioSourceTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The source reads the WAV file in whole frames, and stops at its end.
+     */
+    @Test
+    public void test01() throws IOException {
+        byte[] pcm = createPcm(2000);
+        FileAudioSource source = new FileAudioSource(createWavFile(pcm, SAMPLE_RATE), false);
+        assertThat(source.getSampleRate(), is(SAMPLE_RATE));
+        assertThat(source.getChannelCount(), is(1));
+        assertThat(source.read(new short[10], 0, 10), is(0));
+        source.start();
+        short[] samples = new short[1500];
+        assertThat(source.read(samples, 0, 600), is(600));
+        assertThat(samples[1], is(getSample(pcm, 1)));
+        byte[] bytes = new byte[1000];
+        assertThat(source.read(bytes, 0, 999), is(998));
+        assertThat(bytes[0], is(pcm[1200]));
+        assertTrue(source.isRecording());
+        assertThat(source.read(samples, 0, 1500), is(2000 - 600 - 499));
+        assertTrue(!source.isRecording());
+        source.release();
+        assertTrue(!source.isInitialized());
+    }
+
+    /**
+     * The raw recorder records the complete file, which is then consumed.
+     */
+    @Test
+    public void test02() throws IOException, InterruptedException {
+        byte[] pcm = createPcm(SAMPLE_RATE);
+        FileAudioSource source = new FileAudioSource(createWavFile(pcm, SAMPLE_RATE), false);
+        RawAudioRecorder recorder = new RawAudioRecorder(source, SAMPLE_RATE, 10000);
+        assertThat(recorder.getState(), is(AudioRecorder.State.READY));
+        recorder.start();
+        waitForLength(recorder, pcm.length);
+        assertArrayEquals(pcm, recorder.consumeRecording());
+        recorder.stop();
+        assertThat(recorder.getState(), is(AudioRecorder.State.STOPPED));
+        assertThat(recorder.getMetrics().snapshot().getNumOfBytesRead(), is((long) pcm.length));
+        recorder.release();
+    }
+
+    /**
+     * The cyclic recorder keeps the end of a longer file, and counts the overwritten audio.
+     */
+    @Test
+    public void test03() throws IOException, InterruptedException {
+        byte[] pcm = createPcm(2 * SAMPLE_RATE);
+        FileAudioSource source = new FileAudioSource(createWavFile(pcm, SAMPLE_RATE), false);
+        ContinuousRawAudioRecorder recorder = new ContinuousRawAudioRecorder(source, SAMPLE_RATE, 500);
+        recorder.start();
+        waitForSource(source);
+        byte[] bytes = recorder.consumeRecording();
+        // The buffer is at least as long as requested
+        assertTrue(bytes.length >= SAMPLE_RATE && bytes.length < pcm.length);
+        assertArrayEquals(Arrays.copyOfRange(pcm, pcm.length - bytes.length, pcm.length), bytes);
+        assertTrue(recorder.getMetrics().snapshot().getNumOfOverwrittenBytes() > 0);
+        recorder.stop();
+        recorder.release();
+    }
+
+    /**
+     * The audio of a source at a higher rate is resampled, and a real-time replay takes as long
+     * as the audio.
+     */
+    @Test
+    public void test04() throws IOException, InterruptedException {
+        byte[] pcm = createPcm(48000 / 4);
+        FileAudioSource source = new FileAudioSource(createWavFile(pcm, 48000), true);
+        RawAudioRecorder recorder = new RawAudioRecorder(source, SAMPLE_RATE, 10000);
+        long timeNanos = System.nanoTime();
+        recorder.start();
+        waitForSource(source);
+        long durationMillis = (System.nanoTime() - timeNanos) / 1000000;
+        assertTrue("Replayed in " + durationMillis + " ms", durationMillis >= 240);
+        int length = recorder.getLength();
+        assertTrue("Length " + length, Math.abs(length - 2 * SAMPLE_RATE / 4) <= 2 * 100);
+        assertTrue(recorder.getConsumeLatency().getCount() == 0);
+        recorder.consumeRecording();
+        assertThat(recorder.getConsumeLatency().getCount(), is(1L));
+        recorder.stop();
+        recorder.release();
+    }
+
+    /**
+     * Benchmark of the complete capture path (reading, recording, energy tracking) with a file
+     * that is replayed as fast as possible.
+     * Skipped unless the benchmarks are requested (see {@link Benchmark}).
+     */
+    @Test
+    public void test05() throws IOException, InterruptedException {
+        Benchmark.assumeEnabled();
+        int numOfSeconds = 60;
+        byte[] pcm = createPcm(numOfSeconds * SAMPLE_RATE);
+        FileAudioSource source = new FileAudioSource(createWavFile(pcm, SAMPLE_RATE), false);
+        RawAudioRecorder recorder = new RawAudioRecorder(source, SAMPLE_RATE, 2 * numOfSeconds * 1000);
+        long timeNanos = System.nanoTime();
+        recorder.start();
+        waitForLength(recorder, pcm.length);
+        double seconds = (System.nanoTime() - timeNanos) / 1e9;
+        assertThat(recorder.available(), is(pcm.length));
+        double rtf = seconds / numOfSeconds;
+        assertTrue("RTF " + rtf, rtf < 0.1);
+        recorder.stop();
+        recorder.release();
+    }
+
+    /**
+     * The recorder delivers frames of the given duration, also if the audio is resampled.
+     */
+    @Test
+    public void test06() throws IOException, InterruptedException {
+        assertFrames(new FileAudioSource(createWavFile(createPcm(SAMPLE_RATE), SAMPLE_RATE), false));
+        assertFrames(new FileAudioSource(createWavFile(createPcm(48000), 48000), false));
+    }
+
+    /**
+     * The recording is streamed into a WAV file while recording.
+     */
+    @Test
+    public void test07() throws IOException, InterruptedException {
+        byte[] pcm = createPcm(SAMPLE_RATE / 2);
+        FileAudioSource source = new FileAudioSource(createWavFile(pcm, SAMPLE_RATE), true);
+        ContinuousRawAudioRecorder recorder = new ContinuousRawAudioRecorder(source, SAMPLE_RATE, 5000);
+        File file = File.createTempFile("recording", ".wav");
+        file.deleteOnExit();
+        recorder.start();
+        recorder.startRecording(file.getPath());
+        waitForSource(source);
+        recorder.stopRecording();
+        Thread.sleep(50);
+        FileAudioSource wav = new FileAudioSource(file, false);
+        wav.start();
+        byte[] bytes = new byte[pcm.length + 2];
+        assertThat(wav.read(bytes, 0, bytes.length), is(pcm.length));
+        assertArrayEquals(pcm, Arrays.copyOf(bytes, pcm.length));
+        recorder.stop();
+        recorder.release();
+    }
+
+    /**
+     * A released recorder is reused by the next session: the listeners of the previous session are
+     * removed (while the listener of the recorder itself is kept), and the voice activity detector is
+     * kept and reset.
+     */
+    @Test
+    public void test08() throws IOException, InterruptedException {
+        byte[] pcm = createPcm(SAMPLE_RATE / 2);
+        FileAudioSource source = new FileAudioSource(createWavFile(pcm, SAMPLE_RATE), true);
+        ContinuousRawAudioRecorder recorder = new ContinuousRawAudioRecorder(source, SAMPLE_RATE, 5000);
+        recorder.setWarmStart(true);
+        recorder.setSessionStartPointer(ContinuousRawAudioRecorder.SessionStartPointer.someMillisForward(100));
+        final AtomicInteger numOfResets = new AtomicInteger();
+        recorder.setVoiceActivityDetector(new VoiceActivityDetector() {
+            @Override
+            public boolean isSpeech(short[] samples, int offset, int length) {
+                return true;
+            }
+
+            @Override
+            public void reset() {
+                numOfResets.incrementAndGet();
+            }
+        }, 20);
+        final AtomicInteger numOfSessionStarts = new AtomicInteger();
+        recorder.setSessionStartListener(new ContinuousRawAudioRecorder.SessionStartListener() {
+            @Override
+            public void onSessionStart(long samplePosition, long timeNanos) {
+                numOfSessionStarts.incrementAndGet();
+            }
+        });
+        final AtomicInteger numOfChunks1 = new AtomicInteger();
+        recorder.addAudioChunkListener(new AudioChunkListener() {
+            @Override
+            public void onAudioChunk(ByteBuffer chunk, long samplePosition, long timeNanos) {
+                numOfChunks1.incrementAndGet();
+            }
+        });
+        recorder.start();
+        waitForSource(source);
+        assertTrue(recorder.getSpeechStartPosition() >= 0);
+        recorder.release();
+        recorder.discardRecording();
+
+        // The next session
+        recorder.removeAudioListeners();
+        source.rewind();
+        recorder.reset();
+        assertThat(recorder.getState(), is(AudioRecorder.State.READY));
+        assertTrue(recorder.hasVoiceActivityDetector());
+        assertThat(recorder.getSpeechStartPosition(), is(-1L));
+        final AtomicInteger numOfChunks2 = new AtomicInteger();
+        recorder.addAudioChunkListener(new AudioChunkListener() {
+            @Override
+            public void onAudioChunk(ByteBuffer chunk, long samplePosition, long timeNanos) {
+                numOfChunks2.incrementAndGet();
+            }
+        });
+        int numOfChunks = numOfChunks1.get();
+        recorder.start();
+        recorder.startSession();
+        waitForSource(source);
+        assertThat(numOfChunks1.get(), is(numOfChunks));
+        assertThat(numOfChunks2.get(), is(numOfChunks));
+        assertThat(numOfSessionStarts.get(), is(1));
+        assertTrue(numOfResets.get() >= 1);
+        assertThat(recorder.getLength(), is(pcm.length));
+        recorder.setWarmStart(false);
+        recorder.release();
+    }
+
+    private static void assertFrames(FileAudioSource source) throws InterruptedException {
+        final List<Integer> chunkSizes = new CopyOnWriteArrayList<>();
+        RawAudioRecorder recorder = new RawAudioRecorder(source, SAMPLE_RATE, 10000);
+        recorder.setFrameDurationMillis(20);
+        assertThat(recorder.getFrameLength(), is(SAMPLE_RATE / 50));
+        recorder.addAudioChunkListener(new AudioChunkListener() {
+            @Override
+            public void onAudioChunk(ByteBuffer chunk, long samplePosition, long timeNanos) {
+                chunkSizes.add(chunk.remaining());
+            }
+        });
+        recorder.start();
+        waitForSource(source);
+        // 1 second of audio in 20 ms frames, the resampler might hold back the end of the last frame
+        assertTrue("Chunks: " + chunkSizes.size(), chunkSizes.size() >= 49 && chunkSizes.size() <= 50);
+        for (int i = 0; i < chunkSizes.size() - 1; i++) {
+            assertThat(chunkSizes.get(i), is(2 * SAMPLE_RATE / 50));
+        }
+        recorder.stop();
+        recorder.release();
+    }
+
+    private static void waitForLength(AudioRecorder recorder, int length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (recorder.available() < length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Waits until the source has been read to its end, and the last read has been recorded.
+     */
+    private static void waitForSource(AudioSource source) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (source.isRecording() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+    }
+
+    private static byte[] createPcm(int numOfSamples) {
+        ByteBuffer pcm = ByteBuffer.allocate(2 * numOfSamples).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < numOfSamples; i++) {
+            pcm.putShort((short) (10000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE) + i % 7));
+        }
+        return pcm.array();
+    }
+
+    private static short getSample(byte[] pcm, int i) {
+        return ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN).getShort(2 * i);
+    }
+
+    private static File createWavFile(byte[] pcm, int sampleRate) throws IOException {
+        File file = File.createTempFile("source", ".wav");
+        file.deleteOnExit();
+        try (WavFileSink sink = new WavFileSink(file, sampleRate, (short) 2, (short) 1)) {
+            sink.write(pcm, 0, pcm.length);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,106 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Latency histograms and the capture timeline, runs on the JVM (no device needed).
+ */
+public class LatencyHistogramTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final long MS = 1000000L;
+
+    /**
+     * The latencies are counted in the logarithmic buckets.
+     */
+    @Test
+    public void test01() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(-5);
+        histogram.record(MS / 2);
+        histogram.record(3 * MS);
+        histogram.record(20 * MS);
+        histogram.record(60000 * MS);
+        histogram.record(Long.MAX_VALUE / 2);
+        assertThat(histogram.getCount(), is(6L));
+        assertThat(histogram.getCount(0), is(2L));
+        assertThat(histogram.getCount(2), is(1L));
+        assertThat(histogram.getCount(5), is(1L));
+        assertThat(histogram.getCount(16), is(1L));
+        assertThat(histogram.getCount(LatencyHistogram.NUM_OF_BUCKETS - 1), is(1L));
+        assertThat(histogram.getPercentileMillis(50), is(4L));
+        assertThat(histogram.getPercentileMillis(60), is(32L));
+        histogram.reset();
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getPercentileMillis(99), is(0L));
+    }
+
+    /**
+     * The capture time of a sample is computed from the chunk that contains it.
+     */
+    @Test
+    public void test02() {
+        CaptureTimeline timeline = new CaptureTimeline(SAMPLE_RATE, 4);
+        assertThat(timeline.getCaptureTimeNanos(0), is(-1L));
+        // 20 ms chunks, the second one is captured 5 ms late
+        timeline.add(0, 1000 * MS);
+        timeline.add(320, 1025 * MS);
+        timeline.add(640, 1045 * MS);
+        assertThat(timeline.getCaptureTimeNanos(160), is(1010 * MS));
+        assertThat(timeline.getCaptureTimeNanos(320), is(1025 * MS));
+        assertThat(timeline.getCaptureTimeNanos(800), is(1055 * MS));
+        // Beyond the latest chunk the time is extrapolated
+        assertThat(timeline.getCaptureTimeNanos(1280), is(1085 * MS));
+    }
+
+    /**
+     * Only the latest chunks are kept, the time of an older sample is extrapolated from the oldest chunk.
+     */
+    @Test
+    public void test03() {
+        CaptureTimeline timeline = new CaptureTimeline(SAMPLE_RATE, 3);
+        for (int i = 0; i < 10; i++) {
+            timeline.add(320 * i, (1000 + 20 * i + (i > 5 ? 1 : 0)) * MS);
+        }
+        assertThat(timeline.getCaptureTimeNanos(320 * 9), is(1181 * MS));
+        assertThat(timeline.getCaptureTimeNanos(320 * 6 + 16), is(1122 * MS));
+        assertThat(timeline.getCaptureTimeNanos(0), is(1001 * MS));
+        timeline.reset();
+        assertThat(timeline.getCaptureTimeNanos(0), is(-1L));
+    }
+
+    /**
+     * A query that is lapped by the recorder thread (which overwrites the chunk that is being read)
+     * never mixes the position of one chunk with the time of another.
+     */
+    @Test
+    public void test04() throws InterruptedException {
+        final CaptureTimeline timeline = new CaptureTimeline(SAMPLE_RATE, 1);
+        final AtomicLong numOfTornReads = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    // The time of sample 0 is extrapolated from the oldest chunk, i.e. the one that is overwritten next
+                    long time = timeline.getCaptureTimeNanos(0);
+                    if (time != -1 && time != 0 && time != MS) {
+                        numOfTornReads.incrementAndGet();
+                    }
+                }
+            }
+        });
+        reader.start();
+        // 20 ms chunks, every second one is captured 1 ms late
+        for (long i = 0; i < 10000000; i++) {
+            timeline.add(320 * i, (20 * i + i % 2) * MS);
+        }
+        reader.interrupt();
+        reader.join();
+        assertThat(numOfTornReads.get(), is(0L));
+    }
+}
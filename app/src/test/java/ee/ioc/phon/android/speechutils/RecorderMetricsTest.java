@@ -0,0 +1,62 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Recorder health metrics, runs on the JVM (no device needed).
+ */
+public class RecorderMetricsTest {
+
+    private static final long MS = 1000000L;
+
+    /**
+     * The reads are counted by their outcome.
+     */
+    @Test
+    public void test01() {
+        RecorderMetrics metrics = new RecorderMetrics();
+        metrics.onRead(640, 640, 20 * MS);
+        metrics.onRead(320, 640, 10 * MS);
+        metrics.onRead(0, 640, 0);
+        metrics.onRead(-3, 640, 0);
+        metrics.onOverflow();
+        RecorderMetrics.Snapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getNumOfReads(), is(4L));
+        assertThat(snapshot.getNumOfBytesRead(), is(960L));
+        assertThat(snapshot.getNumOfShortReads(), is(1L));
+        assertThat(snapshot.getNumOfZeroReads(), is(1L));
+        assertThat(snapshot.getNumOfErrorReads(), is(1L));
+        assertThat(snapshot.getNumOfOverflows(), is(1L));
+        assertThat(snapshot.getReadLatencyP99Millis(), is(32L));
+        // The snapshot does not change afterwards
+        metrics.onRead(640, 640, 20 * MS);
+        assertThat(snapshot.getNumOfReads(), is(4L));
+        assertThat(metrics.snapshot().getNumOfReads(), is(5L));
+    }
+
+    /**
+     * The fill keeps its high-water mark, and the overwritten bytes are accumulated.
+     */
+    @Test
+    public void test02() {
+        RecorderMetrics metrics = new RecorderMetrics();
+        metrics.onRecorded(1000, 600, 600, 0);
+        metrics.onRecorded(1000, 1000, 1200, 200);
+        metrics.onRecorded(1000, 100, 100, 0);
+        metrics.setEncoderQueueDepth(640);
+        RecorderMetrics.Snapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getCapacity(), is(1000));
+        assertThat(snapshot.getFill(), is(100));
+        assertThat(snapshot.getFillHighWaterMark(), is(1000));
+        assertThat(snapshot.getConsumerLag(), is(100L));
+        assertThat(snapshot.getNumOfOverwrittenBytes(), is(200L));
+        assertThat(snapshot.getEncoderQueueDepth(), is(640));
+        metrics.reset();
+        snapshot = metrics.snapshot();
+        assertThat(snapshot.getFillHighWaterMark(), is(100));
+        assertThat(snapshot.getNumOfOverwrittenBytes(), is(0L));
+    }
+}
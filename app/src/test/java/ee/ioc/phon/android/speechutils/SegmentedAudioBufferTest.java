@@ -0,0 +1,77 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class SegmentedAudioBufferTest {
+
+    private static final byte[] BYTES = new byte[]{0, 1, 2, 3, 4, 5};
+
+    @Test
+    public void test01() {
+        AudioBlockPool pool = new AudioBlockPool(4, 10);
+        SegmentedAudioBuffer sb = new SegmentedAudioBuffer(pool, 10);
+        assertThat(sb.capacity(), is(12));
+        assertThat(sb.getNumOfBlocks(), is(0));
+        assertThat(sb.write(BYTES, 0, BYTES.length), is(true));
+        // Grows only as much as needed
+        assertThat(sb.getNumOfBlocks(), is(2));
+        assertThat(sb.write(BYTES, 0, BYTES.length), is(true));
+        // Does not overwrite the recording
+        assertThat(sb.write(BYTES, 0, 1), is(false));
+        byte[] bytes = new byte[12];
+        assertThat(sb.read(0, bytes, 0, bytes.length), is(12));
+        assertArrayEquals(new byte[]{0, 1, 2, 3, 4, 5, 0, 1, 2, 3, 4, 5}, bytes);
+    }
+
+    @Test
+    public void test02() {
+        AudioBlockPool pool = new AudioBlockPool(4, 10);
+        SegmentedAudioBuffer sb = new SegmentedAudioBuffer(pool, 8);
+        sb.setReleaseConsumed(true);
+        for (int i = 0; i < 10; i++) {
+            assertThat(sb.write(BYTES, 0, BYTES.length), is(true));
+            sb.setReadPosition(sb.getWritePosition() - 1);
+        }
+        assertThat(sb.getOldestPosition(), is(59L));
+        byte[] bytes = new byte[1];
+        assertThat(sb.read(59, bytes, 0, 1), is(1));
+        assertThat(bytes[0], is((byte) 5));
+        assertThat(sb.read(58, bytes, 0, 1), is(-1));
+        // The consumed blocks were returned to the pool
+        assertThat(sb.getNumOfBlocks() + pool.getNumOfFreeBlocks(), is(3));
+    }
+
+    @Test
+    public void test03() {
+        SegmentedAudioBuffer sb = new SegmentedAudioBuffer(new AudioBlockPool(4, 10), 16);
+        short[] samples = new short[]{1, -1, 256, Short.MIN_VALUE, Short.MAX_VALUE};
+        assertThat(sb.write(samples, 0, samples.length), is(true));
+        byte[] bytes = new byte[10];
+        assertThat(sb.read(0, bytes, 0, bytes.length), is(10));
+        assertArrayEquals(new byte[]{1, 0, -1, -1, 0, 1, 0, -128, -1, 127}, bytes);
+        short[] samplesRead = new short[5];
+        assertThat(sb.read(0, samplesRead, 0, samplesRead.length), is(5));
+        assertArrayEquals(samples, samplesRead);
+    }
+
+    @Test
+    public void test04() {
+        AudioBlockPool pool = new AudioBlockPool(4, 10);
+        SegmentedAudioBuffer sb = new SegmentedAudioBuffer(pool, 16);
+        sb.write(BYTES, 0, BYTES.length);
+        sb.clear();
+        // The blocks are back in the pool, and are reused by the next recording
+        assertThat(sb.getNumOfBlocks(), is(0));
+        assertThat(pool.getNumOfFreeBlocks(), is(2));
+        assertThat(sb.getWritePosition(), is(0L));
+        sb.write(BYTES, 0, BYTES.length);
+        assertThat(pool.getNumOfFreeBlocks(), is(0));
+        byte[] bytes = new byte[6];
+        assertThat(sb.read(0, bytes, 0, bytes.length), is(6));
+        assertArrayEquals(BYTES, bytes);
+    }
+}
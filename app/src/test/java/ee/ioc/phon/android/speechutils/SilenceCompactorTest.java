@@ -0,0 +1,124 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import ee.ioc.phon.android.speechutils.dsp.VoiceActivityDetector;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Compaction of the silences and the mapping of the positions, runs on the JVM (no device needed).
+ */
+public class SilenceCompactorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    // Samples per 20 ms frame, and per 200 ms of padding
+    private static final int FRAME = 320;
+    private static final int PADDING = 10 * FRAME;
+
+    /**
+     * Leading and trailing silences are cut to the padding, a long pause shrinks to twice
+     * the padding, and a short pause is kept.
+     */
+    @Test
+    public void test01() {
+        // 1 s silence, 1 s speech, 0.3 s pause, 0.5 s speech, 2 s pause, 1 s speech, 1 s silence
+        short[] samples = concat(noise(50), tone(50), noise(15), tone(25), noise(100), tone(50), noise(50));
+        SilenceCompactor.Result result = new SilenceCompactor(SAMPLE_RATE).compact(toBytes(samples));
+        AudioOffsetMap map = result.getOffsetMap();
+        int expectedLength = PADDING + (50 + 15 + 25) * FRAME + 2 * PADDING + 50 * FRAME + PADDING;
+        assertThat(result.getAudio().length, is(2 * expectedLength));
+        assertThat(map.getCompactedLength(), is((long) expectedLength));
+        assertThat(map.getNumOfSpans(), is(2));
+        assertThat(map.getOriginalStart(0), is(50L * FRAME - PADDING));
+        assertThat(map.getOriginalStart(1), is(240L * FRAME - PADDING));
+
+        // The start of the last speech maps back to its original position
+        long compacted = PADDING + (50 + 15 + 25) * FRAME + 2 * PADDING;
+        assertThat(map.toOriginalPosition(compacted), is(240L * FRAME));
+        assertThat(map.toOriginalMillis(compacted * 1000 / SAMPLE_RATE), is(4800L));
+        short[] out = toShorts(result.getAudio());
+        assertThat(out[(int) compacted + 7], is(samples[240 * FRAME + 7]));
+    }
+
+    /**
+     * Without speech the recording is returned as it is.
+     */
+    @Test
+    public void test02() {
+        byte[] pcm = toBytes(noise(100));
+        SilenceCompactor.Result result = new SilenceCompactor(SAMPLE_RATE).compact(pcm);
+        assertThat(result.getAudio(), is(pcm));
+        assertThat(result.getOffsetMap().toOriginalPosition(1234), is(1234L));
+    }
+
+    /**
+     * The frames can be classified by a voice activity detector.
+     */
+    @Test
+    public void test03() {
+        short[] samples = concat(noise(50), tone(50), noise(50));
+        VoiceActivityDetector vad = new VoiceActivityDetector() {
+            @Override
+            public boolean isSpeech(short[] samples, int offset, int length) {
+                return Math.abs(samples[offset + 1]) > 2000;
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+        SilenceCompactor.Result result = new SilenceCompactor(SAMPLE_RATE, vad, 20, 100).compact(toBytes(samples));
+        // 100 ms padding on both sides
+        assertThat(result.getOffsetMap().getCompactedLength(), is(60L * FRAME));
+        assertThat(result.getOffsetMap().toOriginalPosition(0), is(45L * FRAME));
+    }
+
+    private static short[] tone(int numOfFrames) {
+        short[] samples = new short[numOfFrames * FRAME];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) Math.round(8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE + 1));
+        }
+        return samples;
+    }
+
+    private static short[] noise(int numOfFrames) {
+        Random random = new Random(numOfFrames);
+        short[] samples = new short[numOfFrames * FRAME];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) Math.round(100 * random.nextGaussian());
+        }
+        return samples;
+    }
+
+    private static short[] concat(short[]... parts) {
+        int length = 0;
+        for (short[] part : parts) {
+            length += part.length;
+        }
+        short[] samples = new short[length];
+        int pos = 0;
+        for (short[] part : parts) {
+            System.arraycopy(part, 0, samples, pos, part.length);
+            pos += part.length;
+        }
+        return samples;
+    }
+
+    private static byte[] toBytes(short[] samples) {
+        ByteBuffer bytes = ByteBuffer.allocate(2 * samples.length).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(samples);
+        return bytes.array();
+    }
+
+    private static short[] toShorts(byte[] bytes) {
+        short[] samples = new short[bytes.length / 2];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+}
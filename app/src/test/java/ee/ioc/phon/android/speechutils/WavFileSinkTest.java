@@ -0,0 +1,120 @@
+package ee.ioc.phon.android.speechutils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streaming of audio into a WAV file, runs on the JVM (no device needed).
+ */
+public class WavFileSinkTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    /**
+     * The chunks are appended after the header, and the header has the sizes after closing.
+     */
+    @Test
+    public void test01() throws IOException {
+        File file = createTempFile();
+        try (WavFileSink sink = new WavFileSink(file, SAMPLE_RATE, (short) 2, (short) 1)) {
+            for (int i = 0; i < 10; i++) {
+                assertThat(sink.write(chunk(i, 640)), is(640));
+            }
+            sink.write(new byte[]{1, 2, 3, 4}, 2, 2);
+            assertThat(sink.getDataLength(), is(6402L));
+        }
+        ByteBuffer wav = read(file);
+        assertThat(wav.capacity(), is(44 + 6402));
+        assertThat(wav.getInt(40), is(6402));
+        // The RIFF chunk is the file without its id and size
+        assertThat(wav.getInt(4), is(36 + 6402));
+        assertThat(wav.getInt(24), is(SAMPLE_RATE));
+        assertThat(wav.get(44 + 5 * 640), is((byte) 5));
+        assertThat(wav.get(44 + 6401), is((byte) 4));
+    }
+
+    /**
+     * With a zero update interval the header is patched after every write, i.e. the file is complete
+     * even if it is never closed.
+     */
+    @Test
+    public void test02() throws IOException {
+        File file = createTempFile();
+        WavFileSink sink = new WavFileSink(file, SAMPLE_RATE, (short) 2, (short) 1, 0, true);
+        sink.write(chunk(1, 320));
+        sink.write(chunk(2, 320));
+        ByteBuffer wav = read(file);
+        assertThat(wav.getInt(40), is(640));
+        assertThat(wav.getInt(4), is(wav.capacity() - 8));
+        assertThat(wav.capacity(), is(44 + 640));
+        sink.close();
+        assertTrue(!sink.isOpen());
+        // Closing twice does nothing
+        sink.close();
+    }
+
+    /**
+     * With a long update interval the header is patched only on close.
+     */
+    @Test
+    public void test03() throws IOException {
+        File file = createTempFile();
+        WavFileSink sink = new WavFileSink(file, SAMPLE_RATE, (short) 2, (short) 1, 60000, false);
+        sink.write(chunk(1, 320));
+        assertThat(read(file).getInt(40), is(0));
+        sink.close();
+        assertThat(read(file).getInt(40), is(320));
+    }
+
+    /**
+     * Truncating drops the audio after the given length, and the next write continues from there.
+     */
+    @Test
+    public void test04() throws IOException {
+        File file = createTempFile();
+        try (WavFileSink sink = new WavFileSink(file, SAMPLE_RATE, (short) 2, (short) 1)) {
+            sink.write(chunk(1, 320));
+            sink.write(chunk(2, 320));
+            sink.truncate(320);
+            sink.truncate(640);
+            assertThat(sink.getDataLength(), is(320L));
+            sink.write(chunk(3, 100));
+        }
+        ByteBuffer wav = read(file);
+        assertThat(wav.capacity(), is(44 + 420));
+        assertThat(wav.getInt(40), is(420));
+        assertThat(wav.get(44 + 319), is((byte) 1));
+        assertThat(wav.get(44 + 320), is((byte) 3));
+    }
+
+    private static File createTempFile() throws IOException {
+        File file = File.createTempFile("sink", ".wav");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static ByteBuffer chunk(int value, int numOfBytes) {
+        byte[] bytes = new byte[numOfBytes];
+        for (int i = 0; i < numOfBytes; i++) {
+            bytes[i] = (byte) value;
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
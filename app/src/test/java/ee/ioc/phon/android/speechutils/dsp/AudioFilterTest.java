@@ -0,0 +1,191 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import ee.ioc.phon.android.speechutils.Benchmark;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Behaviour and cost of the audio filters, runs on the JVM (no device needed).
+ */
+public class AudioFilterTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    // 20 ms
+    private static final int FRAME_LENGTH = 320;
+
+    /**
+     * High-pass filter removes the DC offset, and keeps the speech band.
+     */
+    @Test
+    public void test01() {
+        short[] samples = sine(1000, -20, SAMPLE_RATE);
+        double rms = rmsDb(samples, 0, samples.length);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] += 3000;
+        }
+        process(new HighPassFilter(SAMPLE_RATE, 80), samples);
+        double mean = 0;
+        for (int i = samples.length / 2; i < samples.length; i++) {
+            mean += samples[i];
+        }
+        mean /= samples.length / 2;
+        assertTrue("mean " + mean, Math.abs(mean) < 5);
+        double rmsFiltered = rmsDb(samples, samples.length / 2, samples.length);
+        assertTrue(rms + " -> " + rmsFiltered, Math.abs(rmsFiltered - rms) < 0.1);
+    }
+
+    /**
+     * Pre-emphasis continues across the frames.
+     */
+    @Test
+    public void test02() {
+        PreEmphasisFilter filter = new PreEmphasisFilter();
+        short[] samples = new short[]{100, 200, 300, 400};
+        filter.process(samples, 0, 2);
+        filter.process(samples, 2, 2);
+        assertArrayEquals(new short[]{100, 103, 106, 109}, samples);
+    }
+
+    /**
+     * Noise gate attenuates the background noise, but not the speech that follows it.
+     */
+    @Test
+    public void test03() {
+        NoiseGate gate = new NoiseGate(SAMPLE_RATE, -55, -20);
+        short[] noise = noise(-70, SAMPLE_RATE);
+        double noiseDb = rmsDb(noise, 0, noise.length);
+        process(gate, noise);
+        assertThat(gate.isOpen(), is(false));
+        double gatedDb = rmsDb(noise, noise.length / 2, noise.length);
+        assertTrue(noiseDb + " -> " + gatedDb, gatedDb < noiseDb - 18);
+
+        short[] speech = sine(300, -30, SAMPLE_RATE);
+        double speechDb = rmsDb(speech, 0, speech.length);
+        process(gate, speech);
+        assertThat(gate.isOpen(), is(true));
+        double passedDb = rmsDb(speech, speech.length / 2, speech.length);
+        assertTrue(speechDb + " -> " + passedDb, Math.abs(passedDb - speechDb) < 0.1);
+    }
+
+    /**
+     * Soft limiter does not change the samples below the threshold, and keeps the order
+     * of the samples above it.
+     */
+    @Test
+    public void test04() {
+        SoftLimiter limiter = new SoftLimiter(-6);
+        short[] samples = new short[]{1000, -16000, 20000, 25000, 30000, Short.MAX_VALUE, Short.MIN_VALUE};
+        limiter.process(samples, 0, samples.length);
+        assertThat(samples[0], is((short) 1000));
+        assertThat(samples[1], is((short) -16000));
+        assertTrue(samples[2] < 20000 && samples[2] < samples[3] && samples[3] < samples[4] && samples[4] < samples[5]);
+        assertTrue(samples[6] == -samples[5]);
+    }
+
+    /**
+     * AGC brings quiet speech to the target level, but does not amplify the background noise.
+     */
+    @Test
+    public void test05() {
+        AutomaticGainControl agc = new AutomaticGainControl(SAMPLE_RATE, -20, 30);
+        short[] noise = noise(-60, 2 * SAMPLE_RATE);
+        process(agc, noise);
+        assertThat(agc.getGain(), is(1f));
+
+        short[] speech = sine(300, -40, 5 * SAMPLE_RATE);
+        process(agc, speech);
+        double levelDb = rmsDb(speech, speech.length - SAMPLE_RATE, speech.length);
+        assertTrue("level " + levelDb, Math.abs(levelDb + 20) < 1);
+
+        // A loud onset is brought down quickly
+        short[] loud = sine(300, -6, SAMPLE_RATE / 10);
+        process(agc, loud);
+        levelDb = rmsDb(loud, loud.length / 2, loud.length);
+        assertTrue("level " + levelDb, levelDb < -14);
+    }
+
+    /**
+     * Benchmark: the cost of every filter and of the chain of all of them, as the real-time factor.
+     * Skipped unless the benchmarks are requested (see {@link Benchmark}).
+     */
+    @Test
+    public void test06() {
+        Benchmark.assumeEnabled();
+        short[] speech = sine(300, -30, SAMPLE_RATE);
+        short[] noise = noise(-60, SAMPLE_RATE);
+        short[] input = new short[2 * SAMPLE_RATE];
+        System.arraycopy(speech, 0, input, 0, speech.length);
+        System.arraycopy(noise, 0, input, speech.length, noise.length);
+        AudioFilter[] filters = new AudioFilter[]{
+                new HighPassFilter(SAMPLE_RATE, 80),
+                new PreEmphasisFilter(),
+                new NoiseGate(SAMPLE_RATE, -55, -20),
+                new SoftLimiter(-3),
+                new AutomaticGainControl(SAMPLE_RATE, -20, 20),
+                new AudioFilterChain(
+                        new HighPassFilter(SAMPLE_RATE, 80),
+                        new NoiseGate(SAMPLE_RATE, -55, -20),
+                        new AutomaticGainControl(SAMPLE_RATE, -20, 20),
+                        new SoftLimiter(-3))
+        };
+        short[] frame = new short[FRAME_LENGTH];
+        int seconds = 60;
+        for (AudioFilter filter : filters) {
+            // Warm-up, so that the loops get compiled
+            run(filter, input, frame, 10);
+            long timeNanos = System.nanoTime();
+            run(filter, input, frame, seconds / 2);
+            double rtf = (System.nanoTime() - timeNanos) / (seconds * 1e9);
+            assertTrue(filter.getClass().getSimpleName() + ": RTF " + rtf, rtf < 0.1);
+        }
+    }
+
+    private static void run(AudioFilter filter, short[] input, short[] frame, int repeats) {
+        for (int r = 0; r < repeats; r++) {
+            for (int off = 0; off + FRAME_LENGTH <= input.length; off += FRAME_LENGTH) {
+                System.arraycopy(input, off, frame, 0, FRAME_LENGTH);
+                filter.process(frame, 0, FRAME_LENGTH);
+            }
+        }
+    }
+
+    private static void process(AudioFilter filter, short[] samples) {
+        for (int off = 0; off < samples.length; off += FRAME_LENGTH) {
+            filter.process(samples, off, Math.min(FRAME_LENGTH, samples.length - off));
+        }
+    }
+
+    private static short[] sine(int freq, double levelDb, int numOfSamples) {
+        double amplitude = Math.sqrt(2) * Short.MAX_VALUE * Math.pow(10, levelDb / 20);
+        short[] samples = new short[numOfSamples];
+        for (int i = 0; i < numOfSamples; i++) {
+            samples[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * freq * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    private static short[] noise(double levelDb, int numOfSamples) {
+        double sigma = Short.MAX_VALUE * Math.pow(10, levelDb / 20);
+        Random random = new Random(42);
+        short[] samples = new short[numOfSamples];
+        for (int i = 0; i < numOfSamples; i++) {
+            samples[i] = (short) Math.round(sigma * random.nextGaussian());
+        }
+        return samples;
+    }
+
+    private static double rmsDb(short[] samples, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += samples[i] * samples[i];
+        }
+        return 10 * Math.log10(sum / (to - from)) - 20 * Math.log10(Short.MAX_VALUE);
+    }
+}
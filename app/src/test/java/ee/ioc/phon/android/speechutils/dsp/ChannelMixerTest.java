@@ -0,0 +1,205 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import ee.ioc.phon.android.speechutils.Benchmark;
+import ee.ioc.phon.android.speechutils.utils.AudioUtils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Quality and cost of the channel mixers on a multi-channel WAV file, which is replayed in 20 ms
+ * reads as if it came from the AudioRecord. Runs on the JVM (no device needed).
+ */
+public class ChannelMixerTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_LENGTH = SAMPLE_RATE / 50;
+    // Time difference of arrival of the speech between the neighbouring microphones
+    private static final int LAG = 3;
+    private static final int MAX_DELAY = 5;
+
+    /**
+     * Delay-and-sum finds the lag between the microphones, and improves the SNR
+     * (by up to 3 dB with 2 microphones).
+     */
+    @Test
+    public void test01() throws IOException {
+        short[] speech = speech(10 * SAMPLE_RATE);
+        short[] frames = replay(writeWav(speech, new double[]{1000, 1000}));
+        DelayAndSumBeamformer mixer = new DelayAndSumBeamformer(2, MAX_DELAY, FRAME_LENGTH);
+        short[] out = mix(mixer, frames, 2);
+        assertThat(mixer.getLag(1), is(LAG));
+        double inputSnrDb = snrDb(speech, 0, frames, 2, 0, 0);
+        double outputSnrDb = snrDb(speech, MAX_DELAY, out, 1, 0, 0);
+        assertTrue("SNR " + inputSnrDb + " -> " + outputSnrDb, outputSnrDb > inputSnrDb + 2);
+    }
+
+    /**
+     * Best-channel selection switches to the cleaner microphone.
+     */
+    @Test
+    public void test02() throws IOException {
+        short[] speech = speech(10 * SAMPLE_RATE);
+        short[] frames = replay(writeWav(speech, new double[]{2000, 200}));
+        BestChannelMixer mixer = new BestChannelMixer(2, FRAME_LENGTH / 2);
+        short[] out = mix(mixer, frames, 2);
+        assertThat(mixer.getSelectedChannel(), is(1));
+        // After the switch, the output is the clean channel
+        double outputSnrDb = snrDb(speech, LAG, out, 1, 0, out.length / 2);
+        double cleanSnrDb = snrDb(speech, 0, frames, 2, 1, 0);
+        assertTrue("SNR " + outputSnrDb + " vs " + cleanSnrDb, Math.abs(outputSnrDb - cleanSnrDb) < 1);
+    }
+
+    /**
+     * Mixing in place (into the input array) gives the same result.
+     */
+    @Test
+    public void test03() throws IOException {
+        short[] frames = replay(writeWav(speech(SAMPLE_RATE), new double[]{500, 500}));
+        ChannelMixer[] mixers = new ChannelMixer[]{
+                new AveragingChannelMixer(2),
+                new BestChannelMixer(2, FRAME_LENGTH),
+                new DelayAndSumBeamformer(2, MAX_DELAY, FRAME_LENGTH)
+        };
+        for (ChannelMixer mixer : mixers) {
+            short[] expected = mix(mixer, frames, 2);
+            mixer.reset();
+            short[] inPlace = frames.clone();
+            for (int off = 0; off + FRAME_LENGTH * 2 <= inPlace.length; off += FRAME_LENGTH * 2) {
+                mixer.mix(inPlace, off, FRAME_LENGTH, inPlace, off);
+                for (int i = 0; i < FRAME_LENGTH; i++) {
+                    assertThat(inPlace[off + i], is(expected[off / 2 + i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Benchmark: the cost of every mixer on 2 and 4 channel recordings, as the real-time factor.
+     * Skipped unless the benchmarks are requested (see {@link Benchmark}).
+     */
+    @Test
+    public void test04() throws IOException {
+        Benchmark.assumeEnabled();
+        for (int numOfChannels : new int[]{2, 4}) {
+            double[] noise = new double[numOfChannels];
+            for (int c = 0; c < numOfChannels; c++) {
+                noise[c] = 500;
+            }
+            short[] frames = replay(writeWav(speech(30 * SAMPLE_RATE), noise));
+            ChannelMixer[] mixers = new ChannelMixer[]{
+                    new AveragingChannelMixer(numOfChannels),
+                    new BestChannelMixer(numOfChannels, FRAME_LENGTH / 2),
+                    new DelayAndSumBeamformer(numOfChannels, MAX_DELAY, FRAME_LENGTH)
+            };
+            short[] out = new short[FRAME_LENGTH];
+            for (ChannelMixer mixer : mixers) {
+                // Warm-up, so that the loops get compiled
+                mix(mixer, frames, numOfChannels, out);
+                long timeNanos = System.nanoTime();
+                int numOfFrames = mix(mixer, frames, numOfChannels, out);
+                double rtf = (System.nanoTime() - timeNanos) / (1e9 * numOfFrames / SAMPLE_RATE);
+                assertTrue(mixer.getClass().getSimpleName() + ", " + numOfChannels + " channels: RTF " + rtf, rtf < 0.1);
+            }
+        }
+    }
+
+    private static short[] mix(ChannelMixer mixer, short[] frames, int numOfChannels) {
+        short[] out = new short[frames.length / numOfChannels];
+        for (int off = 0; off + FRAME_LENGTH * numOfChannels <= frames.length; off += FRAME_LENGTH * numOfChannels) {
+            mixer.mix(frames, off, FRAME_LENGTH, out, off / numOfChannels);
+        }
+        return out;
+    }
+
+    private static int mix(ChannelMixer mixer, short[] frames, int numOfChannels, short[] out) {
+        int numOfFrames = 0;
+        for (int off = 0; off + FRAME_LENGTH * numOfChannels <= frames.length; off += FRAME_LENGTH * numOfChannels) {
+            mixer.mix(frames, off, FRAME_LENGTH, out, 0);
+            numOfFrames += FRAME_LENGTH;
+        }
+        return numOfFrames;
+    }
+
+    /**
+     * Voiced sound (harmonics of 150 Hz), half a second on, half a second off.
+     */
+    private static short[] speech(int numOfSamples) {
+        short[] samples = new short[numOfSamples];
+        for (int i = 0; i < numOfSamples; i++) {
+            if ((i / (SAMPLE_RATE / 2)) % 2 == 0) {
+                double value = 0;
+                for (int h = 1; h <= 10; h++) {
+                    value += 3000.0 / h * Math.sin(2 * Math.PI * 150 * h * i / SAMPLE_RATE);
+                }
+                samples[i] = (short) value;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Writes a WAV file in which the speech arrives at every microphone LAG samples later than at
+     * the previous one, with independent noise of the given level in every channel.
+     */
+    private static File writeWav(short[] speech, double[] noise) throws IOException {
+        int numOfChannels = noise.length;
+        Random random = new Random(42);
+        ByteBuffer pcm = ByteBuffer.allocate(speech.length * numOfChannels * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < speech.length; i++) {
+            for (int c = 0; c < numOfChannels; c++) {
+                int j = i - c * LAG;
+                double value = (j < 0 ? 0 : speech[j]) + noise[c] * random.nextGaussian();
+                pcm.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value)));
+            }
+        }
+        File file = File.createTempFile("channels", ".wav");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(AudioUtils.getRecordingAsWav(pcm.array(), SAMPLE_RATE, (short) 2, (short) numOfChannels));
+        }
+        return file;
+    }
+
+    /**
+     * @return interleaved samples of the given WAV file
+     */
+    private static short[] replay(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            ByteBuffer wav = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int dataLength = wav.getInt(40);
+            short[] samples = new short[dataLength / 2];
+            ((ByteBuffer) wav.position(44)).asShortBuffer().get(samples);
+            return samples;
+        }
+    }
+
+    /**
+     * @return SNR of the given channel relative to the speech delayed by the given number of samples,
+     * starting from the given sample
+     */
+    private static double snrDb(short[] speech, int delay, short[] samples, int numOfChannels, int channel, int from) {
+        double signal = 0;
+        double noise = 0;
+        for (int i = Math.max(from, delay + LAG * channel); i < samples.length / numOfChannels; i++) {
+            double s = speech[i - delay - LAG * channel];
+            double d = samples[i * numOfChannels + channel] - s;
+            signal += s * s;
+            noise += d * d;
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+}
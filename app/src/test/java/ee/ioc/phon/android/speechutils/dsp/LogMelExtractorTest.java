@@ -0,0 +1,161 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import ee.ioc.phon.android.speechutils.Benchmark;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Features and throughput of the streaming log-mel extractor, runs on the JVM (no device needed).
+ */
+public class LogMelExtractorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    // 20 ms
+    private static final int CHUNK_LENGTH = 320;
+
+    /**
+     * One frame per shift, starting when the first frame is complete.
+     */
+    @Test
+    public void test01() {
+        LogMelExtractor extractor = new LogMelExtractor(SAMPLE_RATE);
+        assertThat(extractor.getFrameLength(), is(400));
+        assertThat(extractor.getShift(), is(160));
+        assertThat(extractor.add(new short[399], 0, 399), is(0));
+        assertThat(extractor.add(new short[1], 0, 1), is(1));
+        assertThat(extractor.add(new short[160 * 9], 0, 160 * 9), is(9));
+        assertThat(extractor.getFeatures().getNumOfFrames(), is(10L));
+    }
+
+    /**
+     * Feeding the audio in chunks of any size gives the same features as feeding it at once.
+     */
+    @Test
+    public void test02() {
+        short[] audio = noise(SAMPLE_RATE, new Random(42));
+        LogMelExtractor whole = new LogMelExtractor(SAMPLE_RATE);
+        whole.add(audio, 0, audio.length);
+        LogMelExtractor chunked = new LogMelExtractor(SAMPLE_RATE);
+        Random random = new Random(1);
+        int off = 0;
+        while (off < audio.length) {
+            int len = Math.min(audio.length - off, random.nextInt(700));
+            chunked.add(ShortBuffer.wrap(audio, off, len).asReadOnlyBuffer());
+            off += len;
+        }
+        long numOfFrames = whole.getFeatures().getNumOfFrames();
+        assertThat(chunked.getFeatures().getNumOfFrames(), is(numOfFrames));
+        float[] expected = new float[whole.getNumOfMelBins()];
+        float[] actual = new float[chunked.getNumOfMelBins()];
+        for (long n = 0; n < numOfFrames; n++) {
+            assertTrue(whole.getFeatures().read(n, expected, 0));
+            assertTrue(chunked.getFeatures().read(n, actual, 0));
+            assertArrayEquals(expected, actual, 0);
+        }
+    }
+
+    /**
+     * The energy of a tone is in the mel bins around its frequency, and a higher tone peaks
+     * in a higher bin.
+     */
+    @Test
+    public void test03() {
+        int previousBin = -1;
+        for (int freq : new int[]{300, 1000, 3000, 6000}) {
+            LogMelExtractor extractor = new LogMelExtractor(SAMPLE_RATE);
+            short[] tone = tone(freq, SAMPLE_RATE / 10);
+            extractor.add(tone, 0, tone.length);
+            FeatureRingBuffer features = extractor.getFeatures();
+            float[] frame = new float[features.getDimension()];
+            assertTrue(features.read(features.getNumOfFrames() - 1, frame, 0));
+            int bin = 0;
+            for (int m = 1; m < frame.length; m++) {
+                if (frame[m] > frame[bin]) {
+                    bin = m;
+                }
+            }
+            assertTrue(freq + " Hz: bin " + bin, bin > previousBin);
+            // Far from the tone, the energy is much lower
+            assertTrue(freq + " Hz: " + frame[bin] + " vs " + frame[0] + "/" + frame[frame.length - 1],
+                    frame[bin] - Math.max(frame[0], frame[frame.length - 1]) > 5);
+            previousBin = bin;
+        }
+    }
+
+    /**
+     * A consumer that falls behind finds its frames overwritten, rather than reading newer frames.
+     */
+    @Test
+    public void test04() {
+        FeatureRingBuffer ring = new FeatureRingBuffer(2, 3);
+        assertThat(ring.getCapacity(), is(4));
+        float[] frame = new float[2];
+        assertThat(ring.read(0, frame, 0), is(false));
+        for (int n = 0; n < 6; n++) {
+            ring.write(new float[]{n, -n}, 0);
+        }
+        assertThat(ring.getOldestFrame(), is(2L));
+        assertThat(ring.read(1, frame, 0), is(false));
+        assertThat(ring.read(6, frame, 0), is(false));
+        float[] frames = new float[8];
+        assertThat(ring.read(2, 4, frames, 0), is(4));
+        assertArrayEquals(new float[]{2, -2, 3, -3, 4, -4, 5, -5}, frames, 0);
+    }
+
+    /**
+     * Benchmark: frames per second (and the real-time factor) at 16 kHz and 48 kHz,
+     * with the audio arriving in 20 ms reads.
+     * Skipped unless the benchmarks are requested (see {@link Benchmark}).
+     */
+    @Test
+    public void test05() {
+        Benchmark.assumeEnabled();
+        for (int sampleRate : new int[]{16000, 48000}) {
+            LogMelExtractor extractor = new LogMelExtractor(sampleRate);
+            short[] input = noise(sampleRate, new Random(42));
+            int chunkLength = CHUNK_LENGTH * sampleRate / SAMPLE_RATE;
+            int seconds = 60;
+            // Warm-up, so that the loops get compiled
+            run(extractor, input, chunkLength, 10);
+            long timeNanos = System.nanoTime();
+            long numOfFrames = run(extractor, input, chunkLength, seconds);
+            double elapsed = (System.nanoTime() - timeNanos) / 1e9;
+            double rtf = elapsed / seconds;
+            assertTrue(sampleRate + " Hz: " + (long) (numOfFrames / elapsed) + " frames/s, RTF " + rtf, rtf < 0.1);
+        }
+    }
+
+    private static long run(LogMelExtractor extractor, short[] input, int chunkLength, int seconds) {
+        long numOfFrames = 0;
+        for (int s = 0; s < seconds; s++) {
+            for (int off = 0; off + chunkLength <= input.length; off += chunkLength) {
+                numOfFrames += extractor.add(input, off, chunkLength);
+            }
+        }
+        return numOfFrames;
+    }
+
+    private static short[] tone(int freq, int numOfSamples) {
+        short[] samples = new short[numOfSamples];
+        for (int i = 0; i < numOfSamples; i++) {
+            samples[i] = (short) Math.round(10000 * Math.sin(2 * Math.PI * freq * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    private static short[] noise(int numOfSamples, Random random) {
+        short[] samples = new short[numOfSamples];
+        for (int i = 0; i < numOfSamples; i++) {
+            samples[i] = (short) Math.round(1000 * random.nextGaussian());
+        }
+        return samples;
+    }
+}
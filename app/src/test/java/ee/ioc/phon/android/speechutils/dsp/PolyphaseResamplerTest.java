@@ -0,0 +1,148 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import ee.ioc.phon.android.speechutils.Benchmark;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Quality and throughput of the resampler, runs on the JVM (no device needed).
+ */
+public class PolyphaseResamplerTest {
+
+    private static final int OUTPUT_RATE = 16000;
+
+    /**
+     * A tone in the passband comes through intact (48 kHz and 44.1 kHz to 16 kHz).
+     */
+    @Test
+    public void test01() {
+        for (int inputRate : new int[]{48000, 44100, 32000}) {
+            double snrDb = getSnrDb(inputRate, 1000);
+            assertTrue(inputRate + ": SNR " + snrDb, snrDb > 60);
+            snrDb = getSnrDb(inputRate, 6000);
+            assertTrue(inputRate + ": SNR " + snrDb, snrDb > 50);
+        }
+    }
+
+    /**
+     * A tone above the Nyquist frequency of the output is removed, i.e. it does not alias
+     * into the speech band.
+     */
+    @Test
+    public void test02() {
+        for (int inputRate : new int[]{48000, 44100}) {
+            PolyphaseResampler resampler = new PolyphaseResampler(inputRate, OUTPUT_RATE);
+            short[] in = sine(12000, inputRate, inputRate);
+            short[] out = new short[resampler.getMaxNumOfOutputSamples(in.length)];
+            int n = resampler.process(in, 0, in.length, out, 0);
+            double attenuationDb = 10 * Math.log10(meanSquare(out, n / 2, n) / meanSquare(in, 0, in.length));
+            assertTrue(inputRate + ": attenuation " + attenuationDb, attenuationDb < -60);
+        }
+    }
+
+    /**
+     * Processing in chunks of any length gives the same output as processing at once,
+     * and the predicted number of input samples gives exactly the requested output.
+     */
+    @Test
+    public void test03() {
+        Random random = new Random(42);
+        short[] in = new short[44100];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = (short) (random.nextGaussian() * 3000);
+        }
+        PolyphaseResampler resampler = new PolyphaseResampler(44100, OUTPUT_RATE);
+        short[] expected = new short[resampler.getMaxNumOfOutputSamples(in.length)];
+        int numOfExpected = resampler.process(in, 0, in.length, expected, 0);
+        assertThat(numOfExpected, is(OUTPUT_RATE));
+
+        resampler.reset();
+        short[] actual = new short[numOfExpected];
+        int inPos = 0;
+        int outPos = 0;
+        while (outPos < numOfExpected) {
+            int numOfOut = Math.min(1 + random.nextInt(400), numOfExpected - outPos);
+            int numOfIn = resampler.getNumOfInputSamples(numOfOut);
+            assertThat(resampler.process(in, inPos, numOfIn, actual, outPos), is(numOfOut));
+            inPos += numOfIn;
+            outPos += numOfOut;
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    /**
+     * Throughput benchmark: 60 seconds of audio in 20 ms chunks, after a warm-up.
+     * The real-time factor must be far below 1 for the resampler to fit on the recorder thread.
+     * Skipped unless the benchmarks are requested (see {@link Benchmark}).
+     */
+    @Test
+    public void test04() {
+        Benchmark.assumeEnabled();
+        for (int inputRate : new int[]{48000, 44100}) {
+            for (int numOfZeroCrossings : new int[]{8, 16, PolyphaseResampler.DEFAULT_NUM_OF_ZERO_CROSSINGS}) {
+                PolyphaseResampler resampler = new PolyphaseResampler(inputRate, OUTPUT_RATE, numOfZeroCrossings);
+                short[] in = sine(440, inputRate, inputRate);
+                int chunk = inputRate / 50;
+                short[] out = new short[resampler.getMaxNumOfOutputSamples(chunk)];
+                int seconds = 60;
+                // Warm-up, so that the loop gets compiled
+                resample(resampler, in, chunk, out, 10);
+                long timeNanos = System.nanoTime();
+                resample(resampler, in, chunk, out, seconds);
+                double rtf = (System.nanoTime() - timeNanos) / (seconds * 1e9);
+                assertTrue(inputRate + " Hz, " + numOfZeroCrossings + " zero crossings: RTF " + rtf, rtf < 0.1);
+            }
+        }
+    }
+
+    private static void resample(PolyphaseResampler resampler, short[] in, int chunk, short[] out, int seconds) {
+        for (int s = 0; s < seconds; s++) {
+            for (int off = 0; off + chunk <= in.length; off += chunk) {
+                resampler.process(in, off, chunk, out, 0);
+            }
+        }
+    }
+
+    /**
+     * Compares the resampled tone to the ideal tone at the output rate, skipping the start
+     * (where the filter is filling up) and taking the delay of the filter into account.
+     */
+    private static double getSnrDb(int inputRate, int freq) {
+        PolyphaseResampler resampler = new PolyphaseResampler(inputRate, OUTPUT_RATE);
+        short[] in = sine(freq, inputRate, inputRate);
+        short[] out = new short[resampler.getMaxNumOfOutputSamples(in.length)];
+        int n = resampler.process(in, 0, in.length, out, 0);
+        double delaySec = resampler.getDelay() / inputRate;
+        double signal = 0;
+        double noise = 0;
+        for (int i = n / 4; i < n; i++) {
+            double expected = 10000 * Math.sin(2 * Math.PI * freq * ((double) i / OUTPUT_RATE - delaySec));
+            signal += expected * expected;
+            noise += (out[i] - expected) * (out[i] - expected);
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+
+    private static short[] sine(int freq, int sampleRate, int numOfSamples) {
+        short[] samples = new short[numOfSamples];
+        for (int i = 0; i < numOfSamples; i++) {
+            samples[i] = (short) Math.round(10000 * Math.sin(2 * Math.PI * freq * i / sampleRate));
+        }
+        return samples;
+    }
+
+    private static double meanSquare(short[] samples, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += samples[i] * samples[i];
+        }
+        return sum / (to - from);
+    }
+}
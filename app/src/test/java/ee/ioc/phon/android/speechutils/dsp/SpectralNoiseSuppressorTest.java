@@ -0,0 +1,136 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import ee.ioc.phon.android.speechutils.Benchmark;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Quality and real-time factor of the noise suppressor, runs on the JVM (no device needed).
+ */
+public class SpectralNoiseSuppressorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    // 20 ms
+    private static final int FRAME_LENGTH = 320;
+
+    /**
+     * Without attenuation, the output is the input, delayed by one frame
+     * (i.e. the analysis and the synthesis reconstruct the signal).
+     */
+    @Test
+    public void test01() {
+        SpectralNoiseSuppressor suppressor = new SpectralNoiseSuppressor(SAMPLE_RATE, 0);
+        short[] input = noisySpeech(SAMPLE_RATE, 1000, new Random(42));
+        short[] output = input.clone();
+        process(suppressor, output);
+        int delay = suppressor.getDelay();
+        for (int i = 0; i + delay < output.length; i++) {
+            assertTrue(i + ": " + input[i] + " " + output[i + delay], Math.abs(input[i] - output[i + delay]) <= 1);
+        }
+    }
+
+    /**
+     * The background noise is attenuated in the pauses, and the SNR of the speech improves.
+     */
+    @Test
+    public void test02() {
+        Random random = new Random(42);
+        short[] clean = new short[4 * SAMPLE_RATE];
+        short[] speech = speech(2 * SAMPLE_RATE);
+        System.arraycopy(speech, 0, clean, 2 * SAMPLE_RATE, speech.length);
+        short[] input = new short[clean.length];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) (clean[i] + 1000 * random.nextGaussian());
+        }
+        SpectralNoiseSuppressor suppressor = new SpectralNoiseSuppressor(SAMPLE_RATE);
+        short[] output = input.clone();
+        process(suppressor, output);
+        int delay = suppressor.getDelay();
+
+        // Noise in the second half of the pause
+        double noiseInDb = errorDb(clean, input, SAMPLE_RATE, 2 * SAMPLE_RATE, 0);
+        double noiseOutDb = errorDb(clean, output, SAMPLE_RATE, 2 * SAMPLE_RATE, delay);
+        assertTrue("noise " + noiseInDb + " -> " + noiseOutDb, noiseOutDb < noiseInDb - 8);
+
+        // Noise in the speech
+        double speechNoiseInDb = errorDb(clean, input, 5 * SAMPLE_RATE / 2, 4 * SAMPLE_RATE - delay, 0);
+        double speechNoiseOutDb = errorDb(clean, output, 5 * SAMPLE_RATE / 2, 4 * SAMPLE_RATE - delay, delay);
+        assertTrue("noise in speech " + speechNoiseInDb + " -> " + speechNoiseOutDb, speechNoiseOutDb < speechNoiseInDb - 3);
+    }
+
+    /**
+     * Benchmark: real-time factor (CPU time per second of audio) at 16 kHz and 48 kHz.
+     * Skipped unless the benchmarks are requested (see {@link Benchmark}).
+     */
+    @Test
+    public void test03() {
+        Benchmark.assumeEnabled();
+        for (int sampleRate : new int[]{16000, 48000}) {
+            SpectralNoiseSuppressor suppressor = new SpectralNoiseSuppressor(sampleRate);
+            short[] input = noisySpeech(sampleRate, 1000, new Random(42));
+            short[] frame = new short[sampleRate / 50];
+            int seconds = 30;
+            // Warm-up, so that the loops get compiled
+            run(suppressor, input, frame, 10);
+            long timeNanos = System.nanoTime();
+            run(suppressor, input, frame, seconds);
+            double rtf = (System.nanoTime() - timeNanos) / (seconds * 1e9);
+            assertTrue(sampleRate + " Hz: RTF " + rtf, rtf < 0.1);
+        }
+    }
+
+    private static void run(AudioFilter filter, short[] input, short[] frame, int seconds) {
+        for (int s = 0; s < seconds; s++) {
+            for (int off = 0; off + frame.length <= input.length; off += frame.length) {
+                System.arraycopy(input, off, frame, 0, frame.length);
+                filter.process(frame, 0, frame.length);
+            }
+        }
+    }
+
+    private static void process(AudioFilter filter, short[] samples) {
+        for (int off = 0; off < samples.length; off += FRAME_LENGTH) {
+            filter.process(samples, off, Math.min(FRAME_LENGTH, samples.length - off));
+        }
+    }
+
+    /**
+     * Voiced sound (harmonics of 150 Hz with a slowly changing amplitude).
+     */
+    private static short[] speech(int numOfSamples) {
+        short[] samples = new short[numOfSamples];
+        for (int i = 0; i < numOfSamples; i++) {
+            double envelope = 0.6 + 0.4 * Math.sin(2 * Math.PI * 3 * i / SAMPLE_RATE);
+            double value = 0;
+            for (int h = 1; h <= 15; h++) {
+                value += 4000.0 / h * Math.sin(2 * Math.PI * 150 * h * i / SAMPLE_RATE);
+            }
+            samples[i] = (short) (envelope * value);
+        }
+        return samples;
+    }
+
+    private static short[] noisySpeech(int numOfSamples, double noise, Random random) {
+        short[] samples = speech(numOfSamples);
+        for (int i = 0; i < numOfSamples; i++) {
+            samples[i] = (short) (samples[i] / 2 + noise * random.nextGaussian());
+        }
+        return samples;
+    }
+
+    /**
+     * @return power (in dB) of the difference between the clean and the processed signal
+     */
+    private static double errorDb(short[] clean, short[] processed, int from, int to, int delay) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            double d = processed[i + delay] - clean[i];
+            sum += d * d;
+        }
+        return 10 * Math.log10(sum / (to - from));
+    }
+}
@@ -0,0 +1,91 @@
+package ee.ioc.phon.android.speechutils.dsp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SpectralVoiceActivityDetectorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    // 20 ms
+    private static final int FRAME_LENGTH = 320;
+
+    private SpectralVoiceActivityDetector mVad;
+    private Random mRandom;
+    private short[] mFrame;
+
+    @Before
+    public void before() {
+        mVad = new SpectralVoiceActivityDetector(SAMPLE_RATE, FRAME_LENGTH);
+        mRandom = new Random(42);
+        mFrame = new short[FRAME_LENGTH];
+    }
+
+    /**
+     * Background noise alone is not speech.
+     */
+    @Test
+    public void test01() {
+        for (int i = 0; i < 50; i++) {
+            fillNoise(300);
+            assertThat(mVad.isSpeech(mFrame, 0, FRAME_LENGTH), is(false));
+        }
+    }
+
+    /**
+     * Voiced sound (harmonics of 150 Hz) over the background noise is speech,
+     * and the background noise after it is not.
+     */
+    @Test
+    public void test02() {
+        for (int i = 0; i < 25; i++) {
+            fillNoise(300);
+            mVad.isSpeech(mFrame, 0, FRAME_LENGTH);
+        }
+        for (int i = 0; i < 25; i++) {
+            fillNoise(300);
+            addHarmonics(i * FRAME_LENGTH, 3000);
+            assertThat(mVad.isSpeech(mFrame, 0, FRAME_LENGTH), is(true));
+        }
+        fillNoise(300);
+        assertThat(mVad.isSpeech(mFrame, 0, FRAME_LENGTH), is(false));
+    }
+
+    /**
+     * Louder background noise is eventually accepted as the new noise floor.
+     */
+    @Test
+    public void test03() {
+        for (int i = 0; i < 25; i++) {
+            fillNoise(100);
+            mVad.isSpeech(mFrame, 0, FRAME_LENGTH);
+        }
+        boolean isSpeech = true;
+        for (int i = 0; i < 100; i++) {
+            fillNoise(1000);
+            isSpeech = mVad.isSpeech(mFrame, 0, FRAME_LENGTH);
+        }
+        assertThat(isSpeech, is(false));
+    }
+
+    private void fillNoise(double stdDev) {
+        for (int i = 0; i < FRAME_LENGTH; i++) {
+            mFrame[i] = (short) (mRandom.nextGaussian() * stdDev);
+        }
+    }
+
+    private void addHarmonics(int start, double amplitude) {
+        for (int i = 0; i < FRAME_LENGTH; i++) {
+            double t = (double) (start + i) / SAMPLE_RATE;
+            double value = 0;
+            for (int h = 1; h <= 10; h++) {
+                value += amplitude / h * Math.sin(2 * Math.PI * 150 * h * t);
+            }
+            mFrame[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mFrame[i] + value));
+        }
+    }
+}